@@ -28,13 +28,21 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import android.Manifest;
 import android.app.AlertDialog;
@@ -43,8 +51,9 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.graphics.drawable.Drawable;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -56,38 +65,99 @@ public final class Api {
 	/** application version string */
 	public static final String VERSION = "1.5.7";
 	/** special application UID used to indicate "any application" */
-	public static final int SPECIAL_UID_ANY	= -10;
+	public static final int SPECIAL_UID_ANY	= UidSet.SPECIAL_UID_ANY;
 	/** special application UID used to indicate the Linux Kernel */
-	public static final int SPECIAL_UID_KERNEL	= -11;
+	public static final int SPECIAL_UID_KERNEL	= UidSet.SPECIAL_UID_KERNEL;
 	/** root script filename */
 	private static final String SCRIPT_FILE = "droidwall.sh";
+	/** selected UIDs filename */
+	private static final String UIDS_FILE = "selected_uids.bin";
+	/** application labels filename */
+	private static final String LABELS_FILE = "labels.bin";
+	/** application list snapshot filename */
+	private static final String SNAPSHOT_FILE = "apps.bin";
+	/** prefix of the old label cache preferences (migrated to LABELS_FILE) */
+	private static final String PREF_LABEL_PREFIX = "cache.label.";
+	/** prefix of the files holding the UIDs saved on each profile (E.g.: "profile_1.bin") */
+	private static final String PROFILE_FILE_PREFIX = "profile_";
+	/** prefix of the preferences saved on each profile (E.g.: "profile.1.BlockMode") */
+	private static final String PREF_PROFILE_PREFIX = "profile.";
+	/** id of the default profile */
+	public static final int DEFAULT_PROFILE = 0;
+	/** charset used to write scripts and decode their output */
+	static final Charset SCRIPT_CHARSET = RootShell.CHARSET;
+	/** version of the binaries probing script (changing it forces the binaries to be probed again) */
+	private static final int BINARIES_PROBE_VERSION = 3;
+	/** maximum number of threads used to read the application labels */
+	private static final int LABEL_THREADS = 4;
+	/** here-document delimiter used to feed iptables-restore */
+	private static final String RESTORE_EOF = "DROIDWALL_RULES";
 	
 	// Preferences
 	public static final String PREFS_NAME 			= "DroidWallPrefs";
-	public static final String PREF_3G_UIDS			= "AllowedUids3G";
-	public static final String PREF_WIFI_UIDS		= "AllowedUidsWifi";
+	public static final String PREF_3G_UIDS			= "AllowedUids3G"; // Migrated to UIDS_FILE
+	public static final String PREF_WIFI_UIDS		= "AllowedUidsWifi"; // Migrated to UIDS_FILE
 	public static final String PREF_PASSWORD 		= "Password";
 	public static final String PREF_CUSTOMSCRIPT 	= "CustomScript";
 	public static final String PREF_CUSTOMSCRIPT2 	= "CustomScript2"; // Executed on shutdown
 	public static final String PREF_MODE 			= "BlockMode";
 	public static final String PREF_ENABLED			= "Enabled";
 	public static final String PREF_LOGENABLED		= "LogEnabled";
+	public static final String PREF_HITORDER		= "HitOrdering";
+	public static final String PREF_BINARIES		= "BinaryPaths";
+	public static final String PREF_BINARIES_SIGNATURE = "BinaryPathsSignature";
+	public static final String PREF_PROFILES		= "Profiles"; // Pipe-separated profile ids
+	public static final String PREF_PROFILE			= "Profile"; // Active profile id
+	public static final String PREF_PROFILE_NAME	= "Name"; // Only saved per profile
 	// Modes
-	public static final String MODE_WHITELIST = "whitelist";
-	public static final String MODE_BLACKLIST = "blacklist";
+	public static final String MODE_WHITELIST = RuleSet.MODE_WHITELIST;
+	public static final String MODE_BLACKLIST = RuleSet.MODE_BLACKLIST;
 	// Messages
 	public static final String STATUS_CHANGED_MSG 	= "com.googlecode.droidwall.intent.action.STATUS_CHANGED";
 	public static final String TOGGLE_REQUEST_MSG	= "com.googlecode.droidwall.intent.action.TOGGLE_REQUEST";
 	public static final String CUSTOM_SCRIPT_MSG	= "com.googlecode.droidwall.intent.action.CUSTOM_SCRIPT";
+	public static final String SWITCH_PROFILE_MSG	= "com.googlecode.droidwall.intent.action.SWITCH_PROFILE";
+	public static final String PROFILE_CHANGED_MSG	= "com.googlecode.droidwall.intent.action.PROFILE_CHANGED";
 	// Message extras (parameters)
 	public static final String STATUS_EXTRA			= "com.googlecode.droidwall.intent.extra.STATUS";
 	public static final String SCRIPT_EXTRA			= "com.googlecode.droidwall.intent.extra.SCRIPT";
 	public static final String SCRIPT2_EXTRA		= "com.googlecode.droidwall.intent.extra.SCRIPT2";
+	public static final String PROFILE_EXTRA		= "com.googlecode.droidwall.intent.extra.PROFILE"; // Profile name
 	
 	// Cached applications
 	public static DroidApp applications[] = null;
+	// Version of the installed applications (incremented on every package change)
+	private static int applicationsVersion = 0;
+	// Lock protecting the cached applications against concurrent patches
+	private static final Object applicationsLock = new Object();
 	// Do we have root access?
 	private static boolean hasroot = false;
+	// Persistent root shell used to run all root scripts
+	private static final RootShell rootShell = new RootShell("su");
+	// Cached script header (binary paths) and the signature it was probed with
+	private static volatile String cachedHeader = null;
+	private static volatile String cachedHeaderSignature = null;
+	// Rules applied last time (used for incremental updates)
+	private static volatile RuleSet lastApplied = null;
+	// true if lastApplied was applied using nftables
+	private static volatile boolean lastAppliedNft = false;
+	// Rules installed on the chains of each profile (null if the profile chains are not installed)
+	private static volatile HashMap<Integer, RuleSet> installedProfiles = null;
+	// Lock serializing profile changes
+	private static final Object profilesLock = new Object();
+	// Hit-count-driven order of the per-application rules (see PREF_HITORDER)
+	private static final HitOrder hitOrderWifi = new HitOrder();
+	private static final HitOrder hitOrder3g = new HitOrder();
+	// Storage of the selected UIDs
+	private static UidStore uidStore = null;
+	// Cache of the application labels
+	private static LabelStore labelStore = null;
+	// Selected UIDs shared by all readers, indexed by UidStore.WIFI and UidStore.MOBILE (null until loaded)
+	private static UidSet selectedUids[] = null;
+	// Version of the selected UIDs (incremented on every change)
+	private static int selectedVersion = 0;
+	// Enabled status (null until read), kept in memory since it is written on background
+	private static volatile Boolean enabledStatus = null;
 
     /**
      * Display a simple alert box
@@ -103,11 +173,125 @@ public final class Api {
     	}
     }
 	/**
-	 * Create the generic shell script header used to determine which iptables binary to use.
+	 * Create the generic shell script header used to define which iptables binary to use.
+	 * The binaries are probed only once, and their paths are cached until the system or the
+	 * binaries themselves change.
 	 * @param ctx context
 	 * @return script header
 	 */
 	private static String scriptHeader(Context ctx) {
+		final String signature = binariesSignature(ctx);
+		String header = cachedHeader;
+		if (header != null && signature.equals(cachedHeaderSignature)) {
+			return header;
+		}
+		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
+		header = prefs.getString(PREF_BINARIES, "");
+		if (header.length() == 0 || !signature.equals(prefs.getString(PREF_BINARIES_SIGNATURE, ""))) {
+			header = probeBinaries(ctx);
+			if (header == null) {
+				// Could not probe the binaries right now - let the script find them
+				return probingScriptHeader(ctx);
+			}
+			final Editor edit = prefs.edit();
+			edit.putString(PREF_BINARIES, header);
+			edit.putString(PREF_BINARIES_SIGNATURE, signature);
+			edit.commit();
+		}
+		cachedHeaderSignature = signature;
+		cachedHeader = header;
+		return header;
+	}
+	/**
+	 * Run the probing script header once, and convert its results into a constant script header.
+	 * @param ctx context
+	 * @return script header, or null if the binaries could not be probed
+	 */
+	private static String probeBinaries(Context ctx) {
+		final StringBuilder res = new StringBuilder();
+		final String script = probingScriptHeader(ctx) +
+			"$ECHO \"IPTABLES=$IPTABLES\"\n" +
+			"$ECHO \"IPTABLES_RESTORE=$IPTABLES_RESTORE\"\n" +
+			"$ECHO \"BUSYBOX=$BUSYBOX\"\n" +
+			"$ECHO \"GREP=$GREP\"\n" +
+			"$ECHO \"ECHO=$ECHO\"\n" +
+			"# Check if the owner match accepts UID ranges (E.g.: --uid-owner 10000-10005)\n" +
+			"OWNER_RANGES=0\n" +
+			"$IPTABLES -m owner --help 2>/dev/null | $GREP -q 'userid\\[-userid\\]' && OWNER_RANGES=1\n" +
+			"$ECHO \"OWNER_RANGES=$OWNER_RANGES\"\n" +
+			"$ECHO \"NFT=$NFT\"\n";
+		try {
+			if (runScriptAsRoot(ctx, script, res) != 0) {
+				Log.d("DroidWall", "Error probing binaries: " + res);
+				return null;
+			}
+			final String names[] = {"IPTABLES", "IPTABLES_RESTORE", "BUSYBOX", "GREP", "ECHO", "OWNER_RANGES", "NFT"};
+			final String values[] = new String[names.length];
+			final BufferedReader r = new BufferedReader(new StringReader(res.toString()));
+			String line;
+			while ((line = r.readLine()) != null) {
+				for (int i=0; i<names.length; i++) {
+					if (line.startsWith(names[i] + "=")) {
+						values[i] = line.substring(names[i].length() + 1);
+					}
+				}
+			}
+			final StringBuilder header = new StringBuilder();
+			for (int i=0; i<names.length; i++) {
+				if (values[i] == null) return null;
+				header.append(names[i]).append("=\"").append(values[i]).append("\"\n");
+			}
+			return header.toString();
+		} catch (IOException e) {
+			Log.d("DroidWall", "Error probing binaries: " + e);
+			return null;
+		}
+	}
+	/**
+	 * Check if the owner match supports UID ranges.
+	 * @param header script header returned by scriptHeader()
+	 * @return true if UID ranges can be used on "--uid-owner"
+	 */
+	private static boolean ownerRangesSupported(String header) {
+		return header.indexOf("OWNER_RANGES=\"1\"") != -1;
+	}
+	/**
+	 * Check if the nftables backend can be used.
+	 * @param header script header returned by scriptHeader()
+	 * @return true if a working "nft" binary was found
+	 */
+	private static boolean nftAvailable(String header) {
+		return header.indexOf("NFT=\"nft\"") != -1;
+	}
+	/**
+	 * Builds a signature of everything that may change the binaries found by the probing script header:
+	 * the system build fingerprint and the modification times of the candidate binaries.
+	 * @param ctx context
+	 * @return signature
+	 */
+	private static String binariesSignature(Context ctx) {
+		final String dir = ctx.getDir("bin",0).getAbsolutePath();
+		final String files[] = {
+			dir + "/busybox_g1", dir + "/iptables_armv5",
+			"/system/bin/busybox", "/system/xbin/busybox",
+			"/system/bin/iptables", "/system/xbin/iptables",
+			"/system/bin/iptables-restore", "/system/xbin/iptables-restore",
+			"/system/bin/grep", "/system/xbin/grep",
+			"/system/bin/nft", "/system/xbin/nft",
+		};
+		final StringBuilder signature = new StringBuilder();
+		signature.append(BINARIES_PROBE_VERSION).append('|').append(android.os.Build.FINGERPRINT);
+		for (final String file : files) {
+			signature.append('|').append(new File(file).lastModified());
+		}
+		return signature.toString();
+	}
+	/**
+	 * Create the generic shell script header used to determine which iptables binary to use.
+	 * @param ctx context
+	 * @return script header
+	 */
+	private static String probingScriptHeader(Context ctx) {
 		final String dir = ctx.getDir("bin",0).getAbsolutePath();
 		final String myiptables = dir + "/iptables_armv5";
 		return "" +
@@ -144,6 +328,16 @@ public final class Api {
 			"if " + myiptables + " --version >/dev/null 2>/dev/null ; then\n" +
 			"	IPTABLES="+myiptables+"\n" +
 			"fi\nfi\n" +
+			"# Try to find iptables-restore (only usable along with the system iptables)\n" +
+			"IPTABLES_RESTORE=\n" +
+			"if [ \"$IPTABLES\" = iptables ] && command -v iptables-restore >/dev/null 2>/dev/null ; then\n" +
+			"	IPTABLES_RESTORE=iptables-restore\n" +
+			"fi\n" +
+			"# Try to find a working nft (nftables)\n" +
+			"NFT=\n" +
+			"if command -v nft >/dev/null 2>/dev/null && nft list tables >/dev/null 2>/dev/null ; then\n" +
+			"	NFT=nft\n" +
+			"fi\n" +
 			"";
 	}
 	/**
@@ -173,162 +367,396 @@ public final class Api {
 	}
     /**
      * Purge and re-add all rules (internal implementation).
+     * If only the per-application rules have changed since the last call, just these are updated.
      * @param ctx application context (mandatory)
-     * @param uidsWifi list of selected UIDs for WIFI to allow or disallow (depending on the working mode)
-     * @param uids3g list of selected UIDs for 2G/3G to allow or disallow (depending on the working mode)
-     * @param showErrors indicates if errors should be alerted
+     * @param uidsWifi selected UIDs for WIFI to allow or disallow (depending on the working mode)
+     * @param uids3g selected UIDs for 2G/3G to allow or disallow (depending on the working mode)
+     * @param errors receives the error message, if any (may be null)
      */
-	private static boolean applyIptablesRulesImpl(Context ctx, List<Integer> uidsWifi, List<Integer> uids3g, boolean showErrors) {
+	private static boolean applyIptablesRulesImpl(Context ctx, UidSet uidsWifi, UidSet uids3g, StringBuilder errors) {
 		if (ctx == null) {
 			return false;
 		}
-		assertBinaries(ctx, showErrors);
-		final String ITFS_WIFI[] = {"tiwlan+", "wlan+", "eth+", "ra+"};
-		final String ITFS_3G[] = {"rmnet+","pdp+","ppp+","uwbr+","wimax+","vsnet+","ccmni+","usb+"};
-		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
-		final boolean whitelist = prefs.getString(PREF_MODE, MODE_WHITELIST).equals(MODE_WHITELIST);
-		final boolean blacklist = !whitelist;
-		final boolean logenabled = ctx.getSharedPreferences(PREFS_NAME, 0).getBoolean(PREF_LOGENABLED, false);
-		final String customScript = ctx.getSharedPreferences(Api.PREFS_NAME, 0).getString(Api.PREF_CUSTOMSCRIPT, "");
-
-    	final StringBuilder script = new StringBuilder();
+		assertBinaries(ctx, errors, false);
 		try {
 			int code;
-			script.append(scriptHeader(ctx));
-			script.append("" +
-				"$IPTABLES --version || exit 1\n" +
-				"# Create the droidwall chains if necessary\n" +
-				"$IPTABLES -L droidwall >/dev/null 2>/dev/null || $IPTABLES --new droidwall || exit 2\n" +
-				"$IPTABLES -L droidwall-3g >/dev/null 2>/dev/null || $IPTABLES --new droidwall-3g || exit 3\n" +
-				"$IPTABLES -L droidwall-wifi >/dev/null 2>/dev/null || $IPTABLES --new droidwall-wifi || exit 4\n" +
-				"$IPTABLES -L droidwall-reject >/dev/null 2>/dev/null || $IPTABLES --new droidwall-reject || exit 5\n" +
-				"# Add droidwall chain to OUTPUT chain if necessary\n" +
-				"$IPTABLES -L OUTPUT | $GREP -q droidwall || $IPTABLES -A OUTPUT -j droidwall || exit 6\n" +
-				"# Flush existing rules\n" +
-				"$IPTABLES -F droidwall || exit 7\n" +
-				"$IPTABLES -F droidwall-3g || exit 8\n" +
-				"$IPTABLES -F droidwall-wifi || exit 9\n" +
-				"$IPTABLES -F droidwall-reject || exit 10\n" +
-			"");
-			// Check if logging is enabled
-			if (logenabled) {
-				script.append("" +
-					"# Create the log and reject rules (ignore errors on the LOG target just in case it is not available)\n" +
-					"$IPTABLES -A droidwall-reject -j LOG --log-prefix \"[DROIDWALL] \" --log-uid\n" +
-					"$IPTABLES -A droidwall-reject -j REJECT || exit 11\n" +
-				"");
-			} else {
-				script.append("" +
-					"# Create the reject rule (log disabled)\n" +
-					"$IPTABLES -A droidwall-reject -j REJECT || exit 11\n" +
-				"");
-			}
-			if (customScript.length() > 0) {
-				script.append("\n# BEGIN OF CUSTOM SCRIPT (user-defined)\n");
-				script.append(customScript);
-				script.append("\n# END OF CUSTOM SCRIPT (user-defined)\n\n");
-			}
-			if (whitelist && logenabled) {
-				script.append("# Allow DNS lookups on white-list for a better logging (ignore errors)\n");
-				script.append("$IPTABLES -A droidwall -p udp --dport 53 -j RETURN\n");
-			}
-			script.append("# Main rules (per interface)\n");
-			for (final String itf : ITFS_3G) {
-				script.append("$IPTABLES -A droidwall -o ").append(itf).append(" -j droidwall-3g || exit\n");
-			}
-			for (final String itf : ITFS_WIFI) {
-				script.append("$IPTABLES -A droidwall -o ").append(itf).append(" -j droidwall-wifi || exit\n");
-			}
-			
-			script.append("# Filtering rules\n");
-			final String targetRule = (whitelist ? "RETURN" : "droidwall-reject");
-			final boolean any_3g = uids3g.indexOf(SPECIAL_UID_ANY) >= 0;
-			final boolean any_wifi = uidsWifi.indexOf(SPECIAL_UID_ANY) >= 0;
-			if (whitelist && !any_wifi) {
-				// When "white listing" wifi, we need to ensure that the dhcp and wifi users are allowed
-				int uid = android.os.Process.getUidForName("dhcp");
-				if (uid != -1) {
-					script.append("# dhcp user\n");
-					script.append("$IPTABLES -A droidwall-wifi -m owner --uid-owner ").append(uid).append(" -j RETURN || exit\n");
-				}
-				uid = android.os.Process.getUidForName("wifi");
-				if (uid != -1) {
-					script.append("# wifi user\n");
-					script.append("$IPTABLES -A droidwall-wifi -m owner --uid-owner ").append(uid).append(" -j RETURN || exit\n");
-				}
-			}
-			if (any_3g) {
-				if (blacklist) {
-					/* block any application on this interface */
-					script.append("$IPTABLES -A droidwall-3g -j ").append(targetRule).append(" || exit\n");
-				}
-			} else {
-				/* release/block individual applications on this interface */
-				for (final Integer uid : uids3g) {
-					if (uid >= 0) script.append("$IPTABLES -A droidwall-3g -m owner --uid-owner ").append(uid).append(" -j ").append(targetRule).append(" || exit\n");
-				}
-			}
-			if (any_wifi) {
-				if (blacklist) {
-					/* block any application on this interface */
-					script.append("$IPTABLES -A droidwall-wifi -j ").append(targetRule).append(" || exit\n");
-				}
-			} else {
-				/* release/block individual applications on this interface */
-				for (final Integer uid : uidsWifi) {
-					if (uid >= 0) script.append("$IPTABLES -A droidwall-wifi -m owner --uid-owner ").append(uid).append(" -j ").append(targetRule).append(" || exit\n");
+			final boolean reordered = sampleHitCounters(ctx);
+			final RuleSet ruleset = buildRuleSet(ctx, uidsWifi, uids3g);
+			final RuleSet previous = lastApplied;
+			// Custom scripts are written against the iptables chains, so nftables is only used without them
+			if (ruleset.getCustomScript().length() == 0 && nftAvailable(scriptHeader(ctx))) {
+				if (applyNftRules(ctx, (lastAppliedNft ? previous : null), ruleset)) {
+					lastApplied = ruleset;
+					lastAppliedNft = true;
+					installedProfiles = null;
+					return true;
 				}
+				Log.d("DroidWall", "nftables rules failed - falling back to iptables.");
+				lastApplied = null;
 			}
-			if (whitelist) {
-				if (!any_3g) {
-					if (uids3g.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-						script.append("# hack to allow kernel packets on white-list\n");
-						script.append("$IPTABLES -A droidwall-3g -m owner --uid-owner 0:999999999 -j droidwall-reject || exit\n");
-					} else {
-						script.append("$IPTABLES -A droidwall-3g -j droidwall-reject || exit\n");
+			// Without a custom script, the chains of all profiles are installed, so profiles can be switched instantly
+			final int profiles[] = (ruleset.getCustomScript().length() == 0) ? getProfiles(ctx) : null;
+			final HashMap<Integer, RuleSet> installed = installedProfiles;
+			// Incremental updates keep the order of the existing rules, so a new order requires rebuilding all rules
+			if (!lastAppliedNft && !reordered && ruleset.canUpdate(previous) && sameProfiles(installed, profiles)) {
+				// Only per-application rules have changed - just delete/insert them
+				if (applyIncrementalRules(ctx, previous, ruleset)) {
+					lastApplied = ruleset;
+					if (installed != null) {
+						installRuleSet(installed, getActiveProfile(ctx), ruleset);
 					}
+					return true;
 				}
-				if (!any_wifi) {
-					if (uidsWifi.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-						script.append("# hack to allow kernel packets on white-list\n");
-						script.append("$IPTABLES -A droidwall-wifi -m owner --uid-owner 0:999999999 -j droidwall-reject || exit\n");
-					} else {
-						script.append("$IPTABLES -A droidwall-wifi -j droidwall-reject || exit\n");
+				Log.d("DroidWall", "Incremental update failed - rebuilding all rules.");
+			}
+			lastApplied = null;
+			lastAppliedNft = false;
+			installedProfiles = null;
+			LinkedHashMap<Integer, RuleSet> others = null;
+			if (profiles != null) {
+				final int active = getActiveProfile(ctx);
+				others = new LinkedHashMap<Integer, RuleSet>();
+				for (final int profile : profiles) {
+					if (profile != active) {
+						others.put(profile, buildProfileRuleSet(ctx, profile));
 					}
 				}
-			} else {
-				if (uids3g.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-					script.append("# hack to BLOCK kernel packets on black-list\n");
-					script.append("$IPTABLES -A droidwall-3g -m owner --uid-owner 0:999999999 -j RETURN || exit\n");
-					script.append("$IPTABLES -A droidwall-3g -j droidwall-reject || exit\n");
-				}
-				if (uidsWifi.indexOf(SPECIAL_UID_KERNEL) >= 0) {
-					script.append("# hack to BLOCK kernel packets on black-list\n");
-					script.append("$IPTABLES -A droidwall-wifi -m owner --uid-owner 0:999999999 -j RETURN || exit\n");
-					script.append("$IPTABLES -A droidwall-wifi -j droidwall-reject || exit\n");
-				}
 			}
 	    	final StringBuilder res = new StringBuilder();
-			code = runScriptAsRoot(ctx, script.toString(), res);
-			if (showErrors && code != 0) {
+			code = runScriptAsRoot(ctx, renderScript(ctx, ruleset, others), res);
+			if (code != 0) {
 				String msg = res.toString();
 				Log.e("DroidWall", msg);
 				// Remove unnecessary help message from output
 				if (msg.indexOf("\nTry `iptables -h' or 'iptables --help' for more information.") != -1) {
 					msg = msg.replace("\nTry `iptables -h' or 'iptables --help' for more information.", "");
 				}
-				alert(ctx, "Error applying iptables rules. Exit code: " + code + "\n\n" + msg.trim());
+				if (errors != null) errors.append("Error applying iptables rules. Exit code: " + code + "\n\n" + msg.trim());
 			} else {
+				lastApplied = ruleset;
+				if (others != null) {
+					final HashMap<Integer, RuleSet> map = new HashMap<Integer, RuleSet>(others);
+					map.put(getActiveProfile(ctx), ruleset);
+					installedProfiles = map;
+				}
 				return true;
 			}
 		} catch (Exception e) {
-			if (showErrors) alert(ctx, "error refreshing iptables: " + e);
+			if (errors != null) errors.append("error refreshing iptables: " + e);
 		}
 		return false;
     }
+	/**
+	 * Build the rule set for the given selected UIDs, using the current preferences.
+	 * @param ctx application context (mandatory)
+	 * @param uidsWifi selected UIDs for WIFI
+	 * @param uids3g selected UIDs for 2G/3G
+	 * @return rule set
+	 */
+	private static RuleSet buildRuleSet(Context ctx, UidSet uidsWifi, UidSet uids3g) {
+		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
+		final boolean whitelist = prefs.getString(PREF_MODE, MODE_WHITELIST).equals(MODE_WHITELIST);
+		final boolean logenabled = prefs.getBoolean(PREF_LOGENABLED, false);
+		final String customScript = prefs.getString(PREF_CUSTOMSCRIPT, "");
+		final boolean hitorder = prefs.getBoolean(PREF_HITORDER, false);
+		// custom scripts are written against the chains without profiles
+		final String chain = (customScript.length() == 0) ? RuleSet.profileChain(getActiveProfile(ctx)) : RuleSet.CHAIN_MAIN;
+		return new RuleSet(chain, whitelist, logenabled, customScript, uidsWifi, uids3g,
+				android.os.Process.getUidForName("dhcp"), android.os.Process.getUidForName("wifi"),
+				ownerRangesSupported(scriptHeader(ctx)),
+				hitorder ? hitOrderWifi.getOrder() : null, hitorder ? hitOrder3g.getOrder() : null);
+	}
+	/**
+	 * Build the rule set of an inactive profile, using the settings saved on it.
+	 * @param ctx application context (mandatory)
+	 * @param profile profile id
+	 * @return rule set
+	 */
+	private static RuleSet buildProfileRuleSet(Context ctx, int profile) {
+		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
+		final boolean whitelist = prefs.getString(profileKey(profile, PREF_MODE), MODE_WHITELIST).equals(MODE_WHITELIST);
+		final boolean logenabled = prefs.getBoolean(profileKey(profile, PREF_LOGENABLED), false);
+		final UidSet selected[] = readProfileUids(ctx, profile);
+		return new RuleSet(RuleSet.profileChain(profile), whitelist, logenabled, "", selected[UidStore.WIFI], selected[UidStore.MOBILE],
+				android.os.Process.getUidForName("dhcp"), android.os.Process.getUidForName("wifi"),
+				ownerRangesSupported(scriptHeader(ctx)), null, null);
+	}
+	/**
+	 * @param installed rules installed on the chains of each profile (null if not installed)
+	 * @param profiles current profile ids (null if the profile chains should not be installed)
+	 * @return true if the installed profile chains match the current profiles
+	 */
+	private static boolean sameProfiles(HashMap<Integer, RuleSet> installed, int profiles[]) {
+		if (installed == null || profiles == null) {
+			return installed == null && profiles == null;
+		}
+		if (installed.size() != profiles.length) {
+			return false;
+		}
+		for (final int profile : profiles) {
+			if (!installed.containsKey(profile)) return false;
+		}
+		return true;
+	}
+	/**
+	 * Record the rules installed on the chains of a profile.
+	 * @param installed rules installed on the chains of each profile
+	 * @param profile profile id
+	 * @param ruleset rules installed
+	 */
+	private static void installRuleSet(HashMap<Integer, RuleSet> installed, int profile, RuleSet ruleset) {
+		// the map is shared with other threads, so it is never modified in place
+		final HashMap<Integer, RuleSet> map = new HashMap<Integer, RuleSet>(installed);
+		map.put(profile, ruleset);
+		installedProfiles = map;
+	}
+	/**
+	 * Sample the packet counters of the per-application rules, if hit-count-driven ordering is enabled,
+	 * and update the order of the rules.
+	 * @param ctx application context (mandatory)
+	 * @return true if the order of the rules has changed
+	 */
+	private static boolean sampleHitCounters(Context ctx) {
+		if (!ctx.getSharedPreferences(PREFS_NAME, 0).getBoolean(PREF_HITORDER, false)) {
+			return false;
+		}
+		final RuleSet applied = lastApplied;
+		if (applied == null || lastAppliedNft) {
+			// there are no iptables counters to sample
+			return false;
+		}
+		final String separator = "DROIDWALL_3G";
+		final StringBuilder res = new StringBuilder();
+		final String script = scriptHeader(ctx) +
+			"$IPTABLES -L " + applied.getWifiChain() + " -v -x -n || exit\n" +
+			"$ECHO " + separator + "\n" +
+			"$IPTABLES -L " + applied.get3gChain() + " -v -x -n || exit\n";
+		try {
+			if (runScriptAsRoot(ctx, script, res) != 0) {
+				Log.d("DroidWall", "Error sampling rule counters: " + res);
+				return false;
+			}
+		} catch (IOException e) {
+			Log.d("DroidWall", "Error sampling rule counters: " + e);
+			return false;
+		}
+		final String output = res.toString();
+		final int pos = output.indexOf(separator);
+		if (pos == -1) {
+			return false;
+		}
+		hitOrderWifi.sample(output.substring(0, pos));
+		hitOrder3g.sample(output.substring(pos + separator.length()));
+		final boolean changedWifi = hitOrderWifi.update();
+		final boolean changed3g = hitOrder3g.update();
+		return changedWifi || changed3g;
+	}
+	/**
+	 * Apply the rules using nftables.
+	 * If only the selected UIDs have changed since the last time, just the UID sets are updated,
+	 * otherwise the whole droidwall table is replaced, and the iptables chains are flushed.
+	 * @param ctx application context (mandatory)
+	 * @param previous rules applied last time with nftables (null for none)
+	 * @param ruleset rules to apply
+	 * @return true if the rules were applied
+	 */
+	private static boolean applyNftRules(Context ctx, RuleSet previous, RuleSet ruleset) {
+		final NftRuleRenderer nft = new NftRuleRenderer();
+		final StringBuilder script = new StringBuilder();
+		script.append(scriptHeader(ctx));
+		if (ruleset.sameHeader(previous)) {
+			final String update = nft.update(previous, ruleset);
+			if (update.length() == 0) {
+				// nothing has changed
+				return true;
+			}
+			script.append("$NFT -f - <<'" + RESTORE_EOF + "' || exit\n");
+			script.append(update);
+			script.append(RESTORE_EOF + "\n");
+		} else {
+			script.append("$NFT -f - <<'" + RESTORE_EOF + "' || exit\n");
+			script.append(nft.render(ruleset));
+			script.append(RESTORE_EOF + "\n");
+			script.append("" +
+				"# Do not filter twice - stop jumping into the iptables chains\n" +
+				"$IPTABLES -F droidwall >/dev/null 2>/dev/null\n" +
+				"exit 0\n" +
+			"");
+		}
+		try {
+			final StringBuilder res = new StringBuilder();
+			if (runScriptAsRoot(ctx, script.toString(), res) == 0) {
+				return true;
+			}
+			Log.d("DroidWall", res.toString());
+		} catch (Exception e) {
+			Log.d("DroidWall", "Error applying nftables rules: " + e);
+		}
+		return false;
+	}
+	/**
+	 * Render the script that purges and re-adds all rules.
+	 * The rules are committed with iptables-restore if available, or added one by one otherwise.
+	 * If the rules of the other profiles are given, the chains of all profiles are installed, and
+	 * the main chain just jumps to the chains of the active profile.
+	 * @param ctx application context (mandatory)
+	 * @param ruleset rules to apply
+	 * @param others rules of the other profiles (null to install the active rules only)
+	 * @return root script
+	 */
+	private static String renderScript(Context ctx, RuleSet ruleset, Map<Integer, RuleSet> others) {
+		final RuleRenderer shell = new ShellRuleRenderer();
+		final RuleRenderer restore = new RestoreRuleRenderer();
+		final String customScript = ruleset.getCustomScript();
+		final boolean hasCustomScript = customScript.length() > 0;
+		final List<RuleSet> rulesets = new ArrayList<RuleSet>();
+		rulesets.add(ruleset);
+		if (others != null) {
+			rulesets.addAll(others.values());
+		}
+		final List<String> chainList = new ArrayList<String>();
+		if (others != null) {
+			chainList.add(RuleSet.CHAIN_MAIN);
+		}
+		for (final RuleSet r : rulesets) {
+			chainList.addAll(Arrays.asList(r.getChains()));
+		}
+		final String chains[] = chainList.toArray(new String[chainList.size()]);
+		final List<RuleSet.Rule> rules = new ArrayList<RuleSet.Rule>();
+		for (final RuleSet r : rulesets) {
+			rules.addAll(r.getRules());
+		}
+		if (others != null) {
+			// single rule retargeted when switching profiles
+			rules.add(new RuleSet.Rule(RuleSet.CHAIN_MAIN, "-j " + ruleset.getMainChain(), false, false));
+		}
+		final List<RuleSet.Rule> rejectRules = new ArrayList<RuleSet.Rule>();
+		for (final RuleSet r : rulesets) {
+			rejectRules.addAll(r.getRejectRules());
+		}
+    	final StringBuilder script = new StringBuilder();
+		script.append(scriptHeader(ctx));
+		script.append("" +
+			"$IPTABLES --version || exit 1\n" +
+			"# Create the droidwall chains if necessary\n" +
+		"");
+		for (int i=0; i<chains.length; i++) {
+			script.append("$IPTABLES -L ").append(chains[i]).append(" >/dev/null 2>/dev/null || $IPTABLES --new ")
+				.append(chains[i]).append(" || exit ").append(2 + Math.min(i, 3)).append('\n');
+		}
+		script.append("" +
+			"# Add droidwall chain to OUTPUT chain if necessary\n" +
+			"$IPTABLES -L OUTPUT | $GREP -q droidwall || $IPTABLES -A OUTPUT -j droidwall || exit 6\n" +
+			"# Remove the nftables rules, if any\n" +
+			"if [ -n \"$NFT\" ] ; then\n" +
+			"	$NFT delete table " + NftRuleRenderer.TABLE + " >/dev/null 2>/dev/null\n" +
+			"fi\n" +
+			"# Try to commit all rules in a single transaction using iptables-restore\n" +
+			"RESTORED=0\n" +
+			"if [ -n \"$IPTABLES_RESTORE\" ] ; then\n" +
+			"$IPTABLES_RESTORE --noflush <<'" + RESTORE_EOF + "' && RESTORED=1\n" +
+		"");
+		restore.begin(script, chains);
+		restore.append(script, rejectRules);
+		if (!hasCustomScript) {
+			// No custom script in between, so everything goes on the same transaction
+			restore.append(script, rules);
+		}
+		restore.commit(script);
+		script.append("" +
+			RESTORE_EOF + "\n" +
+			"fi\n" +
+			"if [ $RESTORED = 0 ] ; then\n" +
+			"# Fallback: flush existing rules and add them one by one\n" +
+		"");
+		shell.begin(script, chains);
+		shell.append(script, rejectRules);
+		if (!hasCustomScript) {
+			shell.append(script, rules);
+		}
+		shell.commit(script);
+		script.append("fi\n");
+		if (hasCustomScript) {
+			script.append("\n# BEGIN OF CUSTOM SCRIPT (user-defined)\n");
+			script.append(customScript);
+			script.append("\n# END OF CUSTOM SCRIPT (user-defined)\n\n");
+			// The remaining rules must be added after the custom script
+			script.append("" +
+				"if [ $RESTORED = 1 ] ; then\n" +
+				"$IPTABLES_RESTORE --noflush <<'" + RESTORE_EOF + "' || exit 12\n" +
+			"");
+			restore.begin(script, null);
+			restore.append(script, rules);
+			restore.commit(script);
+			script.append("" +
+				RESTORE_EOF + "\n" +
+				"else\n" +
+			"");
+			shell.begin(script, null);
+			shell.append(script, rules);
+			shell.commit(script);
+			script.append("fi\n");
+		}
+		return script.toString();
+	}
+	/**
+	 * Update the per-application rules, deleting and inserting only the ones that have changed
+	 * since the last time the rules were applied.
+	 * @param ctx application context (mandatory)
+	 * @param previous rules applied last time
+	 * @param ruleset new rules to apply (must have the same header as previous)
+	 * @return true if the rules were updated
+	 */
+	private static boolean applyIncrementalRules(Context ctx, RuleSet previous, RuleSet ruleset) {
+		final List<RuleSet.Rule> deleted = new ArrayList<RuleSet.Rule>();
+		final List<RuleSet.Rule> inserted = new ArrayList<RuleSet.Rule>();
+		for (final RuleSet.Rule rule : previous.getPerAppRules()) {
+			if (!ruleset.getPerAppRules().contains(rule)) deleted.add(rule);
+		}
+		for (final RuleSet.Rule rule : ruleset.getPerAppRules()) {
+			if (!previous.getPerAppRules().contains(rule)) inserted.add(rule);
+		}
+		if (deleted.isEmpty() && inserted.isEmpty()) {
+			// nothing has changed
+			return true;
+		}
+		// Each rule is inserted at its position on the new rule set (the others keep their relative order)
+		final int positions[] = ruleset.positionsOf(inserted);
+		final RuleRenderer shell = new ShellRuleRenderer();
+		final RuleRenderer restore = new RestoreRuleRenderer();
+		final StringBuilder script = new StringBuilder();
+		script.append(scriptHeader(ctx));
+		script.append("" +
+			"if [ -n \"$IPTABLES_RESTORE\" ] ; then\n" +
+			"$IPTABLES_RESTORE --noflush <<'" + RESTORE_EOF + "' || exit\n" +
+		"");
+		restore.begin(script, null);
+		restore.update(script, deleted, inserted, positions);
+		restore.commit(script);
+		script.append("" +
+			RESTORE_EOF + "\n" +
+			"else\n" +
+		"");
+		shell.begin(script, null);
+		shell.update(script, deleted, inserted, positions);
+		shell.commit(script);
+		script.append("fi\n");
+		try {
+			final StringBuilder res = new StringBuilder();
+			if (runScriptAsRoot(ctx, script.toString(), res) == 0) {
+				return true;
+			}
+			Log.d("DroidWall", res.toString());
+		} catch (Exception e) {
+			Log.d("DroidWall", "Error applying incremental rules: " + e);
+		}
+		return false;
+	}
     /**
      * Purge and re-add all saved rules (not in-memory ones).
      * This is much faster than just calling "applyIptablesRules", since it don't need to read installed applications.
+     * The rules are changed by the {@link ApplyScheduler} thread, and this method waits for the result,
+     * so it must not be called on the UI thread (see {@link ApplyScheduler#request(Context, int, ApplyScheduler.Callback)}).
      * @param ctx application context (mandatory)
      * @param showErrors indicates if errors should be alerted
      */
@@ -336,38 +764,36 @@ public final class Api {
 		if (ctx == null) {
 			return false;
 		}
-		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
-		final String savedUids_wifi = prefs.getString(PREF_WIFI_UIDS, "");
-		final String savedUids_3g = prefs.getString(PREF_3G_UIDS, "");
-		final List<Integer> uids_wifi = new LinkedList<Integer>();
-		if (savedUids_wifi.length() > 0) {
-			// Check which applications are allowed on wifi
-			final StringTokenizer tok = new StringTokenizer(savedUids_wifi, "|");
-			while (tok.hasMoreTokens()) {
-				final String uid = tok.nextToken();
-				if (!uid.equals("")) {
-					try {
-						uids_wifi.add(Integer.parseInt(uid));
-					} catch (Exception ex) {
-					}
-				}
-			}
+		final StringBuilder errors = new StringBuilder();
+		final boolean ok = ApplyScheduler.requestAndWait(ctx, ApplyScheduler.APPLY, errors);
+		if (showErrors && errors.length() > 0) {
+			alert(ctx, errors);
 		}
-		final List<Integer> uids_3g = new LinkedList<Integer>();
-		if (savedUids_3g.length() > 0) {
-			// Check which applications are allowed on 2G/3G
-			final StringTokenizer tok = new StringTokenizer(savedUids_3g, "|");
-			while (tok.hasMoreTokens()) {
-				final String uid = tok.nextToken();
-				if (!uid.equals("")) {
-					try {
-						uids_3g.add(Integer.parseInt(uid));
-					} catch (Exception ex) {
-					}
-				}
-			}
+		return ok;
+	}
+	/**
+	 * Purge and re-add all saved rules (internal implementation, only called by the {@link ApplyScheduler} thread).
+	 * If only the active profile has changed since the last call, the main chain is just retargeted to its chains.
+	 * @param ctx application context (mandatory)
+	 * @param errors receives the error message, if any
+	 * @return true if the rules were applied
+	 */
+	static boolean applySavedRules(Context ctx, StringBuilder errors) {
+		// make sure the rules being applied are persisted first
+		DeferredWriter.flush();
+		final RuleSet previous = lastApplied;
+		final int active = getActiveProfile(ctx);
+		boolean ok = previous != null && !previous.getMainChain().equals(RuleSet.profileChain(active)) && applyProfileChains(ctx, active);
+		if (!ok) {
+			final UidSet selected[] = getSelectedUids(ctx);
+			ok = applyIptablesRulesImpl(ctx, selected[UidStore.WIFI], selected[UidStore.MOBILE], errors);
 		}
-		return applyIptablesRulesImpl(ctx, uids_wifi, uids_3g, showErrors);
+		final RuleSet applied = lastApplied;
+		if (ok && applied != null) {
+			// blocked packets are collected while they are logged
+			LogService.update(ctx, applied.isLogEnabled());
+		}
+		return ok;
 	}
 	
     /**
@@ -388,38 +814,421 @@ public final class Api {
 	 * @param ctx application context (mandatory)
 	 */
 	public static void saveRules(Context ctx) {
-		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
 		final DroidApp[] apps = getApps(ctx);
-		// Builds a pipe-separated list of names
-		final StringBuilder newuids_wifi = new StringBuilder();
-		final StringBuilder newuids_3g = new StringBuilder();
+		// Builds the list of selected UIDs
+		int count_wifi = 0, count_3g = 0;
+		for (int i=0; i<apps.length; i++) {
+			if (apps[i].selected_wifi) count_wifi++;
+			if (apps[i].selected_3g) count_3g++;
+		}
+		final int newuids_wifi[] = new int[count_wifi];
+		final int newuids_3g[] = new int[count_3g];
+		count_wifi = count_3g = 0;
 		for (int i=0; i<apps.length; i++) {
 			if (apps[i].selected_wifi) {
-				if (newuids_wifi.length() != 0) newuids_wifi.append('|');
-				newuids_wifi.append(apps[i].uid);
+				newuids_wifi[count_wifi++] = apps[i].uid;
 			}
 			if (apps[i].selected_3g) {
-				if (newuids_3g.length() != 0) newuids_3g.append('|');
-				newuids_3g.append(apps[i].uid);
+				newuids_3g[count_3g++] = apps[i].uid;
+			}
+		}
+		// save the new list of UIDs (unless just the labels or the order have changed)
+		final UidSet selected[] = getSelectedUids(ctx);
+		final int version = newSelectedVersion();
+		final UidSet uidsWifi = UidSet.of(newuids_wifi, version);
+		final UidSet uids3g = UidSet.of(newuids_3g, version);
+		if (!uidsWifi.sameUids(selected[UidStore.WIFI]) || !uids3g.sameUids(selected[UidStore.MOBILE])) {
+			saveSelectedUids(ctx, uidsWifi, uids3g);
+		}
+		saveSnapshot(ctx, apps);
+    }
+	/**
+	 * @param ctx application context (mandatory)
+	 * @return the storage of the selected UIDs
+	 */
+	private static synchronized UidStore getUidStore(Context ctx) {
+		if (uidStore == null) {
+			uidStore = new UidStore(new File(ctx.getFilesDir(), UIDS_FILE));
+		}
+		return uidStore;
+	}
+	/**
+	 * Get the selected UIDs, loading them if necessary.
+	 * The old pipe-separated preferences are migrated to the binary storage the first time.
+	 * @param ctx application context (mandatory)
+	 * @return selected UIDs, indexed by UidStore.WIFI and UidStore.MOBILE
+	 */
+	private static synchronized UidSet[] getSelectedUids(Context ctx) {
+		if (selectedUids != null) {
+			return selectedUids.clone();
+		}
+		final UidSet selected[] = new UidSet[UidStore.CLASSES];
+		final int stored[][] = getUidStore(ctx).read();
+		if (stored != null) {
+			for (int i=0; i<UidStore.CLASSES; i++) {
+				selected[i] = UidSet.fromSorted(stored[i], selectedVersion);
+			}
+			selectedUids = selected;
+			return selected.clone();
+		}
+		// allowed application UIDs separated by pipe '|' (old format)
+		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
+		selected[UidStore.WIFI] = UidSet.of(UidList.parse(prefs.getString(PREF_WIFI_UIDS, "")), selectedVersion);
+		selected[UidStore.MOBILE] = UidSet.of(UidList.parse(prefs.getString(PREF_3G_UIDS, "")), selectedVersion);
+		if (prefs.contains(PREF_WIFI_UIDS) || prefs.contains(PREF_3G_UIDS)) {
+			Log.d("DroidWall", "Migrating the selected UIDs to " + UIDS_FILE);
+			saveSelectedUids(ctx, selected[UidStore.WIFI], selected[UidStore.MOBILE]);
+		} else {
+			selectedUids = selected;
+		}
+		return selected.clone();
+	}
+	/**
+	 * @return a new version number for the selected UIDs
+	 */
+	private static synchronized int newSelectedVersion() {
+		return ++selectedVersion;
+	}
+	/**
+	 * Save the selected UIDs.
+	 * The new UIDs are visible to all readers right away, but they are written on background.
+	 * @param ctx application context (mandatory)
+	 * @param uidsWifi selected UIDs for WIFI
+	 * @param uids3g selected UIDs for 2G/3G
+	 */
+	private static synchronized void saveSelectedUids(Context ctx, UidSet uidsWifi, UidSet uids3g) {
+		// share the new UIDs with all readers
+		selectedUids = new UidSet[UidStore.CLASSES];
+		selectedUids[UidStore.WIFI] = uidsWifi;
+		selectedUids[UidStore.MOBILE] = uids3g;
+		final int selected[][] = new int[UidStore.CLASSES][];
+		selected[UidStore.WIFI] = uidsWifi.toArray();
+		selected[UidStore.MOBILE] = uids3g.toArray();
+		final Context appctx = ctx.getApplicationContext();
+		DeferredWriter.schedule(UIDS_FILE, new Runnable() {
+			public void run() {
+				writeSelectedUids(appctx, selected);
+			}
+		});
+	}
+	/**
+	 * Save the selected UIDs derived from others, unless the selected UIDs have changed meanwhile.
+	 * @param ctx application context (mandatory)
+	 * @param base selected UIDs the new ones were derived from (as returned by getSelectedUids)
+	 * @param uidsWifi selected UIDs for WIFI
+	 * @param uids3g selected UIDs for 2G/3G
+	 * @return true if the UIDs were saved, false if base is stale
+	 */
+	private static synchronized boolean replaceSelectedUids(Context ctx, UidSet base[], UidSet uidsWifi, UidSet uids3g) {
+		final UidSet current[] = getSelectedUids(ctx);
+		for (int i=0; i<UidStore.CLASSES; i++) {
+			if (current[i].getVersion() != base[i].getVersion()) {
+				return false;
 			}
 		}
-		// save the new list of UIDs
+		saveSelectedUids(ctx, uidsWifi, uids3g);
+		return true;
+	}
+	/**
+	 * Write the selected UIDs.
+	 * If the binary storage cannot be written, the UIDs are saved on the preferences (and migrated again later).
+	 * @param ctx application context (mandatory)
+	 * @param selected selected UIDs, indexed by UidStore.WIFI and UidStore.MOBILE
+	 */
+	private static void writeSelectedUids(Context ctx, int selected[][]) {
+		final UidStore store = getUidStore(ctx);
+		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
 		final Editor edit = prefs.edit();
-		edit.putString(PREF_WIFI_UIDS, newuids_wifi.toString());
-		edit.putString(PREF_3G_UIDS, newuids_3g.toString());
+		try {
+			store.write(selected);
+			if (!prefs.contains(PREF_WIFI_UIDS) && !prefs.contains(PREF_3G_UIDS)) {
+				return;
+			}
+			// the old preferences are not necessary anymore
+			edit.remove(PREF_WIFI_UIDS);
+			edit.remove(PREF_3G_UIDS);
+		} catch (IOException e) {
+			Log.e("DroidWall", "Error saving the selected UIDs: " + e);
+			store.delete();
+			edit.putString(PREF_WIFI_UIDS, UidList.format(selected[UidStore.WIFI], selected[UidStore.WIFI].length));
+			edit.putString(PREF_3G_UIDS, UidList.format(selected[UidStore.MOBILE], selected[UidStore.MOBILE].length));
+		}
 		edit.commit();
-    }
+	}
+	/**
+	 * @param ctx application context (mandatory)
+	 * @return ids of all profiles, in creation order
+	 */
+	public static int[] getProfiles(Context ctx) {
+		final int profiles[] = UidList.parse(ctx.getSharedPreferences(PREFS_NAME, 0).getString(PREF_PROFILES, ""));
+		return (profiles.length > 0) ? profiles : new int[] {DEFAULT_PROFILE};
+	}
+	/**
+	 * @param ctx application context (mandatory)
+	 * @return id of the active profile
+	 */
+	public static int getActiveProfile(Context ctx) {
+		return ctx.getSharedPreferences(PREFS_NAME, 0).getInt(PREF_PROFILE, DEFAULT_PROFILE);
+	}
+	/**
+	 * @param ctx application context (mandatory)
+	 * @param profile profile id
+	 * @return profile name
+	 */
+	public static String getProfileName(Context ctx, int profile) {
+		final String name = ctx.getSharedPreferences(PREFS_NAME, 0).getString(profileKey(profile, PREF_PROFILE_NAME), "");
+		if (name.length() > 0) {
+			return name;
+		}
+		return (profile == DEFAULT_PROFILE) ? "Default" : "Profile " + profile;
+	}
+	/**
+	 * @param ctx application context (mandatory)
+	 * @param name profile name (case-insensitive)
+	 * @return the profile id, or -1 if not found
+	 */
+	public static int findProfile(Context ctx, String name) {
+		for (final int profile : getProfiles(ctx)) {
+			if (getProfileName(ctx, profile).equalsIgnoreCase(name)) {
+				return profile;
+			}
+		}
+		return -1;
+	}
+	/**
+	 * Create a new profile, starting with the settings of the active profile.
+	 * @param ctx application context (mandatory)
+	 * @param name profile name
+	 * @return the new profile id
+	 */
+	public static int addProfile(Context ctx, String name) {
+		synchronized (profilesLock) {
+			final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
+			final int profiles[] = getProfiles(ctx);
+			int id = DEFAULT_PROFILE;
+			for (final int profile : profiles) {
+				id = Math.max(id, profile);
+			}
+			id++;
+			final int newprofiles[] = new int[profiles.length + 1];
+			System.arraycopy(profiles, 0, newprofiles, 0, profiles.length);
+			newprofiles[profiles.length] = id;
+			saveProfileUids(ctx, id, getSelectedUids(ctx));
+			final Editor edit = prefs.edit();
+			edit.putString(profileKey(id, PREF_PROFILE_NAME), name);
+			edit.putString(profileKey(id, PREF_MODE), prefs.getString(PREF_MODE, MODE_WHITELIST));
+			edit.putBoolean(profileKey(id, PREF_LOGENABLED), prefs.getBoolean(PREF_LOGENABLED, false));
+			edit.putString(PREF_PROFILES, UidList.format(newprofiles, newprofiles.length));
+			edit.commit();
+			return id;
+		}
+	}
+	/**
+	 * Remove a profile (the active profile cannot be removed).
+	 * @param ctx application context (mandatory)
+	 * @param profile profile id
+	 * @return true if the profile was removed
+	 */
+	public static boolean removeProfile(Context ctx, int profile) {
+		synchronized (profilesLock) {
+			final int profiles[] = getProfiles(ctx);
+			if (profile == getActiveProfile(ctx) || profiles.length < 2) {
+				return false;
+			}
+			final int newprofiles[] = new int[profiles.length - 1];
+			int count = 0;
+			for (final int p : profiles) {
+				if (p != profile && count < newprofiles.length) newprofiles[count++] = p;
+			}
+			if (count != newprofiles.length) {
+				// not found
+				return false;
+			}
+			final Editor edit = ctx.getSharedPreferences(PREFS_NAME, 0).edit();
+			edit.remove(profileKey(profile, PREF_PROFILE_NAME));
+			edit.remove(profileKey(profile, PREF_MODE));
+			edit.remove(profileKey(profile, PREF_LOGENABLED));
+			edit.putString(PREF_PROFILES, UidList.format(newprofiles, newprofiles.length));
+			edit.commit();
+			DeferredWriter.flush();
+			getProfileStore(ctx, profile).delete();
+			return true;
+		}
+	}
+	/**
+	 * Switch to another profile.
+	 * The settings of the active profile are saved on it, and the settings of the new profile become the current ones.
+	 * If the firewall is enabled and the chains of the new profile are installed, the main chain is
+	 * just retargeted to them, otherwise all rules are applied again.
+	 * This waits for the rules to be changed, so it must not be called on the UI thread.
+	 * @param ctx application context (mandatory)
+	 * @param profile profile id
+	 * @return true if the profile is now active (and its rules applied, if the firewall is enabled)
+	 */
+	public static boolean switchProfile(Context ctx, int profile) {
+		synchronized (profilesLock) {
+			final int active = getActiveProfile(ctx);
+			if (profile == active) {
+				return true;
+			}
+			boolean found = false;
+			for (final int p : getProfiles(ctx)) {
+				if (p == profile) found = true;
+			}
+			if (!found) {
+				return false;
+			}
+			final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
+			// the saved settings of the new profile may still be on the way to disk
+			DeferredWriter.flush();
+			final UidSet uids[] = readProfileUids(ctx, profile);
+			// keep the settings of the active profile on it
+			saveProfileUids(ctx, active, getSelectedUids(ctx));
+			final Editor edit = prefs.edit();
+			edit.putString(profileKey(active, PREF_MODE), prefs.getString(PREF_MODE, MODE_WHITELIST));
+			edit.putBoolean(profileKey(active, PREF_LOGENABLED), prefs.getBoolean(PREF_LOGENABLED, false));
+			// the settings of the new profile become the current ones
+			edit.putString(PREF_MODE, prefs.getString(profileKey(profile, PREF_MODE), MODE_WHITELIST));
+			edit.putBoolean(PREF_LOGENABLED, prefs.getBoolean(profileKey(profile, PREF_LOGENABLED), false));
+			edit.putInt(PREF_PROFILE, profile);
+			edit.commit();
+			saveSelectedUids(ctx, uids[UidStore.WIFI], uids[UidStore.MOBILE]);
+			synchronized (applicationsLock) {
+				if (applications != null) {
+					for (final DroidApp app : applications) {
+						app.selected_wifi = uids[UidStore.WIFI].contains(app.uid);
+						app.selected_3g = uids[UidStore.MOBILE].contains(app.uid);
+					}
+				}
+			}
+		}
+		boolean ok = true;
+		if (isEnabled(ctx)) {
+			ok = ApplyScheduler.requestAndWait(ctx, ApplyScheduler.APPLY, null);
+		}
+		/* notify */
+		final Intent message = new Intent(Api.PROFILE_CHANGED_MSG);
+		message.putExtra(Api.PROFILE_EXTRA, getProfileName(ctx, profile));
+		ctx.sendBroadcast(message);
+		return ok;
+	}
+	/**
+	 * Activate the chains of a profile by retargeting the main chain to them.
+	 * The profile chains are updated first if its rules have changed since they were installed.
+	 * @param ctx application context (mandatory)
+	 * @param profile profile id (must be the active profile already)
+	 * @return true if the profile chains were activated, false if all rules must be applied again
+	 */
+	private static boolean applyProfileChains(Context ctx, int profile) {
+		final HashMap<Integer, RuleSet> installed = installedProfiles;
+		if (installed == null || lastAppliedNft || !installed.containsKey(profile)) {
+			return false;
+		}
+		final UidSet selected[] = getSelectedUids(ctx);
+		final RuleSet ruleset = buildRuleSet(ctx, selected[UidStore.WIFI], selected[UidStore.MOBILE]);
+		final RuleSet previous = installed.get(profile);
+		if (!ruleset.getMainChain().equals(previous.getMainChain()) || !ruleset.canUpdate(previous)
+				|| !sameProfiles(installed, getProfiles(ctx)) || !applyIncrementalRules(ctx, previous, ruleset)) {
+			return false;
+		}
+		final StringBuilder res = new StringBuilder();
+		try {
+			final String script = scriptHeader(ctx) +
+				"$IPTABLES -R " + RuleSet.CHAIN_MAIN + " 1 -j " + ruleset.getMainChain() + " || exit\n";
+			if (runScriptAsRoot(ctx, script, res) != 0) {
+				Log.d("DroidWall", "Error switching profile: " + res);
+				return false;
+			}
+		} catch (IOException e) {
+			Log.d("DroidWall", "Error switching profile: " + e);
+			return false;
+		}
+		lastApplied = ruleset;
+		installRuleSet(installed, profile, ruleset);
+		return true;
+	}
+	/**
+	 * @param profile profile id
+	 * @param pref preference name
+	 * @return name of the preference saved on a profile
+	 */
+	private static String profileKey(int profile, String pref) {
+		return PREF_PROFILE_PREFIX + profile + "." + pref;
+	}
+	/**
+	 * @param ctx application context (mandatory)
+	 * @param profile profile id
+	 * @return the storage of the UIDs saved on a profile
+	 */
+	private static UidStore getProfileStore(Context ctx, int profile) {
+		return new UidStore(new File(ctx.getFilesDir(), PROFILE_FILE_PREFIX + profile + ".bin"));
+	}
+	/**
+	 * Read the UIDs saved on a profile.
+	 * @param ctx application context (mandatory)
+	 * @param profile profile id
+	 * @return selected UIDs, indexed by UidStore.WIFI and UidStore.MOBILE (empty if none were saved)
+	 */
+	private static UidSet[] readProfileUids(Context ctx, int profile) {
+		final int saved[][] = getProfileStore(ctx, profile).read();
+		final int version = newSelectedVersion();
+		final UidSet selected[] = new UidSet[UidStore.CLASSES];
+		selected[UidStore.WIFI] = (saved != null) ? UidSet.of(saved[UidStore.WIFI], version) : UidSet.EMPTY;
+		selected[UidStore.MOBILE] = (saved != null) ? UidSet.of(saved[UidStore.MOBILE], version) : UidSet.EMPTY;
+		return selected;
+	}
+	/**
+	 * Save the UIDs of a profile on background (errors are only logged).
+	 * @param ctx application context (mandatory)
+	 * @param profile profile id
+	 * @param uids selected UIDs, indexed by UidStore.WIFI and UidStore.MOBILE
+	 */
+	private static void saveProfileUids(Context ctx, final int profile, UidSet uids[]) {
+		final UidStore store = getProfileStore(ctx, profile);
+		final int selected[][] = new int[UidStore.CLASSES][];
+		selected[UidStore.WIFI] = uids[UidStore.WIFI].toArray();
+		selected[UidStore.MOBILE] = uids[UidStore.MOBILE].toArray();
+		DeferredWriter.schedule(PROFILE_FILE_PREFIX + profile, new Runnable() {
+			public void run() {
+				try {
+					store.write(selected);
+				} catch (IOException e) {
+					Log.e("DroidWall", "Error saving the UIDs of profile " + profile + ": " + e);
+				}
+			}
+		});
+	}
     
     /**
      * Purge all iptables rules.
+     * The rules are changed by the {@link ApplyScheduler} thread, and this method waits for the result,
+     * so it must not be called on the UI thread.
      * @param ctx mandatory context
      * @param showErrors indicates if errors should be alerted
      * @return true if the rules were purged
      */
 	public static boolean purgeIptables(Context ctx, boolean showErrors) {
+		final StringBuilder errors = new StringBuilder();
+		final boolean ok = ApplyScheduler.requestAndWait(ctx, ApplyScheduler.PURGE, errors);
+		if (showErrors && errors.length() > 0) {
+			alert(ctx, errors);
+		}
+		return ok;
+	}
+    /**
+     * Purge all iptables rules (internal implementation, only called by the {@link ApplyScheduler} thread).
+     * @param ctx mandatory context
+     * @param errors receives the error message, if any
+     * @return true if the rules were purged
+     */
+	static boolean purgeRules(Context ctx, StringBuilder errors) {
     	final StringBuilder res = new StringBuilder();
+		// The next apply must rebuild all rules
+		lastApplied = null;
+		lastAppliedNft = false;
+		installedProfiles = null;
 		try {
-			assertBinaries(ctx, showErrors);
+			assertBinaries(ctx, errors, false);
 			// Custom "shutdown" script
 			final String customScript = ctx.getSharedPreferences(Api.PREFS_NAME, 0).getString(Api.PREF_CUSTOMSCRIPT2, "");
 	    	final StringBuilder script = new StringBuilder();
@@ -430,6 +1239,18 @@ public final class Api {
 					"$IPTABLES -F droidwall-3g\n" +
 					"$IPTABLES -F droidwall-wifi\n" +
 	    			"");
+	    	for (final int profile : getProfiles(ctx)) {
+	    		final String chain = RuleSet.profileChain(profile);
+	    		script.append("$IPTABLES -F ").append(chain).append(" 2>/dev/null\n");
+	    		script.append("$IPTABLES -F ").append(chain).append(RuleSet.SUFFIX_REJECT).append(" 2>/dev/null\n");
+	    		script.append("$IPTABLES -F ").append(chain).append(RuleSet.SUFFIX_3G).append(" 2>/dev/null\n");
+	    		script.append("$IPTABLES -F ").append(chain).append(RuleSet.SUFFIX_WIFI).append(" 2>/dev/null\n");
+	    	}
+	    	script.append("" +
+					"if [ -n \"$NFT\" ] ; then\n" +
+					"	$NFT delete table " + NftRuleRenderer.TABLE + " >/dev/null 2>/dev/null\n" +
+					"fi\n" +
+	    			"");
 	    	if (customScript.length() > 0) {
 				script.append("\n# BEGIN OF CUSTOM SCRIPT (user-defined)\n");
 				script.append(customScript);
@@ -437,56 +1258,70 @@ public final class Api {
 	    	}
 			int code = runScriptAsRoot(ctx, script.toString(), res);
 			if (code == -1) {
-				if (showErrors) alert(ctx, "Error purging iptables. exit code: " + code + "\n" + res);
+				errors.append("Error purging iptables. exit code: " + code + "\n" + res);
 				return false;
 			}
+			LogService.update(ctx, false);
 			return true;
 		} catch (Exception e) {
-			if (showErrors) alert(ctx, "Error purging iptables: " + e);
+			errors.append("Error purging iptables: " + e);
 			return false;
 		}
     }
 	
 	/**
-	 * Display iptables rules output
+	 * Read the iptables rules, for display.
+	 * The root commands wait for any rules being applied, so this must not be called on the UI thread.
 	 * @param ctx application context
+	 * @return iptables rules output (or the error message)
 	 */
-	public static void showIptablesRules(Context ctx) {
+	public static String getIptablesRules(Context ctx) {
 		try {
     		final StringBuilder res = new StringBuilder();
 			runScriptAsRoot(ctx, scriptHeader(ctx) +
 								 "$ECHO $IPTABLES\n" +
 								 "$IPTABLES -L -v -n\n", res);
-			alert(ctx, res);
+			return res.toString();
 		} catch (Exception e) {
-			alert(ctx, "error: " + e);
+			return "error: " + e;
 		}
 	}
 
 	/**
-	 * Display logs
+	 * Clear logs.
+	 * The root commands wait for any rules being applied, so this must not be called on the UI thread.
 	 * @param ctx application context
-     * @return true if the clogs were cleared
+	 * @param errors receives the error message, if any
+     * @return true if the logs were cleared
 	 */
-	public static boolean clearLog(Context ctx) {
+	public static boolean clearLog(Context ctx, StringBuilder errors) {
+		LogService.clear(ctx);
 		try {
 			final StringBuilder res = new StringBuilder();
 			int code = runScriptAsRoot(ctx, "dmesg -c >/dev/null || exit\n", res);
 			if (code != 0) {
-				alert(ctx, res);
+				errors.append(res);
 				return false;
 			}
 			return true;
 		} catch (Exception e) {
-			alert(ctx, "error: " + e);
+			errors.append("error: " + e);
 		}
 		return false;
 	}
 	/**
-	 * Display logs
+	 * Read the blocked packets log, for display.
+	 * The kernel log may be read as root, so this must not be called on the UI thread.
 	 * @param ctx application context
+	 * @return summary of the blocked packets (or the error message)
 	 */
-	public static void showLog(Context ctx) {
+	public static String getLog(Context ctx) {
+		final LogCollector collector = LogService.getCollector();
+		if (collector != null) {
+			// the collector has already read the log
+			final String res = collector.format(getAppNames(ctx));
+			return (res.length() == 0) ? "Log is empty" : res;
+		}
 		try {
     		StringBuilder res = new StringBuilder();
 			int code = runScriptAsRoot(ctx, scriptHeader(ctx) +
@@ -495,181 +1330,124 @@ public final class Api {
 				if (res.length() == 0) {
 					res.append("Log is empty");
 				}
-				alert(ctx, res);
-				return;
-			}
-			final BufferedReader r = new BufferedReader(new StringReader(res.toString()));
-			final Integer unknownUID = -99;
-			res = new StringBuilder();
-			String line;
-			int start, end;
-			Integer appid;
-			final HashMap<Integer, LogInfo> map = new HashMap<Integer, LogInfo>();
-			LogInfo loginfo = null;
-			while ((line = r.readLine()) != null) {
-				if (line.indexOf("[DROIDWALL]") == -1) continue;
-				appid = unknownUID;
-				if (((start=line.indexOf("UID=")) != -1) && ((end=line.indexOf(" ", start)) != -1)) {
-					appid = Integer.parseInt(line.substring(start+4, end));
-				}
-				loginfo = map.get(appid);
-				if (loginfo == null) {
-					loginfo = new LogInfo();
-					map.put(appid, loginfo);
-				}
-				loginfo.totalBlocked += 1;
-				if (((start=line.indexOf("DST=")) != -1) && ((end=line.indexOf(" ", start)) != -1)) {
-					String dst = line.substring(start+4, end);
-					if (loginfo.dstBlocked.containsKey(dst)) {
-						loginfo.dstBlocked.put(dst, loginfo.dstBlocked.get(dst) + 1);
-					} else {
-						loginfo.dstBlocked.put(dst, 1);
-					}
-				}
-			}
-			final DroidApp[] apps = getApps(ctx);
-			for (Integer id : map.keySet()) {
-				res.append("App ID ");
-				if (id != unknownUID) {
-					res.append(id);
-					for (DroidApp app : apps) {
-						if (app.uid == id) {
-							res.append(" (").append(app.names[0]);
-							if (app.names.length > 1) {
-								res.append(", ...)");
-							} else {
-								res.append(")");
-							}
-							break;
-						}
-					}
-				} else {
-					res.append("(kernel)");
-				}
-				loginfo = map.get(id);
-				res.append(" - Blocked ").append(loginfo.totalBlocked).append(" packets");
-				if (loginfo.dstBlocked.size() > 0) {
-					res.append(" (");
-					boolean first = true;
-					for (String dst : loginfo.dstBlocked.keySet()) {
-						if (!first) {
-							res.append(", ");
-						}
-						res.append(loginfo.dstBlocked.get(dst)).append(" packets for ").append(dst);
-						first = false;
-					}
-					res.append(")");
-				}
-				res.append("\n\n");
+				return res.toString();
 			}
+			final LogSummary summary = new LogSummary();
+			summary.parse(res.toString());
+			res = new StringBuilder(summary.format(getAppNames(ctx)));
 			if (res.length() == 0) {
 				res.append("Log is empty");
 			}
-			alert(ctx, res);
+			return res.toString();
 		} catch (Exception e) {
-			alert(ctx, "error: " + e);
+			return "error: " + e;
+		}
+	}
+
+	/**
+	 * @param ctx application context (mandatory)
+	 * @return application names per UID
+	 */
+	private static HashMap<Integer, String[]> getAppNames(Context ctx) {
+		final DroidApp[] apps = getApps(ctx);
+		final HashMap<Integer, String[]> names = new HashMap<Integer, String[]>();
+		for (final DroidApp app : apps) {
+			names.put(app.uid, app.names);
 		}
+		return names;
 	}
-
     /**
      * @param ctx application context (mandatory)
-     * @return a list of applications
+     * @return a list of applications, or null on error
      */
 	public static DroidApp[] getApps(Context ctx) {
+		return getApps(ctx, null);
+	}
+    /**
+     * @param ctx application context (mandatory)
+     * @param errors receives the error message, if any (may be null)
+     * @return a list of applications, or null on error
+     */
+	public static DroidApp[] getApps(Context ctx, StringBuilder errors) {
 		if (applications != null) {
 			// return cached instance
 			return applications;
 		}
-		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
-		// allowed application names separated by pipe '|' (persisted)
-		final String savedUids_wifi = prefs.getString(PREF_WIFI_UIDS, "");
-		final String savedUids_3g = prefs.getString(PREF_3G_UIDS, "");
-		int selected_wifi[] = new int[0];
-		int selected_3g[] = new int[0];
-		if (savedUids_wifi.length() > 0) {
-			// Check which applications are allowed
-			final StringTokenizer tok = new StringTokenizer(savedUids_wifi, "|");
-			selected_wifi = new int[tok.countTokens()];
-			for (int i=0; i<selected_wifi.length; i++) {
-				final String uid = tok.nextToken();
-				if (!uid.equals("")) {
-					try {
-						selected_wifi[i] = Integer.parseInt(uid);
-					} catch (Exception ex) {
-						selected_wifi[i] = -1;
-					}
-				}
-			}
-			// Sort the array to allow using "Arrays.binarySearch" later
-			Arrays.sort(selected_wifi);
-		}
-		if (savedUids_3g.length() > 0) {
-			// Check which applications are allowed
-			final StringTokenizer tok = new StringTokenizer(savedUids_3g, "|");
-			selected_3g = new int[tok.countTokens()];
-			for (int i=0; i<selected_3g.length; i++) {
-				final String uid = tok.nextToken();
-				if (!uid.equals("")) {
-					try {
-						selected_3g[i] = Integer.parseInt(uid);
-					} catch (Exception ex) {
-						selected_3g[i] = -1;
-					}
-				}
-			}
-			// Sort the array to allow using "Arrays.binarySearch" later
-			Arrays.sort(selected_3g);
+		return loadApps(ctx, true, errors);
+	}
+	/**
+	 * Load the list of installed applications from the package manager, saving a snapshot of it.
+	 * This may be called on background, so errors are returned instead of being displayed.
+	 * @param ctx application context (mandatory)
+	 * @param cache indicates if the list should be cached (the snapshot is always saved)
+	 * @param errors receives the error message, if any (may be null)
+	 * @return a list of applications, or null on error
+	 */
+	private static DroidApp[] loadApps(Context ctx, boolean cache, StringBuilder errors) {
+		final int version;
+		synchronized (applicationsLock) {
+			version = applicationsVersion;
 		}
+		// selected UIDs
+		final UidSet selected[] = getSelectedUids(ctx);
+		final UidSet selected_wifi = selected[UidStore.WIFI];
+		final UidSet selected_3g = selected[UidStore.MOBILE];
 		try {
 			final PackageManager pkgmanager = ctx.getPackageManager();
-			final List<ApplicationInfo> installed = pkgmanager.getInstalledApplications(0);
+			final LabelStore labelstore = getLabelStore(ctx);
+			final List<PackageInfo> list = pkgmanager.getInstalledPackages(0);
+			final ApplicationInfo installed[] = new ApplicationInfo[list.size()];
+			final int versions[] = new int[installed.length];
+			final HashSet<String> packages = new HashSet<String>();
+			for (int i=0; i<installed.length; i++) {
+				final PackageInfo pkginfo = list.get(i);
+				installed[i] = pkginfo.applicationInfo;
+				versions[i] = pkginfo.versionCode;
+				packages.add(pkginfo.packageName);
+			}
+			// check the permissions and read the labels in parallel
+			final String labels[] = new String[installed.length];
+			final boolean newlabels[] = new boolean[installed.length];
+			readLabels(pkgmanager, labelstore, installed, versions, labels, newlabels);
 			final HashMap<Integer, DroidApp> map = new HashMap<Integer, DroidApp>();
-			final Editor edit = prefs.edit();
-			boolean changed = false;
 			String name = null;
-			String cachekey = null;
 			DroidApp app = null;
-			for (final ApplicationInfo apinfo : installed) {
-				boolean firstseem = false;
-				app = map.get(apinfo.uid);
-				// filter applications which are not allowed to access the Internet
-				if (app == null && PackageManager.PERMISSION_GRANTED != pkgmanager.checkPermission(Manifest.permission.INTERNET, apinfo.packageName)) {
+			// merge the results in the original order, so shared user ids always list their names in the same order
+			for (int i=0; i<installed.length; i++) {
+				final ApplicationInfo apinfo = installed[i];
+				name = labels[i];
+				if (name == null) {
+					// not allowed to access the Internet
 					continue;
 				}
-				// try to get the application label from our cache - getApplicationLabel() is horribly slow!!!!
-				cachekey = "cache.label."+apinfo.packageName;
-				name = prefs.getString(cachekey, "");
-				if (name.length() == 0) {
-					// get label and put on cache
-					name = pkgmanager.getApplicationLabel(apinfo).toString();
-					edit.putString(cachekey, name);
-					changed = true;
-					firstseem = true;
+				final boolean firstseem = !labelstore.contains(apinfo.packageName);
+				if (newlabels[i]) {
+					// put the new label on cache (all labels are saved at once)
+					labelstore.put(apinfo.packageName, versions[i], name);
 				}
+				app = map.get(apinfo.uid);
 				if (app == null) {
 					app = new DroidApp();
 					app.uid = apinfo.uid;
 					app.names = new String[] { name };
+					app.packages = new String[] { apinfo.packageName };
 					app.appinfo = apinfo;
 					map.put(apinfo.uid, app);
 				} else {
-					final String newnames[] = new String[app.names.length + 1];
-					System.arraycopy(app.names, 0, newnames, 0, app.names.length);
-					newnames[app.names.length] = name;
-					app.names = newnames;
+					app.addPackage(apinfo.packageName, name);
 				}
 				app.firstseem = firstseem;
 				// check if this application is selected
-				if (!app.selected_wifi && Arrays.binarySearch(selected_wifi, app.uid) >= 0) {
+				if (!app.selected_wifi && selected_wifi.contains(app.uid)) {
 					app.selected_wifi = true;
 				}
-				if (!app.selected_3g && Arrays.binarySearch(selected_3g, app.uid) >= 0) {
+				if (!app.selected_3g && selected_3g.contains(app.uid)) {
 					app.selected_3g = true;
 				}
 			}
-			if (changed) {
-				edit.commit();
-			}
+			// forget the labels of packages that are not installed anymore
+			labelstore.retain(packages);
+			saveLabels(labelstore);
 			/* add special applications to the list */
 			final DroidApp special[] = {
 				new DroidApp(SPECIAL_UID_ANY,"(Any application) - Same as selecting all applications", false, false),
@@ -684,30 +1462,416 @@ public final class Api {
 				app = special[i];
 				if (app.uid != -1 && !map.containsKey(app.uid)) {
 					// check if this application is allowed
-					if (Arrays.binarySearch(selected_wifi, app.uid) >= 0) {
+					if (selected_wifi.contains(app.uid)) {
 						app.selected_wifi = true;
 					}
-					if (Arrays.binarySearch(selected_3g, app.uid) >= 0) {
+					if (selected_3g.contains(app.uid)) {
 						app.selected_3g = true;
 					}
 					map.put(app.uid, app);
 				}
 			}
 			/* convert the map into an array */
-			applications = map.values().toArray(new DroidApp[map.size()]);;
-			return applications;
+			final DroidApp apps[] = map.values().toArray(new DroidApp[map.size()]);
+			synchronized (applicationsLock) {
+				// do not cache the list if a package has changed in the meantime
+				if (cache && version == applicationsVersion) {
+					applications = apps;
+				}
+			}
+			saveSnapshot(ctx, apps);
+			return apps;
+		} catch (Exception e) {
+			Log.e("DroidWall", "Error loading the applications: " + e);
+			if (errors != null) errors.append("error: " + e);
+		}
+		return null;
+	}
+	/**
+	 * Load the last saved snapshot of the application list, if the list is not loaded yet.
+	 * The snapshot can be displayed right away, but it must be reconciled with the installed packages
+	 * (see {@link #scanApps(Context, StringBuilder)} and {@link #reconcileApps(DroidApp[])}).
+	 * @param ctx application context (mandatory)
+	 * @return true if the application list is now available, false if there is no usable snapshot
+	 */
+	public static boolean loadSnapshot(Context ctx) {
+		synchronized (applicationsLock) {
+			if (applications != null) {
+				return true;
+			}
+		}
+		final DroidApp apps[] = AppSnapshot.read(new File(ctx.getFilesDir(), SNAPSHOT_FILE));
+		if (apps == null) {
+			return false;
+		}
+		// the selected UIDs are authoritative (the snapshot may have been written before the last change)
+		final UidSet selected[] = getSelectedUids(ctx);
+		for (final DroidApp app : apps) {
+			app.selected_wifi = selected[UidStore.WIFI].contains(app.uid);
+			app.selected_3g = selected[UidStore.MOBILE].contains(app.uid);
+		}
+		synchronized (applicationsLock) {
+			if (applications == null) {
+				applications = apps;
+			}
+		}
+		return true;
+	}
+	/**
+	 * Scan the installed applications without replacing the cached list.
+	 * This is slow and should be called on background.
+	 * @param ctx application context (mandatory)
+	 * @param errors receives the error message, if any (may be null)
+	 * @return a fresh list of applications, or null on error
+	 */
+	public static DroidApp[] scanApps(Context ctx, StringBuilder errors) {
+		return loadApps(ctx, false, errors);
+	}
+	/**
+	 * Reconcile the cached application list (usually a snapshot) with a fresh one returned by {@link #scanApps(Context, StringBuilder)}.
+	 * Selections made on the cached list are kept, since the user may have changed them in the meantime.
+	 * Must be called on the UI thread.
+	 * @param fresh fresh application list
+	 * @return true if the list has changed and should be displayed again
+	 */
+	public static boolean reconcileApps(DroidApp fresh[]) {
+		synchronized (applicationsLock) {
+			final DroidApp apps[] = applications;
+			if (apps == null) {
+				applications = fresh;
+				return true;
+			}
+			final HashMap<Integer, DroidApp> map = new HashMap<Integer, DroidApp>();
+			for (final DroidApp app : apps) {
+				map.put(app.uid, app);
+			}
+			boolean changed = (apps.length != fresh.length);
+			for (final DroidApp app : fresh) {
+				final DroidApp old = map.get(app.uid);
+				if (old == null || old.firstseem != app.firstseem || !Arrays.equals(old.names, app.names)) {
+					changed = true;
+				}
+			}
+			if (!changed) {
+				// same applications - just fill in what the snapshot does not have
+				for (final DroidApp app : fresh) {
+					final DroidApp old = map.get(app.uid);
+					old.packages = app.packages;
+					if (old.appinfo == null) {
+						old.appinfo = app.appinfo;
+					}
+				}
+				return false;
+			}
+			for (final DroidApp app : fresh) {
+				final DroidApp old = map.get(app.uid);
+				if (old != null) {
+					app.selected_wifi = old.selected_wifi;
+					app.selected_3g = old.selected_3g;
+				}
+			}
+			applications = fresh;
+			return true;
+		}
+	}
+	/**
+	 * Save a snapshot of the application list on background (errors are only logged, since the list can always be loaded again).
+	 * @param ctx application context (mandatory)
+	 * @param apps application list
+	 */
+	private static void saveSnapshot(Context ctx, final DroidApp apps[]) {
+		final File file = new File(ctx.getFilesDir(), SNAPSHOT_FILE);
+		DeferredWriter.schedule(SNAPSHOT_FILE, new Runnable() {
+			public void run() {
+				try {
+					AppSnapshot.write(file, apps);
+				} catch (IOException e) {
+					Log.d("DroidWall", "Error saving the application list: " + e);
+				}
+			}
+		});
+	}
+	/**
+	 * Check the Internet permission and read the label of each application, using a bounded pool of threads.
+	 * @param pkgmanager package manager
+	 * @param labelstore label cache
+	 * @param installed installed applications
+	 * @param versions version code of each application
+	 * @param labels receives the label of each application (null if it is not allowed to access the Internet)
+	 * @param newlabels receives true for each label that was not on the cache
+	 * @throws Exception if a worker fails
+	 */
+	private static void readLabels(final PackageManager pkgmanager, final LabelStore labelstore,
+			final ApplicationInfo installed[], final int versions[], final String labels[], final boolean newlabels[]) throws Exception {
+		final int threads = Math.max(1, Math.min(LABEL_THREADS, Runtime.getRuntime().availableProcessors()));
+		final int chunk = (installed.length + threads - 1) / threads;
+		if (threads == 1 || chunk < 2) {
+			readLabels(pkgmanager, labelstore, installed, versions, labels, newlabels, 0, installed.length);
+			return;
+		}
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<Void>> futures = new ArrayList<Future<Void>>(threads);
+			for (int start=0; start<installed.length; start+=chunk) {
+				final int from = start;
+				final int to = Math.min(start + chunk, installed.length);
+				futures.add(pool.submit(new Callable<Void>() {
+					public Void call() {
+						readLabels(pkgmanager, labelstore, installed, versions, labels, newlabels, from, to);
+						return null;
+					}
+				}));
+			}
+			for (final Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+	/**
+	 * Check the Internet permission and read the label of a range of applications.
+	 * Each call writes to its own range of the result arrays only.
+	 * @param pkgmanager package manager
+	 * @param labelstore label cache
+	 * @param installed installed applications
+	 * @param versions version code of each application
+	 * @param labels receives the label of each application (null if it is not allowed to access the Internet)
+	 * @param newlabels receives true for each label that was not on the cache
+	 * @param from first application (inclusive)
+	 * @param to last application (exclusive)
+	 */
+	private static void readLabels(PackageManager pkgmanager, LabelStore labelstore,
+			ApplicationInfo installed[], int versions[], String labels[], boolean newlabels[], int from, int to) {
+		for (int i=from; i<to; i++) {
+			final ApplicationInfo apinfo = installed[i];
+			// filter applications which are not allowed to access the Internet (permissions are granted per user id)
+			if (PackageManager.PERMISSION_GRANTED != pkgmanager.checkPermission(Manifest.permission.INTERNET, apinfo.packageName)) {
+				continue;
+			}
+			// try to get the application label from our cache - getApplicationLabel() is horribly slow!!!!
+			String name = labelstore.get(apinfo.packageName, versions[i]);
+			if (name == null) {
+				name = pkgmanager.getApplicationLabel(apinfo).toString();
+				newlabels[i] = true;
+			}
+			labels[i] = name;
+		}
+	}
+	/**
+	 * @param ctx application context (mandatory)
+	 * @return the application label cache, loaded for the current locale
+	 */
+	private static LabelStore getLabelStore(Context ctx) {
+		final String locale = ctx.getResources().getConfiguration().locale.toString();
+		final LabelStore store;
+		synchronized (Api.class) {
+			if (labelStore == null) {
+				labelStore = new LabelStore(new File(ctx.getFilesDir(), LABELS_FILE));
+				labelStore.load(locale);
+				migrateOldLabels(ctx, labelStore);
+			}
+			store = labelStore;
+		}
+		store.load(locale);
+		return store;
+	}
+	/**
+	 * Move the labels cached on the preferences by older versions to the label cache, so they are not read again.
+	 * The old labels had no version, so they are stored for the version currently installed.
+	 * @param ctx application context (mandatory)
+	 * @param labelstore label cache, loaded for the current locale
+	 */
+	private static void migrateOldLabels(Context ctx, LabelStore labelstore) {
+		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
+		final PackageManager pkgmanager = ctx.getPackageManager();
+		final Editor edit = prefs.edit();
+		boolean changed = false;
+		boolean imported = false;
+		for (final Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+			final String key = entry.getKey();
+			if (!key.startsWith(PREF_LABEL_PREFIX)) {
+				continue;
+			}
+			edit.remove(key);
+			changed = true;
+			final String pkg = key.substring(PREF_LABEL_PREFIX.length());
+			if (!(entry.getValue() instanceof String) || ((String) entry.getValue()).length() == 0 || labelstore.contains(pkg)) {
+				continue;
+			}
+			try {
+				labelstore.put(pkg, pkgmanager.getPackageInfo(pkg, 0).versionCode, (String) entry.getValue());
+				imported = true;
+			} catch (NameNotFoundException e) {
+				// not installed anymore
+			}
+		}
+		if (imported) {
+			saveLabels(labelstore);
+		}
+		if (changed) {
+			edit.commit();
+		}
+	}
+	/**
+	 * Save the application label cache on background (errors are only logged, since labels can always be read again).
+	 * @param labelstore label cache
+	 */
+	private static void saveLabels(final LabelStore labelstore) {
+		DeferredWriter.schedule(LABELS_FILE, new Runnable() {
+			public void run() {
+				try {
+					labelstore.save();
+				} catch (IOException e) {
+					Log.d("DroidWall", "Error saving the application labels: " + e);
+				}
+			}
+		});
+	}
+	/**
+	 * Called when an application is installed or updated.
+	 * The cached application list is patched, instead of being loaded again.
+	 * @param ctx application context (mandatory)
+	 * @param pkg package name (null to force the list to be loaded again)
+	 */
+	public static void patchApplicationAdded(Context ctx, String pkg) {
+		synchronized (applicationsLock) {
+			// any list being loaded right now is out-of-date
+			applicationsVersion++;
+			if (applications == null) {
+				return;
+			}
+		}
+		// Resolve the package and its label first - the lock is only held to patch the list
+		final PackageManager pkgmanager = ctx.getPackageManager();
+		final PackageInfo pkginfo;
+		final ApplicationInfo apinfo;
+		try {
+			pkginfo = pkgmanager.getPackageInfo(pkg, 0);
+			apinfo = pkginfo.applicationInfo;
 		} catch (Exception e) {
-			alert(ctx, "error: " + e);
+			// cannot patch the list - force a reload next time
+			synchronized (applicationsLock) {
+				applications = null;
+			}
+			return;
+		}
+		// filter applications which are not allowed to access the Internet (unless their user id is already listed)
+		final boolean internet = (PackageManager.PERMISSION_GRANTED == pkgmanager.checkPermission(Manifest.permission.INTERNET, pkg));
+		if (!internet && findApp(apinfo.uid) == null) {
+			return;
+		}
+		// the label is read again if the package has been updated
+		final LabelStore labelstore = getLabelStore(ctx);
+		final boolean firstseem = !labelstore.contains(pkg);
+		String name = labelstore.get(pkg, pkginfo.versionCode);
+		if (name == null) {
+			name = pkgmanager.getApplicationLabel(apinfo).toString();
+			labelstore.put(pkg, pkginfo.versionCode, name);
+			saveLabels(labelstore);
+		}
+		final UidSet selected[] = getSelectedUids(ctx);
+		synchronized (applicationsLock) {
+			final DroidApp apps[] = applications;
+			if (apps == null) {
+				return;
+			}
+			DroidApp app = findApp(apinfo.uid);
+			if (app != null) {
+				// existing (shared) user id
+				app.addPackage(pkg, name);
+				if (app.appinfo == null) {
+					app.appinfo = apinfo;
+				}
+				return;
+			}
+			if (!internet) {
+				return;
+			}
+			app = new DroidApp();
+			app.uid = apinfo.uid;
+			app.names = new String[] { name };
+			app.packages = new String[] { pkg };
+			app.appinfo = apinfo;
+			app.firstseem = firstseem;
+			app.selected_wifi = selected[UidStore.WIFI].contains(app.uid);
+			app.selected_3g = selected[UidStore.MOBILE].contains(app.uid);
+			final DroidApp newapps[] = new DroidApp[apps.length + 1];
+			System.arraycopy(apps, 0, newapps, 0, apps.length);
+			newapps[apps.length] = app;
+			applications = newapps;
+		}
+	}
+	/**
+	 * @param uid UID
+	 * @return the cached application with the given UID, or null if not found (or not loaded)
+	 */
+	private static DroidApp findApp(int uid) {
+		synchronized (applicationsLock) {
+			if (applications != null) {
+				for (final DroidApp app : applications) {
+					if (app.uid == uid) return app;
+				}
+			}
 		}
 		return null;
 	}
 	/**
-	 * Check if we have root access
+	 * Called when an application is un-installed.
+	 * The cached application list is patched, instead of being loaded again.
+	 * @param ctx application context (mandatory)
+	 * @param pkg package name (null to force the list to be loaded again)
+	 * @param uid UID of the application that has been removed
+	 */
+	public static void patchApplicationRemoved(Context ctx, String pkg, int uid) {
+		if (pkg != null) {
+			// forget its label
+			final LabelStore labelstore = getLabelStore(ctx);
+			labelstore.remove(pkg);
+			saveLabels(labelstore);
+		}
+		synchronized (applicationsLock) {
+			// any list being loaded right now is out-of-date
+			applicationsVersion++;
+			final DroidApp apps[] = applications;
+			if (apps == null) {
+				return;
+			}
+			for (int i=0; i<apps.length; i++) {
+				final DroidApp app = apps[i];
+				if (app.uid != uid) continue;
+				final int pos = app.indexOfPackage(pkg);
+				if (pos == -1) {
+					// the cached list does not match the installed packages - force a reload next time
+					applications = null;
+				} else if (app.names.length > 1) {
+					// shared user id - just remove this package
+					app.removePackage(pos);
+					if (app.appinfo != null && pkg.equals(app.appinfo.packageName)) {
+						try {
+							app.appinfo = ctx.getPackageManager().getApplicationInfo(app.packages[0], 0);
+						} catch (Exception e) {
+							app.appinfo = null;
+						}
+					}
+				} else {
+					final DroidApp newapps[] = new DroidApp[apps.length - 1];
+					System.arraycopy(apps, 0, newapps, 0, i);
+					System.arraycopy(apps, i + 1, newapps, i, newapps.length - i);
+					applications = newapps;
+				}
+				return;
+			}
+		}
+	}
+	/**
+	 * Check if we have root access.
+	 * The root commands wait for any rules being applied, so this must not be called on the UI thread.
 	 * @param ctx mandatory context
-     * @param showErrors indicates if errors should be alerted
+     * @param errors receives the error message, if any (null to ignore it)
 	 * @return boolean true if we have root
 	 */
-	public static boolean hasRootAccess(final Context ctx, boolean showErrors) {
+	public static boolean hasRootAccess(final Context ctx, StringBuilder errors) {
 		if (hasroot) return true;
 		final StringBuilder res = new StringBuilder();
 		try {
@@ -718,8 +1882,8 @@ public final class Api {
 			}
 		} catch (Exception e) {
 		}
-		if (showErrors) {
-			alert(ctx, "Could not acquire root access.\n" +
+		if (errors != null) {
+			errors.append("Could not acquire root access.\n" +
 				"You need a rooted phone to run DroidWall.\n\n" +
 				"If this phone is already rooted, please make sure DroidWall has enough permissions to execute the \"su\" command.\n" +
 				"Error message: " + res.toString());
@@ -735,8 +1899,32 @@ public final class Api {
      * @return the script exit code
      */
 	public static int runScript(Context ctx, String script, StringBuilder res, long timeout, boolean asroot) {
+		return runScript(ctx, script, (res != null ? new OutputAppender(res) : null), timeout, asroot);
+	}
+    /**
+     * Runs a script, wither as root or as a regular user (multiple commands separated by "\n").
+	 * @param ctx mandatory context
+     * @param script the script to be executed
+     * @param callback receives each line of the script output (stdout + stderr) as soon as it is read
+     * @param timeout timeout in milliseconds (-1 for none)
+     * @return the script exit code
+     */
+	public static int runScript(Context ctx, String script, LineCallback callback, long timeout, boolean asroot) {
 		final File file = new File(ctx.getDir("bin",0), SCRIPT_FILE);
-		final ScriptRunner runner = new ScriptRunner(file, script, res, asroot);
+		if (asroot) {
+			// Run the script on the persistent root shell, avoiding a new "su" request
+			synchronized (rootShell) {
+				try {
+					writeScriptFile(file, script);
+				} catch (IOException ex) {
+					if (callback != null) callback.onLine(ex.toString());
+					return -1;
+				}
+				// the script must not read the shell input, since it carries the next commands
+				return rootShell.run("sh " + file.getAbsolutePath() + " </dev/null", callback, timeout);
+			}
+		}
+		final ScriptRunner runner = new ScriptRunner(file, script, callback, asroot);
 		runner.start();
 		try {
 			if (timeout > 0) {
@@ -765,6 +1953,17 @@ public final class Api {
 	public static int runScriptAsRoot(Context ctx, String script, StringBuilder res, long timeout) {
 		return runScript(ctx, script, res, timeout, true);
     }
+    /**
+     * Runs a script as root (multiple commands separated by "\n"), streaming its output.
+	 * @param ctx mandatory context
+     * @param script the script to be executed
+     * @param callback receives each line of the script output (stdout + stderr) as soon as it is read
+     * @param timeout timeout in milliseconds (-1 for none)
+     * @return the script exit code
+     */
+	public static int runScriptAsRoot(Context ctx, String script, LineCallback callback, long timeout) {
+		return runScript(ctx, script, callback, timeout, true);
+    }
     /**
      * Runs a script as root (multiple commands separated by "\n") with a default timeout of 20 seconds.
 	 * @param ctx mandatory context
@@ -789,6 +1988,23 @@ public final class Api {
 	public static int runScript(Context ctx, String script, StringBuilder res) throws IOException {
 		return runScript(ctx, script, res, 40000, false);
 	}
+	/**
+	 * Writes a script to be executed to the given file.
+	 * @param file script file
+	 * @param script script contents
+	 * @throws IOException on error writing the file
+	 */
+	private static void writeScriptFile(File file, String script) throws IOException {
+		final OutputStreamWriter out = new OutputStreamWriter(new FileOutputStream(file), SCRIPT_CHARSET);
+		if (new File("/system/bin/sh").exists()) {
+			out.write("#!/system/bin/sh\n");
+		}
+		out.write(script);
+		if (!script.endsWith("\n")) out.write("\n");
+		out.write("exit\n");
+		out.flush();
+		out.close();
+	}
 	/**
 	 * Asserts that the binary files are installed in the cache directory.
 	 * @param ctx context
@@ -796,6 +2012,21 @@ public final class Api {
 	 * @return false if the binary files could not be installed
 	 */
 	public static boolean assertBinaries(Context ctx, boolean showErrors) {
+		final StringBuilder errors = new StringBuilder();
+		final boolean ok = assertBinaries(ctx, errors, true);
+		if (showErrors && errors.length() > 0) {
+			alert(ctx, errors);
+		}
+		return ok;
+	}
+	/**
+	 * Asserts that the binary files are installed in the cache directory.
+	 * @param ctx context
+	 * @param errors receives the error message, if any (may be null)
+	 * @param toast indicates if a toast should be shown when the files are installed (only on the UI thread)
+	 * @return false if the binary files could not be installed
+	 */
+	private static boolean assertBinaries(Context ctx, StringBuilder errors, boolean toast) {
 		boolean changed = false;
 		try {
 			// Check iptables_armv5
@@ -810,11 +2041,11 @@ public final class Api {
 				copyRawFile(ctx, R.raw.busybox_g1, file, "755");
 				changed = true;
 			}
-			if (changed) {
+			if (changed && toast) {
 				Toast.makeText(ctx, R.string.toast_bin_installed, Toast.LENGTH_LONG).show();
 			}
 		} catch (Exception e) {
-			if (showErrors) alert(ctx, "Error installing binary files: " + e);
+			if (errors != null) errors.append("Error installing binary files: " + e);
 			return false;
 		}
 		return true;
@@ -826,26 +2057,35 @@ public final class Api {
 	 */
 	public static boolean isEnabled(Context ctx) {
 		if (ctx == null) return false;
+		final Boolean enabled = enabledStatus;
+		if (enabled != null) {
+			return enabled.booleanValue();
+		}
 		return ctx.getSharedPreferences(PREFS_NAME, 0).getBoolean(PREF_ENABLED, false);
 	}
 	
 	/**
-	 * Defines if the firewall is enabled and broadcasts the new status
+	 * Defines if the firewall is enabled and broadcasts the new status.
+	 * The status is written on background (see {@link DeferredWriter#flush()}).
 	 * @param ctx mandatory context
 	 * @param enabled enabled flag
 	 */
-	public static void setEnabled(Context ctx, boolean enabled) {
+	public static void setEnabled(Context ctx, final boolean enabled) {
 		if (ctx == null) return;
-		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
-		if (prefs.getBoolean(PREF_ENABLED, false) == enabled) {
-			return;
-		}
-		final Editor edit = prefs.edit();
-		edit.putBoolean(PREF_ENABLED, enabled);
-		if (!edit.commit()) {
-			alert(ctx, "Error writing to preferences");
+		if (isEnabled(ctx) == enabled) {
 			return;
 		}
+		enabledStatus = Boolean.valueOf(enabled);
+		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
+		DeferredWriter.schedule(PREF_ENABLED, new Runnable() {
+			public void run() {
+				final Editor edit = prefs.edit();
+				edit.putBoolean(PREF_ENABLED, enabled);
+				if (!edit.commit()) {
+					Log.e("DroidWall", "Error writing to preferences");
+				}
+			}
+		});
 		/* notify */
 		final Intent message = new Intent(Api.STATUS_CHANGED_MSG);
         message.putExtra(Api.STATUS_EXTRA, enabled);
@@ -858,56 +2098,33 @@ public final class Api {
 	 * @param uid UID of the application that has been removed
 	 */
 	public static void applicationRemoved(Context ctx, int uid) {
-		final SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME, 0);
-		final Editor editor = prefs.edit();
-		// allowed application names separated by pipe '|' (persisted)
-		final String savedUids_wifi = prefs.getString(PREF_WIFI_UIDS, "");
-		final String savedUids_3g = prefs.getString(PREF_3G_UIDS, "");
-		final String uid_str = uid + "";
-		boolean changed = false;
-		// look for the removed application in the "wi-fi" list
-		if (savedUids_wifi.length() > 0) {
-			final StringBuilder newuids = new StringBuilder();
-			final StringTokenizer tok = new StringTokenizer(savedUids_wifi, "|");
-			while (tok.hasMoreTokens()) {
-				final String token = tok.nextToken();
-				if (uid_str.equals(token)) {
-					Log.d("DroidWall", "Removing UID " + token + " from the wi-fi list (package removed)!");
-					changed = true;
-				} else {
-					if (newuids.length() > 0) newuids.append('|');
-					newuids.append(token);
-				}
+		while (true) {
+			final UidSet selected[] = getSelectedUids(ctx);
+			final int version = newSelectedVersion();
+			boolean changed = false;
+			// look for the removed application in the "wi-fi" list
+			final UidSet newuids_wifi = selected[UidStore.WIFI].without(uid, version);
+			if (newuids_wifi != selected[UidStore.WIFI]) {
+				Log.d("DroidWall", "Removing UID " + uid + " from the wi-fi list (package removed)!");
+				changed = true;
 			}
-			if (changed) {
-				editor.putString(PREF_WIFI_UIDS, newuids.toString());
+			// look for the removed application in the "3g" list
+			final UidSet newuids_3g = selected[UidStore.MOBILE].without(uid, version);
+			if (newuids_3g != selected[UidStore.MOBILE]) {
+				Log.d("DroidWall", "Removing UID " + uid + " from the 3G list (package removed)!");
+				changed = true;
 			}
-		}
-		// look for the removed application in the "3g" list
-		if (savedUids_3g.length() > 0) {
-			final StringBuilder newuids = new StringBuilder();
-			final StringTokenizer tok = new StringTokenizer(savedUids_3g, "|");
-			while (tok.hasMoreTokens()) {
-				final String token = tok.nextToken();
-				if (uid_str.equals(token)) {
-					Log.d("DroidWall", "Removing UID " + token + " from the 3G list (package removed)!");
-					changed = true;
-				} else {
-					if (newuids.length() > 0) newuids.append('|');
-					newuids.append(token);
-				}
+			if (!changed) {
+				return;
 			}
-			if (changed) {
-				editor.putString(PREF_3G_UIDS, newuids.toString());
+			// if anything has changed, save the new UIDs (starting over if they were changed meanwhile)...
+			if (replaceSelectedUids(ctx, selected, newuids_wifi, newuids_3g)) {
+				break;
 			}
 		}
-		// if anything has changed, save the new prefs...
-		if (changed) {
-			editor.commit();
-			if (isEnabled(ctx)) {
-				// .. and also re-apply the rules if the firewall is enabled
-				applySavedIptablesRules(ctx, false);
-			}
+		if (isEnabled(ctx)) {
+			// .. and also re-apply the rules if the firewall is enabled (a burst of removals is applied only once)
+			ApplyScheduler.request(ctx, ApplyScheduler.APPLY, null);
 		}
 	}
 
@@ -919,6 +2136,8 @@ public final class Api {
     	int uid;
     	/** application names belonging to this user id */
     	String names[];
+    	/** package names belonging to this user id (same order as names, null for special applications) */
+    	String packages[];
     	/** indicates if this application is selected for wifi */
     	boolean selected_wifi;
     	/** indicates if this application is selected for 3g */
@@ -927,10 +2146,6 @@ public final class Api {
     	String tostr;
     	/** application info */
     	ApplicationInfo appinfo;
-    	/** cached application icon */
-    	Drawable cached_icon;
-    	/** indicates if the icon has been loaded already */
-    	boolean icon_loaded;
     	/** first time seem? */
     	boolean firstseem;
     	
@@ -939,9 +2154,56 @@ public final class Api {
     	public DroidApp(int uid, String name, boolean selected_wifi, boolean selected_3g) {
     		this.uid = uid;
     		this.names = new String[] {name};
+    		this.packages = new String[] {null};
     		this.selected_wifi = selected_wifi;
     		this.selected_3g = selected_3g;
     	}
+    	/**
+    	 * Add a package to this user id, or update its name if already present.
+    	 * @param pkg package name
+    	 * @param name application name
+    	 */
+    	void addPackage(String pkg, String name) {
+    		final int pos = indexOfPackage(pkg);
+    		if (pos != -1) {
+    			names[pos] = name;
+    		} else {
+    			final String newnames[] = new String[names.length + 1];
+    			final String newpackages[] = new String[names.length + 1];
+    			System.arraycopy(names, 0, newnames, 0, names.length);
+    			System.arraycopy(packages, 0, newpackages, 0, names.length);
+    			newnames[names.length] = name;
+    			newpackages[names.length] = pkg;
+    			names = newnames;
+    			packages = newpackages;
+    		}
+    		tostr = null;
+    	}
+    	/**
+    	 * Remove a package from this user id.
+    	 * @param pos package position (as returned by indexOfPackage)
+    	 */
+    	void removePackage(int pos) {
+    		final String newnames[] = new String[names.length - 1];
+    		final String newpackages[] = new String[names.length - 1];
+    		System.arraycopy(names, 0, newnames, 0, pos);
+    		System.arraycopy(names, pos + 1, newnames, pos, newnames.length - pos);
+    		System.arraycopy(packages, 0, newpackages, 0, pos);
+    		System.arraycopy(packages, pos + 1, newpackages, pos, newpackages.length - pos);
+    		names = newnames;
+    		packages = newpackages;
+    		tostr = null;
+    	}
+    	/**
+    	 * @param pkg package name
+    	 * @return position of the package on this user id, or -1 if not present
+    	 */
+    	int indexOfPackage(String pkg) {
+    		for (int i=0; i<packages.length; i++) {
+    			if (pkg != null && pkg.equals(packages[i])) return i;
+    		}
+    		return -1;
+    	}
     	/**
     	 * Screen representation of this application
     	 */
@@ -960,14 +2222,49 @@ public final class Api {
     		return tostr;
     	}
     }
-    /**
-     * Small internal structure used to hold log information
-     */
-	private static final class LogInfo {
-		private int totalBlocked; // Total number of packets blocked
-		private HashMap<String, Integer> dstBlocked; // Number of packets blocked per destination IP address
-		private LogInfo() {
-			this.dstBlocked = new HashMap<String, Integer>();
+	/**
+	 * Line callback used to collect the whole output on a StringBuilder.
+	 */
+	private static final class OutputAppender implements LineCallback {
+		private final StringBuilder res;
+		private OutputAppender(StringBuilder res) {
+			this.res = res;
+		}
+		@Override
+		public void onLine(String line) {
+			res.append(line).append('\n');
+		}
+	}
+	/**
+	 * Internal thread used to read a process output stream until it is closed.
+	 */
+	private static final class StreamDrainer extends Thread {
+		private final InputStream stream;
+		private final LineCallback callback;
+		/**
+		 * Creates a new stream drainer.
+		 * @param stream stream to read
+		 * @param callback receives each line read (calls are synchronized on the callback)
+		 */
+		public StreamDrainer(InputStream stream, LineCallback callback) {
+			this.stream = stream;
+			this.callback = callback;
+		}
+		@Override
+		public void run() {
+			try {
+				final BufferedReader r = new BufferedReader(new InputStreamReader(stream, SCRIPT_CHARSET));
+				String line;
+				while ((line = r.readLine()) != null) {
+					if (callback != null) {
+						synchronized (callback) {
+							callback.onLine(line);
+						}
+					}
+				}
+			} catch (IOException ex) {
+				// stream closed
+			}
 		}
 	}
 	/**
@@ -976,7 +2273,7 @@ public final class Api {
 	private static final class ScriptRunner extends Thread {
 		private final File file;
 		private final String script;
-		private final StringBuilder res;
+		private final LineCallback callback;
 		private final boolean asroot;
 		public int exitcode = -1;
 		private Process exec;
@@ -985,13 +2282,13 @@ public final class Api {
 		 * Creates a new script runner.
 		 * @param file temporary script file
 		 * @param script script to run
-		 * @param res response output
+		 * @param callback response output callback
 		 * @param asroot if true, executes the script as root
 		 */
-		public ScriptRunner(File file, String script, StringBuilder res, boolean asroot) {
+		public ScriptRunner(File file, String script, LineCallback callback, boolean asroot) {
 			this.file = file;
 			this.script = script;
-			this.res = res;
+			this.callback = callback;
 			this.asroot = asroot;
 		}
 		@Override
@@ -1002,60 +2299,47 @@ public final class Api {
 				// make sure we have execution permission on the script file
 				Runtime.getRuntime().exec("chmod 777 "+abspath).waitFor();
 				// Write the script to be executed
-				final OutputStreamWriter out = new OutputStreamWriter(new FileOutputStream(file));
-				if (new File("/system/bin/sh").exists()) {
-					out.write("#!/system/bin/sh\n");
-				}
-				out.write(script);
-				if (!script.endsWith("\n")) out.write("\n");
-				out.write("exit\n");
-				out.flush();
-				out.close();
+				writeScriptFile(file, script);
+				final Process localexec;
 				if (this.asroot) {
 					// Create the "su" request to run the script
-					exec = Runtime.getRuntime().exec("su -c "+abspath);
+					localexec = Runtime.getRuntime().exec("su -c "+abspath);
 				} else {
 					// Create the "sh" request to run the script
-					exec = Runtime.getRuntime().exec("sh "+abspath);
+					localexec = Runtime.getRuntime().exec("sh "+abspath);
 				}
-				final InputStream stdout = exec.getInputStream();
-				final InputStream stderr = exec.getErrorStream();
-				final byte buf[] = new byte[8192];
-				int read = 0;
-				while (true) {
-					final Process localexec = exec;
-					if (localexec == null) break;
-					try {
-						// get the process exit code - will raise IllegalThreadStateException if still running
-						this.exitcode = localexec.exitValue();
-					} catch (IllegalThreadStateException ex) {
-						// The process is still running
-					}
-					// Read stdout
-					if (stdout.available() > 0) {
-						read = stdout.read(buf);
-						if (res != null) res.append(new String(buf, 0, read));
-					}
-					// Read stderr
-					if (stderr.available() > 0) {
-						read = stderr.read(buf);
-						if (res != null) res.append(new String(buf, 0, read));
-					}
-					if (this.exitcode != -1) {
-						// finished
-						break;
-					}
-					// Sleep for the next round
-					Thread.sleep(50);
+				synchronized (this) {
+					exec = localexec;
 				}
+				// Read stdout and stderr as soon as anything is available
+				final StreamDrainer stdout = new StreamDrainer(localexec.getInputStream(), callback);
+				final StreamDrainer stderr = new StreamDrainer(localexec.getErrorStream(), callback);
+				stdout.start();
+				stderr.start();
+				final int code = localexec.waitFor();
+				// The process has finished - wait for the remaining output
+				stdout.join();
+				stderr.join();
+				this.exitcode = code;
 			} catch (InterruptedException ex) {
-				if (res != null) res.append("\nOperation timed-out");
+				output("Operation timed-out");
 			} catch (Exception ex) {
-				if (res != null) res.append("\n" + ex);
+				output(ex.toString());
 			} finally {
 				destroy();
 			}
 		}
+		/**
+		 * Send an additional output line to the callback
+		 * @param line output line
+		 */
+		private void output(String line) {
+			if (callback != null) {
+				synchronized (callback) {
+					callback.onLine(line);
+				}
+			}
+		}
 		/**
 		 * Destroy this script runner
 		 */
@@ -0,0 +1,154 @@
+/**
+ * Snapshot of the application list, used to show it immediately on a cold start.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import com.googlecode.droidwall.Api.DroidApp;
+
+/**
+ * Snapshot of the application list, used to show it immediately on a cold start,
+ * while the installed packages are checked on background.
+ * File layout (big-endian, read in a single sequential read):
+ * <pre>
+ * int magic, int version, int count
+ * count * (int uid, byte flags, int names, names * (UTF name, UTF package))	(empty package for special applications)
+ * int crc32 (of everything above)
+ * </pre>
+ */
+final class AppSnapshot {
+	/** file signature ("DWAP") */
+	private static final int MAGIC = 0x44574150;
+	private static final int VERSION = 1;
+	// Application flags
+	private static final int FLAG_WIFI		= 1;
+	private static final int FLAG_3G		= 2;
+	private static final int FLAG_FIRSTSEEM	= 4;
+
+	private AppSnapshot() {
+	}
+	/**
+	 * Write a snapshot of the application list.
+	 * @param file snapshot file
+	 * @param apps application list
+	 * @throws IOException if the file cannot be written
+	 */
+	static void write(File file, DroidApp apps[]) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + apps.length * 64);
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(apps.length);
+		for (final DroidApp app : apps) {
+			out.writeInt(app.uid);
+			out.writeByte((app.selected_wifi ? FLAG_WIFI : 0) | (app.selected_3g ? FLAG_3G : 0) | (app.firstseem ? FLAG_FIRSTSEEM : 0));
+			out.writeInt(app.names.length);
+			for (int i=0; i<app.names.length; i++) {
+				out.writeUTF(app.names[i]);
+				out.writeUTF(app.packages[i] == null ? "" : app.packages[i]);
+			}
+		}
+		final CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeInt((int) crc.getValue());
+		out.flush();
+		final File tmp = new File(file.getPath() + ".tmp");
+		final FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			bytes.writeTo(fos);
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Cannot replace " + file);
+		}
+	}
+	/**
+	 * Read a snapshot of the application list.
+	 * The applications are returned without their ApplicationInfo, which is only available after a full load.
+	 * @param file snapshot file
+	 * @return application list, or null if the snapshot does not exist or is corrupted
+	 */
+	static DroidApp[] read(File file) {
+		if (!file.exists() || file.length() < 16 || file.length() > Integer.MAX_VALUE) {
+			return null;
+		}
+		try {
+			final byte data[] = new byte[(int) file.length()];
+			final FileInputStream fis = new FileInputStream(file);
+			try {
+				int pos = 0;
+				while (pos < data.length) {
+					final int len = fis.read(data, pos, data.length - pos);
+					if (len == -1) return null;
+					pos += len;
+				}
+			} finally {
+				fis.close();
+			}
+			final CRC32 crc = new CRC32();
+			crc.update(data, 0, data.length - 4);
+			final int stored = ((data[data.length-4] & 0xff) << 24) | ((data[data.length-3] & 0xff) << 16)
+					| ((data[data.length-2] & 0xff) << 8) | (data[data.length-1] & 0xff);
+			if (stored != (int) crc.getValue()) {
+				return null;
+			}
+			final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 4));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			final DroidApp apps[] = new DroidApp[in.readInt()];
+			for (int i=0; i<apps.length; i++) {
+				final DroidApp app = new DroidApp();
+				app.uid = in.readInt();
+				final int flags = in.readByte();
+				app.selected_wifi = (flags & FLAG_WIFI) != 0;
+				app.selected_3g = (flags & FLAG_3G) != 0;
+				app.firstseem = (flags & FLAG_FIRSTSEEM) != 0;
+				final int count = in.readInt();
+				app.names = new String[count];
+				app.packages = new String[count];
+				for (int j=0; j<count; j++) {
+					app.names[j] = in.readUTF();
+					final String pkg = in.readUTF();
+					app.packages[j] = (pkg.length() > 0) ? pkg : null;
+				}
+				apps[i] = app;
+			}
+			return apps;
+		} catch (IOException ex) {
+			return null;
+		} catch (RuntimeException ex) {
+			// corrupted counts
+			return null;
+		}
+	}
+}
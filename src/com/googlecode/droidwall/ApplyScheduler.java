@@ -0,0 +1,236 @@
+/**
+ * Serialized scheduler of the changes to the firewall rules.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Serialized scheduler of the changes to the firewall rules.
+ * All requests to apply or purge the rules are executed by a single thread, so they never run concurrently.
+ * A single request is executed right away, but when requests arrive while another one is pending or running,
+ * they are debounced: the burst (E.g.: several applications being removed) is merged into a single change,
+ * and only the latest desired state is executed - an apply request followed by a purge request just purges the rules.
+ * Callers whose request was merged into the same action are notified with its result,
+ * while requests superseded by a different action fail.
+ * Apply requests also fail without changing anything if the firewall has been disabled meanwhile.
+ */
+final class ApplyScheduler {
+	/** apply the saved rules */
+	static final int APPLY = 1;
+	/** purge all rules */
+	static final int PURGE = 2;
+	/** delay used to merge bursts of requests, in milliseconds */
+	private static final long DELAY = 300;
+	/** maximum time a request can be postponed by newer requests, in milliseconds */
+	private static final long MAX_DELAY = 2000;
+
+	/**
+	 * Receives the result of a request.
+	 */
+	interface Callback {
+		/**
+		 * Called on the scheduler thread when the request has been executed (or superseded by another one).
+		 * @param success true if the requested change was made successfully
+		 * @param error error message (null if none)
+		 */
+		void onComplete(boolean success, String error);
+	}
+	/**
+	 * Pending request.
+	 */
+	private static final class Request {
+		final int action;
+		final Callback callback;
+		Request(int action, Callback callback) {
+			this.action = action;
+			this.callback = callback;
+		}
+	}
+
+	private static int pendingAction = 0;
+	private static Context pendingContext = null;
+	private static final ArrayList<Request> pendingRequests = new ArrayList<Request>();
+	/** time of the first and of the latest pending request */
+	private static long firstRequest, lastRequest;
+	/** indicates if the pending requests are a burst, which is debounced */
+	private static boolean burst;
+	/** indicates if a change is being made right now */
+	private static boolean running;
+	private static Thread worker;
+
+	private ApplyScheduler() {
+	}
+	/**
+	 * Request a change to the rules, replacing any pending request.
+	 * @param ctx any context
+	 * @param action APPLY or PURGE
+	 * @param callback receives the result (null for none)
+	 */
+	static synchronized void request(Context ctx, int action, Callback callback) {
+		final long now = System.currentTimeMillis();
+		if (pendingAction == 0) {
+			firstRequest = now;
+			burst = running;
+		} else {
+			burst = true;
+		}
+		lastRequest = now;
+		pendingAction = action;
+		pendingContext = ctx.getApplicationContext();
+		if (callback != null) {
+			pendingRequests.add(new Request(action, callback));
+		}
+		if (worker == null) {
+			worker = new Thread("ApplyScheduler") {
+				@Override
+				public void run() {
+					work();
+				}
+			};
+			worker.setDaemon(true);
+			worker.start();
+		}
+		ApplyScheduler.class.notifyAll();
+	}
+	/**
+	 * Request a change to the rules and wait for its result.
+	 * Must not be called on the UI thread.
+	 * @param ctx any context
+	 * @param action APPLY or PURGE
+	 * @param error receives the error message, if any (may be null)
+	 * @return true if the rules were changed successfully
+	 */
+	static boolean requestAndWait(Context ctx, int action, StringBuilder error) {
+		final Object lock = new Object();
+		final boolean result[] = new boolean[2];
+		final String message[] = new String[1];
+		synchronized (lock) {
+			request(ctx, action, new Callback() {
+				public void onComplete(boolean success, String err) {
+					synchronized (lock) {
+						result[0] = true;
+						result[1] = success;
+						message[0] = err;
+						lock.notifyAll();
+					}
+				}
+			});
+			try {
+				while (!result[0]) {
+					lock.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		if (error != null && message[0] != null) {
+			error.append(message[0]);
+		}
+		return result[1];
+	}
+	/**
+	 * Wait until there are no pending or running requests (E.g.: before the process is killed).
+	 * Must not be called on the UI thread.
+	 * @return false if interrupted while waiting
+	 */
+	static synchronized boolean waitIdle() {
+		try {
+			while (pendingAction != 0 || running) {
+				ApplyScheduler.class.wait();
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	/**
+	 * Worker thread loop.
+	 */
+	private static void work() {
+		final ArrayList<Request> requests = new ArrayList<Request>();
+		while (true) {
+			final int action;
+			final Context ctx;
+			synchronized (ApplyScheduler.class) {
+				try {
+					while (pendingAction == 0) {
+						ApplyScheduler.class.wait();
+					}
+					// wait until a burst of requests stops coming (but not forever)
+					while (burst) {
+						final long now = System.currentTimeMillis();
+						final long remaining = Math.min(lastRequest + DELAY, firstRequest + MAX_DELAY) - now;
+						if (remaining <= 0) break;
+						ApplyScheduler.class.wait(remaining);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				action = pendingAction;
+				ctx = pendingContext;
+				requests.addAll(pendingRequests);
+				pendingAction = 0;
+				pendingContext = null;
+				pendingRequests.clear();
+				running = true;
+			}
+			final StringBuilder error = new StringBuilder();
+			boolean success = false;
+			try {
+				if (action == PURGE) {
+					success = Api.purgeRules(ctx, error);
+				} else if (Api.isEnabled(ctx)) {
+					success = Api.applySavedRules(ctx, error);
+				} else {
+					// the firewall has been disabled since the request was made
+					Log.d("DroidWall", "Firewall disabled - not applying the rules.");
+				}
+			} catch (Throwable e) {
+				// the worker must survive any error, otherwise the waiting callers would block forever
+				Log.e("DroidWall", "Error changing the rules", e);
+				error.append(e);
+			}
+			synchronized (ApplyScheduler.class) {
+				running = false;
+				ApplyScheduler.class.notifyAll();
+			}
+			final String message = (error.length() > 0) ? error.toString() : null;
+			for (final Request request : requests) {
+				try {
+					if (request.action == action) {
+						request.callback.onComplete(success, message);
+					} else {
+						request.callback.onComplete(false, null);
+					}
+				} catch (Throwable e) {
+					Log.e("DroidWall", "Error on apply callback", e);
+				}
+			}
+			requests.clear();
+		}
+	}
+}
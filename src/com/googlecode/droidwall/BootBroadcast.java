@@ -54,6 +54,7 @@ public class BootBroadcast extends BroadcastReceiver {
 		        			msg.arg1 = R.string.toast_error_enabling;
 		        			toaster.sendMessage(msg);
 							Api.setEnabled(context, false);
+							DeferredWriter.flush();
 						}
 					}
 				}.start();
@@ -0,0 +1,132 @@
+/**
+ * Background writer that coalesces bursts of persistence writes.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import android.util.Log;
+
+/**
+ * Background writer that coalesces bursts of persistence writes.
+ * Each write is identified by a key: scheduling a write replaces any pending write with the same key,
+ * so only the latest state is written. Writes are executed in order on a single thread, shortly after
+ * being scheduled, so fsync on slow flash memory does not block the caller.
+ * Callers must keep the written state in memory, since readers may look for it before it is written.
+ * Code paths that need the state to be durable (E.g.: before applying rules) must call {@link #flush()}.
+ */
+final class DeferredWriter {
+	/** delay used to coalesce bursts of writes, in milliseconds */
+	private static final long DELAY = 250;
+
+	private static final LinkedHashMap<String, Runnable> pending = new LinkedHashMap<String, Runnable>();
+	/** number of writes scheduled so far */
+	private static long scheduled = 0;
+	/** number of scheduled writes completed (or replaced) so far */
+	private static long written = 0;
+	/** number of threads waiting on {@link #flush()} */
+	private static int flushing = 0;
+	private static Thread worker;
+
+	private DeferredWriter() {
+	}
+	/**
+	 * Schedule a write, replacing any pending write with the same key.
+	 * @param key write key (E.g.: the name of the file being written)
+	 * @param write the write itself
+	 */
+	static synchronized void schedule(String key, Runnable write) {
+		// re-inserting the key moves it to the end, preserving the order of the writes
+		pending.remove(key);
+		pending.put(key, write);
+		scheduled++;
+		if (worker == null) {
+			worker = new Thread("DeferredWriter") {
+				@Override
+				public void run() {
+					work();
+				}
+			};
+			worker.setDaemon(true);
+			worker.start();
+		}
+		DeferredWriter.class.notifyAll();
+	}
+	/**
+	 * Barrier - wait until all writes scheduled so far have been completed.
+	 * Must not be called by a write.
+	 */
+	static synchronized void flush() {
+		final long target = scheduled;
+		flushing++;
+		DeferredWriter.class.notifyAll();
+		try {
+			while (written < target) {
+				DeferredWriter.class.wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			flushing--;
+		}
+	}
+	/**
+	 * Worker thread loop.
+	 */
+	private static void work() {
+		final ArrayList<Runnable> writes = new ArrayList<Runnable>();
+		while (true) {
+			final long batch;
+			synchronized (DeferredWriter.class) {
+				try {
+					while (pending.isEmpty()) {
+						DeferredWriter.class.wait();
+					}
+					// give the caller a chance to schedule more writes (unless someone is waiting for them)
+					final long deadline = System.currentTimeMillis() + DELAY;
+					long remaining = DELAY;
+					while (flushing == 0 && remaining > 0) {
+						DeferredWriter.class.wait(remaining);
+						remaining = deadline - System.currentTimeMillis();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				writes.addAll(pending.values());
+				pending.clear();
+				batch = scheduled;
+			}
+			for (final Runnable write : writes) {
+				try {
+					write.run();
+				} catch (RuntimeException e) {
+					Log.e("DroidWall", "Error on deferred write", e);
+				}
+			}
+			writes.clear();
+			synchronized (DeferredWriter.class) {
+				written = batch;
+				DeferredWriter.class.notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,397 @@
+/**
+ * Persistent append-only store of blocked packet events.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Persistent append-only store of blocked packet events, kept on a directory of segment files.
+ * Each segment covers a time span and holds fixed-size records, so it can be scanned without parsing.
+ * When a segment is sealed (rotated), a summary of its events per UID and destination is written
+ * next to it, so queries of whole segments do not read the raw records.
+ * Segments older than the retention limit are deleted.
+ * File layout (big-endian):
+ * <pre>
+ * segment (seg-START.dat): int magic, int version, long start, n * record
+ * record: long time, int uid, int dst, short dpt, byte proto, byte flags
+ * summary (seg-START.sum): int magic, int version, long start, long end, LogSummary counters
+ * </pre>
+ * A segment may end with a partial record after a crash, which is ignored.
+ * This class does not depend on Android.
+ */
+final class EventStore {
+	/** segment file signature ("DWEV") */
+	private static final int MAGIC = 0x44574556;
+	/** summary file signature ("DWES") */
+	private static final int MAGIC_SUMMARY = 0x44574553;
+	private static final int VERSION = 1;
+	/** version of the summary files (older summaries are ignored, and their segments scanned instead) */
+	private static final int SUMMARY_VERSION = 2;
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_SIZE = 20;
+	// Record flags
+	private static final int FLAG_DST = 1;
+	private static final int FLAG_DPT = 2;
+	private static final String PREFIX = "seg-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+	private static final String SUMMARY_SUFFIX = ".sum";
+
+	/** time span of a segment, in milliseconds */
+	static final long SEGMENT_SPAN = 60 * 60 * 1000L;
+	/** maximum number of records on a segment */
+	static final int SEGMENT_RECORDS = 50000;
+	/** time events are kept, in milliseconds */
+	static final long RETENTION = 7 * 24 * 60 * 60 * 1000L;
+
+	private final File dir;
+	private final Logger logger;
+	private final long span;
+	private final int maxRecords;
+	private final long retention;
+	/** segment being written (null if none) */
+	private DataOutputStream out;
+	private long outStart;
+	/** time the current segment was opened (before its start if the start was taken) */
+	private long outTime;
+	private int outRecords;
+	private final LogSummary outSummary = new LogSummary();
+	private long outEnd;
+
+	/**
+	 * Creates a store with the default limits.
+	 * @param dir directory of the segment files (created if necessary)
+	 * @param logger receives the errors, which are not thrown
+	 */
+	EventStore(File dir, Logger logger) {
+		this(dir, logger, SEGMENT_SPAN, SEGMENT_RECORDS, RETENTION);
+	}
+	/**
+	 * @param dir directory of the segment files (created if necessary)
+	 * @param logger receives the errors, which are not thrown
+	 * @param span time span of a segment, in milliseconds
+	 * @param maxRecords maximum number of records on a segment
+	 * @param retention time events are kept, in milliseconds
+	 */
+	EventStore(File dir, Logger logger, long span, int maxRecords, long retention) {
+		this.dir = dir;
+		this.logger = logger;
+		this.span = span;
+		this.maxRecords = maxRecords;
+		this.retention = retention;
+	}
+	/**
+	 * Append an event, rotating the segment if necessary.
+	 * The event is buffered - see {@link #flush()}.
+	 * @param time event time (System.currentTimeMillis())
+	 * @param uid application UID (LogParser.UNKNOWN_UID for the kernel)
+	 * @param hasDst indicates if the destination address is known
+	 * @param dst destination IPv4 address (ignored if hasDst is false)
+	 * @param dpt destination port (-1 if unknown)
+	 * @param proto protocol number (LogParser.PROTO_NONE if unknown)
+	 * @throws IOException on write errors
+	 */
+	synchronized void append(long time, int uid, boolean hasDst, int dst, int dpt, int proto) throws IOException {
+		if (out == null || time >= outTime + span || time < outTime || outRecords >= maxRecords) {
+			rotate(time);
+		}
+		int flags = 0;
+		if (hasDst) flags |= FLAG_DST;
+		if (dpt >= 0) flags |= FLAG_DPT;
+		out.writeLong(time);
+		out.writeInt(uid);
+		out.writeInt(hasDst ? dst : 0);
+		out.writeShort(dpt >= 0 ? dpt : 0);
+		out.writeByte(proto);
+		out.writeByte(flags);
+		outRecords++;
+		outEnd = time;
+		outSummary.add(uid, hasDst, dst, dpt, 1);
+	}
+	/**
+	 * Write the buffered events to the current segment.
+	 * @throws IOException on write errors
+	 */
+	synchronized void flush() throws IOException {
+		if (out != null) {
+			out.flush();
+		}
+	}
+	/**
+	 * Seal the current segment (the next event starts a new one).
+	 */
+	synchronized void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				logger.d("Error closing events segment: " + e);
+			}
+			out = null;
+			writeSummary(outStart, outEnd, outSummary);
+		}
+	}
+	/**
+	 * Delete all events.
+	 */
+	synchronized void clear() {
+		close();
+		for (final File file : listSegments()) {
+			file.delete();
+			summaryFile(file).delete();
+		}
+	}
+	/**
+	 * @return true if the store has no segments
+	 */
+	synchronized boolean isEmpty() {
+		return out == null && listSegments().length == 0;
+	}
+	/**
+	 * Add the events of a time range to a summary.
+	 * Sealed segments inside the range are read from their summaries, the others are scanned.
+	 * @param from range start (inclusive)
+	 * @param to range end (exclusive)
+	 * @param summary summary receiving the events
+	 */
+	synchronized void summarize(long from, long to, LogSummary summary) {
+		if (out != null) {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				logger.d("Error writing events segment: " + e);
+			}
+		}
+		for (final File file : listSegments()) {
+			final long start = segmentStart(file);
+			final boolean current = (out != null && start == outStart);
+			if (start >= to || (!current && start + span <= from)) {
+				continue;
+			}
+			if (!current && start >= from && readSummary(file, to, summary)) {
+				continue;
+			}
+			scan(file, from, to, summary);
+		}
+	}
+	/**
+	 * Start a new segment, sealing the current one and applying the retention limit.
+	 * @param time time of the first event of the new segment
+	 * @throws IOException if the segment cannot be created
+	 */
+	private void rotate(long time) throws IOException {
+		close();
+		// segments left open by a previous process are sealed now
+		for (final File file : listSegments()) {
+			final long start = segmentStart(file);
+			if (start + retention < time) {
+				file.delete();
+				summaryFile(file).delete();
+			} else if (!summaryFile(file).exists()) {
+				final LogSummary summary = new LogSummary();
+				final long end = scan(file, Long.MIN_VALUE, Long.MAX_VALUE, summary);
+				writeSummary(start, end, summary);
+			}
+		}
+		dir.mkdirs();
+		File file = segmentFile(time);
+		long start = time;
+		while (file.exists()) {
+			// never append to a sealed segment
+			file = segmentFile(++start);
+		}
+		final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 8192));
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+		dos.writeLong(start);
+		out = dos;
+		outStart = start;
+		outTime = time;
+		outEnd = start;
+		outRecords = 0;
+		outSummary.clear();
+	}
+	/**
+	 * Scan the raw records of a segment.
+	 * @param file segment file
+	 * @param from range start (inclusive)
+	 * @param to range end (exclusive)
+	 * @param summary summary receiving the events in the range
+	 * @return time of the last event on the segment (the segment start if none)
+	 */
+	private long scan(File file, long from, long to, LogSummary summary) {
+		long last = segmentStart(file);
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8192));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return last;
+			}
+			in.readLong();
+			final long records = (file.length() - HEADER_SIZE) / RECORD_SIZE;
+			for (long i=0; i<records; i++) {
+				final long time = in.readLong();
+				final int uid = in.readInt();
+				final int dst = in.readInt();
+				final int dpt = in.readUnsignedShort();
+				in.readByte();
+				final int flags = in.readByte();
+				last = time;
+				if (time >= from && time < to) {
+					summary.add(uid, (flags & FLAG_DST) != 0, dst, ((flags & FLAG_DPT) != 0) ? dpt : -1, 1);
+				}
+			}
+		} catch (EOFException e) {
+			// partial record
+		} catch (IOException e) {
+			logger.d("Error reading events segment " + file + ": " + e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return last;
+	}
+	/**
+	 * Add the summary of a sealed segment to a summary, if the segment ends before the given time.
+	 * @param file segment file
+	 * @param to range end (exclusive)
+	 * @param summary summary receiving the events
+	 * @return true if the summary was read, false if the raw records must be scanned instead
+	 */
+	private boolean readSummary(File file, long to, LogSummary summary) {
+		final File sumfile = summaryFile(file);
+		if (!sumfile.exists()) {
+			return false;
+		}
+		try {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sumfile), 8192));
+			try {
+				if (in.readInt() != MAGIC_SUMMARY || in.readInt() != SUMMARY_VERSION) {
+					return false;
+				}
+				in.readLong();
+				if (in.readLong() >= to) {
+					return false;
+				}
+				// read on a temporary summary, so a corrupted file does not leave partial counters
+				final LogSummary segment = new LogSummary();
+				segment.readFrom(in);
+				summary.add(segment);
+				return true;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			logger.d("Error reading events summary " + sumfile + ": " + e);
+			return false;
+		}
+	}
+	/**
+	 * Write the summary of a sealed segment (errors are only logged - the segment is scanned instead).
+	 * @param start segment start
+	 * @param end time of the last event on the segment
+	 * @param summary events of the segment
+	 */
+	private void writeSummary(long start, long end, LogSummary summary) {
+		final File file = summaryFile(segmentFile(start));
+		final File tmp = new File(file.getPath() + ".tmp");
+		try {
+			final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 8192));
+			try {
+				dos.writeInt(MAGIC_SUMMARY);
+				dos.writeInt(SUMMARY_VERSION);
+				dos.writeLong(start);
+				dos.writeLong(end);
+				summary.writeTo(dos);
+			} finally {
+				dos.close();
+			}
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Cannot replace " + file);
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			logger.d("Error writing events summary: " + e);
+		}
+	}
+	/**
+	 * @return segment files, sorted by start time
+	 */
+	private File[] listSegments() {
+		final String names[] = dir.list();
+		if (names == null) {
+			return new File[0];
+		}
+		final long starts[] = new long[names.length];
+		int count = 0;
+		for (final String name : names) {
+			if (name.startsWith(PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+				try {
+					starts[count] = Long.parseLong(name.substring(PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+					count++;
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+		Arrays.sort(starts, 0, count);
+		final File files[] = new File[count];
+		for (int i=0; i<count; i++) {
+			files[i] = segmentFile(starts[i]);
+		}
+		return files;
+	}
+	/**
+	 * @param start segment start
+	 * @return segment file
+	 */
+	private File segmentFile(long start) {
+		return new File(dir, PREFIX + start + SEGMENT_SUFFIX);
+	}
+	/**
+	 * @param segment segment file
+	 * @return summary file of the segment
+	 */
+	private static File summaryFile(File segment) {
+		final String path = segment.getPath();
+		return new File(path.substring(0, path.length() - SEGMENT_SUFFIX.length()) + SUMMARY_SUFFIX);
+	}
+	/**
+	 * @param segment segment file
+	 * @return segment start
+	 */
+	private static long segmentStart(File segment) {
+		final String name = segment.getName();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+}
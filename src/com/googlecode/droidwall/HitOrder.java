@@ -0,0 +1,185 @@
+/**
+ * Hit-count-driven ordering of the per-application rules.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Hit-count-driven ordering of the per-application rules of a chain.
+ * Packet counters are sampled from "iptables -L chain -v -x -n", and each owner rule gets a decaying score
+ * with the packets matched since the previous sample. A rule matching a UID range is scored once, under its
+ * first UID (which is enough to place the whole range, see RuleSet), and the catch-all rules matching
+ * every UID are ignored. The busiest UIDs are placed first, so most packets stop on the first rules of the chain.
+ * A UID only moves ahead of another one if its score is clearly bigger (hysteresis),
+ * so the order does not change (and the rules are not rebuilt) on every sample.
+ * This class does not depend on Android.
+ */
+final class HitOrder {
+	/** weight of the previous score on each new sample */
+	private static final double DECAY = 0.5;
+	/** a UID only moves ahead of another one if its score is this many times bigger */
+	private static final double HYSTERESIS = 2.0;
+	/** minimum score difference to move a UID (avoids reordering on a handful of packets) */
+	private static final double MIN_DIFFERENCE = 100;
+	/** text preceding the UID on the owner match of a listed rule */
+	private static final String OWNER_MATCH = "owner UID match ";
+	/** widest UID range of a per-application rule (wider ones, such as "0-999999999", are not scored) */
+	private static final int MAX_RANGE = 100000;
+
+	/** last packet counter seen for each owner rule (E.g.: "10001" or "10001-10005") */
+	private HashMap<String, Long> lastCounts = new HashMap<String, Long>();
+	private final HashMap<Integer, Double> scores = new HashMap<Integer, Double>();
+	/** current order, busiest UID first */
+	private int order[] = new int[0];
+
+	/**
+	 * Sample the packet counters of a chain.
+	 * @param listing output of "iptables -L chain -v -x -n"
+	 */
+	synchronized void sample(String listing) {
+		final HashMap<String, Long> counts = new HashMap<String, Long>();
+		try {
+			final BufferedReader r = new BufferedReader(new StringReader(listing));
+			String line;
+			while ((line = r.readLine()) != null) {
+				final int pos = line.indexOf(OWNER_MATCH);
+				if (pos == -1) continue;
+				final String owner = firstToken(line.substring(pos + OWNER_MATCH.length()));
+				final long packets;
+				try {
+					packets = Long.parseLong(firstToken(line));
+				} catch (NumberFormatException ex) {
+					continue;
+				}
+				final Long previous = counts.get(owner);
+				counts.put(owner, (previous == null) ? packets : previous + packets);
+			}
+		} catch (IOException ex) {
+			// cannot happen on a StringReader
+		}
+		// Age the current scores
+		for (final Integer uid : new ArrayList<Integer>(scores.keySet())) {
+			scores.put(uid, scores.get(uid) * DECAY);
+		}
+		// Credit the packets matched since the previous sample
+		for (final String owner : counts.keySet()) {
+			final long count = counts.get(owner);
+			final Long last = lastCounts.get(owner);
+			// counters restart from zero when the rule is re-created
+			final long delta = (last == null || last > count) ? count : count - last;
+			if (delta > 0) {
+				credit(owner, delta);
+			}
+		}
+		lastCounts = counts;
+	}
+	/**
+	 * Update the order from the current scores.
+	 * The previous order is kept, except for UIDs whose score is clearly bigger than the ones ahead of them.
+	 * @return true if the order has changed
+	 */
+	synchronized boolean update() {
+		final List<Integer> list = new ArrayList<Integer>(scores.size());
+		final HashSet<Integer> ordered = new HashSet<Integer>(order.length * 2);
+		for (final int uid : order) {
+			list.add(uid);
+			ordered.add(uid);
+		}
+		for (final Integer uid : scores.keySet()) {
+			if (!ordered.contains(uid)) {
+				list.add(uid);
+			}
+		}
+		// Insertion sort with hysteresis
+		for (int i=1; i<list.size(); i++) {
+			final Integer uid = list.get(i);
+			final double score = score(uid);
+			int j = i;
+			while (j > 0) {
+				final double ahead = score(list.get(j-1));
+				if (score <= ahead * HYSTERESIS || score - ahead < MIN_DIFFERENCE) break;
+				list.set(j, list.get(j-1));
+				j--;
+			}
+			list.set(j, uid);
+		}
+		final int neworder[] = new int[list.size()];
+		for (int i=0; i<neworder.length; i++) {
+			neworder[i] = list.get(i);
+		}
+		if (Arrays.equals(order, neworder)) {
+			return false;
+		}
+		order = neworder;
+		return true;
+	}
+	/**
+	 * @return the current order, busiest UID first (UIDs never seen are not included)
+	 */
+	synchronized int[] getOrder() {
+		return order.clone();
+	}
+	/**
+	 * Credit packets to an owner rule, under the first UID it matches.
+	 * @param owner UID or UID range (E.g.: "10001" or "10001-10005")
+	 * @param packets number of packets
+	 */
+	private void credit(String owner, long packets) {
+		final int sep = owner.indexOf('-');
+		try {
+			final int first = Integer.parseInt(sep == -1 ? owner : owner.substring(0, sep));
+			final int last = (sep == -1) ? first : Integer.parseInt(owner.substring(sep + 1));
+			if (last < first || last - first >= MAX_RANGE) {
+				// not a per-application rule (E.g.: the kernel traffic rule)
+				return;
+			}
+			scores.put(first, score(first) + packets);
+		} catch (NumberFormatException ex) {
+			// not an owner rule created by DroidWall
+		}
+	}
+	/**
+	 * @param uid UID
+	 * @return current score of the UID (zero if never seen)
+	 */
+	private double score(Integer uid) {
+		final Double score = scores.get(uid);
+		return (score == null) ? 0 : score;
+	}
+	/**
+	 * @param str string
+	 * @return the first white-space delimited token of the string
+	 */
+	private static String firstToken(String str) {
+		str = str.trim();
+		int end = 0;
+		while (end < str.length() && !Character.isWhitespace(str.charAt(end))) end++;
+		return str.substring(0, end);
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * Memory cache of application icons, bounded by size in bytes.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * Memory cache of application icons, bounded by size in bytes.
+ * The least recently used icons are evicted first.
+ * This class is not thread-safe - it is only used on the UI thread.
+ */
+final class IconCache {
+	private final LinkedHashMap<String, Bitmap> icons = new LinkedHashMap<String, Bitmap>(64, 0.75f, true);
+	private final int maxBytes;
+	private int bytes = 0;
+
+	/**
+	 * @param maxBytes maximum size of the cached icons
+	 */
+	IconCache(int maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+	/**
+	 * @param key icon key
+	 * @return the cached icon, or null if it is not cached
+	 */
+	Bitmap get(String key) {
+		return icons.get(key);
+	}
+	/**
+	 * Add an icon to the cache, evicting the least recently used ones if necessary.
+	 * @param key icon key
+	 * @param icon icon bitmap
+	 */
+	void put(String key, Bitmap icon) {
+		final Bitmap old = icons.put(key, icon);
+		if (old != null) {
+			bytes -= sizeOf(old);
+		}
+		bytes += sizeOf(icon);
+		final Iterator<Map.Entry<String, Bitmap>> it = icons.entrySet().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			final Map.Entry<String, Bitmap> entry = it.next();
+			if (entry.getValue() == icon) {
+				// never evict the icon just added
+				continue;
+			}
+			bytes -= sizeOf(entry.getValue());
+			it.remove();
+		}
+	}
+	/**
+	 * @param key icon key to remove
+	 */
+	void remove(String key) {
+		final Bitmap old = icons.remove(key);
+		if (old != null) {
+			bytes -= sizeOf(old);
+		}
+	}
+	/**
+	 * @param icon icon bitmap
+	 * @return the size of the bitmap in bytes
+	 */
+	private static int sizeOf(Bitmap icon) {
+		return icon.getRowBytes() * icon.getHeight();
+	}
+}
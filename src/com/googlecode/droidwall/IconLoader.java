@@ -0,0 +1,266 @@
+/**
+ * Loader of the application icons displayed on the main list.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.util.Log;
+import android.widget.ImageView;
+
+import com.googlecode.droidwall.Api.DroidApp;
+
+/**
+ * Loader of the application icons displayed on the main list.
+ * Icons are downscaled to thumbnails, which are kept on a memory cache bounded in bytes
+ * and on a disk cache, so they do not need to be read from the package manager again.
+ * Icons are loaded by a small pool of threads: requests for the same icon are merged, and
+ * requests for rows that have been recycled before their icon is loaded are cancelled.
+ * All public methods must be called on the UI thread.
+ */
+final class IconLoader {
+	/** directory of the thumbnail cache (inside the application cache directory) */
+	private static final String ICONS_DIR = "icons";
+	/** size of the icons on the list, in dips (see listitem.xml) */
+	private static final int ICON_DIPS = 34;
+	/** number of threads used to load the icons */
+	private static final int ICON_THREADS = 2;
+
+	private static IconLoader instance;
+
+	private final PackageManager pkgmanager;
+	private final File dir;
+	private final int size;
+	private final IconCache memory;
+	private final ExecutorService executor = Executors.newFixedThreadPool(ICON_THREADS);
+	private final Handler handler = new Handler();
+	/** icons being loaded */
+	private final HashMap<String, Loader> pending = new HashMap<String, Loader>();
+	/** icon waited for by each view */
+	private final WeakHashMap<ImageView, String> targets = new WeakHashMap<ImageView, String>();
+	/** number of views waiting for each icon (views collected while waiting are still counted until the icon is loaded) */
+	private final HashMap<String, int[]> waiting = new HashMap<String, int[]>();
+
+	/**
+	 * @param ctx application context
+	 */
+	private IconLoader(Context ctx) {
+		this.pkgmanager = ctx.getPackageManager();
+		this.dir = new File(ctx.getCacheDir(), ICONS_DIR);
+		this.size = (int) (ICON_DIPS * ctx.getResources().getDisplayMetrics().density + 0.5f);
+		// use a small fraction of the heap, which is very limited on most devices
+		this.memory = new IconCache((int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 16));
+	}
+	/**
+	 * @param ctx any context
+	 * @return the shared icon loader
+	 */
+	static IconLoader getInstance(Context ctx) {
+		if (instance == null) {
+			instance = new IconLoader(ctx.getApplicationContext());
+		}
+		return instance;
+	}
+	/**
+	 * Display the icon of an application, loading it on background if necessary.
+	 * Any icon previously requested for the same view is cancelled.
+	 * @param app application
+	 * @param view view which will display the icon
+	 */
+	void load(DroidApp app, ImageView view) {
+		final String pkg = app.packages[0];
+		final Bitmap icon = (pkg != null) ? memory.get(pkg) : null;
+		final String previous;
+		if (icon != null || pkg == null) {
+			// no need to load anything
+			view.setImageBitmap(icon);
+			previous = targets.remove(view);
+		} else {
+			view.setImageDrawable(null);
+			previous = targets.put(view, pkg);
+			if (!pkg.equals(previous)) {
+				int count[] = waiting.get(pkg);
+				if (count == null) {
+					count = new int[1];
+					waiting.put(pkg, count);
+				}
+				count[0]++;
+			}
+			if (!pending.containsKey(pkg)) {
+				final Loader loader = new Loader(pkg, app.appinfo);
+				loader.future = executor.submit(loader);
+				pending.put(pkg, loader);
+			}
+		}
+		if (previous != null && !previous.equals(pkg)) {
+			cancelIfUnused(previous);
+		}
+	}
+	/**
+	 * Forget the cached icon of a package (called when it is updated or removed).
+	 * @param ctx any context
+	 * @param pkg package name
+	 */
+	static void forget(Context ctx, String pkg) {
+		if (pkg == null) {
+			return;
+		}
+		if (instance != null) {
+			instance.memory.remove(pkg);
+		}
+		new File(new File(ctx.getCacheDir(), ICONS_DIR), pkg + ".png").delete();
+	}
+	/**
+	 * Cancel the loading of an icon if no view is waiting for it anymore.
+	 * @param pkg package name (of an icon a view has stopped waiting for)
+	 */
+	private void cancelIfUnused(String pkg) {
+		final int count[] = waiting.get(pkg);
+		if (count != null && --count[0] > 0) {
+			return;
+		}
+		waiting.remove(pkg);
+		final Loader loader = pending.remove(pkg);
+		if (loader != null) {
+			loader.future.cancel(false);
+		}
+	}
+	/**
+	 * Display a loaded icon on all views waiting for it.
+	 * @param loader task that has loaded the icon
+	 * @param icon icon thumbnail (null if it could not be loaded)
+	 */
+	private void deliver(Loader loader, Bitmap icon) {
+		final String pkg = loader.pkg;
+		if (pending.get(pkg) == loader) {
+			pending.remove(pkg);
+		}
+		if (icon != null) {
+			memory.put(pkg, icon);
+		}
+		waiting.remove(pkg);
+		final Iterator<Map.Entry<ImageView, String>> it = targets.entrySet().iterator();
+		while (it.hasNext()) {
+			final Map.Entry<ImageView, String> entry = it.next();
+			if (pkg.equals(entry.getValue())) {
+				entry.getKey().setImageBitmap(icon);
+				it.remove();
+			}
+		}
+	}
+	/**
+	 * Read an icon thumbnail from the disk cache.
+	 * @param pkg package name
+	 * @return the thumbnail, or null if it is not cached
+	 */
+	private Bitmap readThumbnail(String pkg) {
+		final File file = new File(dir, pkg + ".png");
+		return file.exists() ? BitmapFactory.decodeFile(file.getPath()) : null;
+	}
+	/**
+	 * Save an icon thumbnail to the disk cache (errors are only logged).
+	 * @param pkg package name
+	 * @param icon icon thumbnail
+	 */
+	private void writeThumbnail(String pkg, Bitmap icon) {
+		final File file = new File(dir, pkg + ".png");
+		final File tmp = new File(dir, pkg + ".tmp");
+		try {
+			dir.mkdirs();
+			final FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				icon.compress(Bitmap.CompressFormat.PNG, 100, out);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+			}
+		} catch (Exception e) {
+			Log.d("DroidWall", "Error saving icon of " + pkg + ": " + e);
+		}
+	}
+	/**
+	 * Draw an icon on a thumbnail with the size used by the list.
+	 * @param drawable application icon
+	 * @return the thumbnail
+	 */
+	private Bitmap createThumbnail(Drawable drawable) {
+		final Bitmap icon = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+		drawable.setBounds(0, 0, size, size);
+		drawable.draw(new Canvas(icon));
+		return icon;
+	}
+
+	/**
+	 * Background task loading one icon.
+	 */
+	private final class Loader implements Runnable {
+		private final String pkg;
+		private final ApplicationInfo appinfo;
+		/** result of submitting this task (set right after it is submitted, on the UI thread) */
+		Future<?> future;
+
+		/**
+		 * @param pkg package name
+		 * @param appinfo application info (null for applications read from the snapshot)
+		 */
+		Loader(String pkg, ApplicationInfo appinfo) {
+			this.pkg = pkg;
+			this.appinfo = appinfo;
+		}
+		public void run() {
+			Bitmap icon = null;
+			try {
+				icon = readThumbnail(pkg);
+				if (icon == null) {
+					final Drawable drawable = (appinfo != null) ? pkgmanager.getApplicationIcon(appinfo) : pkgmanager.getApplicationIcon(pkg);
+					icon = createThumbnail(drawable);
+					writeThumbnail(pkg, icon);
+				}
+			} catch (Exception e) {
+				Log.e("DroidWall", "Error loading icon", e);
+			}
+			final Bitmap result = icon;
+			handler.post(new Runnable() {
+				public void run() {
+					deliver(Loader.this, result);
+				}
+			});
+		}
+	}
+}
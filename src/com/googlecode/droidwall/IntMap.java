@@ -0,0 +1,175 @@
+/**
+ * Map of int keys to int values, without boxing.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Arrays;
+
+/**
+ * Map of int keys to int values, without boxing.
+ * Entries are kept in insertion order on dense arrays (so they can be iterated by index),
+ * and found through an open addressing hash table of entry indexes.
+ * Entries cannot be removed, only all at once.
+ * This class does not depend on Android.
+ */
+final class IntMap {
+	private int keys[];
+	private int values[];
+	/** hash table of entry indexes plus one (zero is an empty slot), its length is a power of two */
+	private int table[];
+	private int size = 0;
+
+	/**
+	 * Creates an empty map.
+	 */
+	IntMap() {
+		keys = new int[8];
+		values = new int[8];
+		table = new int[16];
+	}
+	/**
+	 * @return number of entries
+	 */
+	int size() {
+		return size;
+	}
+	/**
+	 * @param index entry index (0 to size-1, in insertion order)
+	 * @return key of the entry
+	 */
+	int keyAt(int index) {
+		return keys[index];
+	}
+	/**
+	 * @param index entry index (0 to size-1, in insertion order)
+	 * @return value of the entry
+	 */
+	int valueAt(int index) {
+		return values[index];
+	}
+	/**
+	 * @param key key to look for
+	 * @return index of the entry with this key, or -1 if not found
+	 */
+	int indexOf(int key) {
+		final int mask = table.length - 1;
+		for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+			final int entry = table[slot];
+			if (entry == 0) {
+				return -1;
+			}
+			if (keys[entry - 1] == key) {
+				return entry - 1;
+			}
+		}
+	}
+	/**
+	 * @param key key to look for
+	 * @param def value returned if the key is not found
+	 * @return value of the key
+	 */
+	int get(int key, int def) {
+		final int index = indexOf(key);
+		return (index == -1) ? def : values[index];
+	}
+	/**
+	 * Set the value of a key, adding it if necessary.
+	 * @param key key
+	 * @param value new value
+	 * @return index of the entry
+	 */
+	int put(int key, int value) {
+		int index = indexOf(key);
+		if (index == -1) {
+			index = add(key);
+		}
+		values[index] = value;
+		return index;
+	}
+	/**
+	 * Add a delta to the value of a key, adding it (with value zero) if necessary.
+	 * @param key key
+	 * @param delta value to add
+	 * @return new value of the key
+	 */
+	int increment(int key, int delta) {
+		int index = indexOf(key);
+		if (index == -1) {
+			index = add(key);
+		}
+		return values[index] += delta;
+	}
+	/**
+	 * Remove all entries.
+	 */
+	void clear() {
+		Arrays.fill(table, 0);
+		size = 0;
+	}
+	/**
+	 * Add a new entry (the key must not be on the map).
+	 * @param key key
+	 * @return index of the new entry
+	 */
+	private int add(int key) {
+		if (size == keys.length) {
+			final int newkeys[] = new int[size * 2];
+			final int newvalues[] = new int[size * 2];
+			System.arraycopy(keys, 0, newkeys, 0, size);
+			System.arraycopy(values, 0, newvalues, 0, size);
+			keys = newkeys;
+			values = newvalues;
+		}
+		final int index = size++;
+		keys[index] = key;
+		values[index] = 0;
+		if (size * 2 > table.length) {
+			// keep the table at most half full
+			table = new int[table.length * 2];
+			for (int i=0; i<size; i++) {
+				insert(i);
+			}
+		} else {
+			insert(index);
+		}
+		return index;
+	}
+	/**
+	 * Insert an entry index on the hash table.
+	 * @param index entry index
+	 */
+	private void insert(int index) {
+		final int mask = table.length - 1;
+		int slot = hash(keys[index]) & mask;
+		while (table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = index + 1;
+	}
+	/**
+	 * @param key key
+	 * @return well distributed hash of the key (IPv4 addresses and UIDs share their high bits)
+	 */
+	private static int hash(int key) {
+		final int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,227 @@
+/**
+ * Persistent cache of the application labels.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of the application labels (PackageManager.getApplicationLabel() is horribly slow).
+ * Labels are keyed by package name and version code, so updated packages get their label read again,
+ * and all labels are read again when the locale changes.
+ * The package names are kept across locale changes, so new packages can still be told apart.
+ * File layout (big-endian, read in a single sequential read):
+ * <pre>
+ * int magic, int version, UTF locale, int count
+ * count * (UTF package, int versionCode, UTF label)	(empty label if not read yet)
+ * int crc32 (of everything above)
+ * </pre>
+ * This class does not depend on Android.
+ */
+final class LabelStore {
+	/** file signature ("DWLB") */
+	private static final int MAGIC = 0x44574c42;
+	private static final int VERSION = 1;
+
+	private final File file;
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	private String locale = null;
+	private boolean loaded = false;
+	private boolean dirty = false;
+
+	/**
+	 * @param file file used to store the labels
+	 */
+	LabelStore(File file) {
+		this.file = file;
+	}
+	/**
+	 * Load the labels from the file (only the first time), and drop them all if the locale has changed.
+	 * @param locale current locale (E.g.: "en_US")
+	 */
+	synchronized void load(String locale) {
+		if (!loaded) {
+			loaded = true;
+			read();
+		}
+		if (!locale.equals(this.locale)) {
+			// the labels were read on another language - forget them, but keep the packages
+			for (final Entry entry : entries.values()) {
+				entry.label = null;
+			}
+			this.locale = locale;
+			dirty = true;
+		}
+	}
+	/**
+	 * @param pkg package name
+	 * @param versionCode package version code
+	 * @return the cached label, or null if not cached for this version
+	 */
+	synchronized String get(String pkg, int versionCode) {
+		final Entry entry = entries.get(pkg);
+		return (entry != null && entry.versionCode == versionCode) ? entry.label : null;
+	}
+	/**
+	 * @param pkg package name
+	 * @return true if the package has been seen before (with any version)
+	 */
+	synchronized boolean contains(String pkg) {
+		return entries.containsKey(pkg);
+	}
+	/**
+	 * @param pkg package name
+	 * @param versionCode package version code
+	 * @param label application label
+	 */
+	synchronized void put(String pkg, int versionCode, String label) {
+		final Entry entry = entries.get(pkg);
+		if (entry != null && entry.versionCode == versionCode && label.equals(entry.label)) {
+			return;
+		}
+		entries.put(pkg, new Entry(versionCode, label));
+		dirty = true;
+	}
+	/**
+	 * @param pkg package name to remove
+	 */
+	synchronized void remove(String pkg) {
+		if (entries.remove(pkg) != null) {
+			dirty = true;
+		}
+	}
+	/**
+	 * Remove the labels of all packages that are not installed anymore.
+	 * @param installed installed package names
+	 */
+	synchronized void retain(Set<String> installed) {
+		for (final Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+			if (!installed.contains(it.next())) {
+				it.remove();
+				dirty = true;
+			}
+		}
+	}
+	/**
+	 * Write the labels to the file, if they have changed.
+	 * @throws IOException if the file cannot be written
+	 */
+	synchronized void save() throws IOException {
+		if (!dirty) {
+			return;
+		}
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entries.size() * 48);
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(locale == null ? "" : locale);
+		out.writeInt(entries.size());
+		for (final String pkg : entries.keySet()) {
+			final Entry entry = entries.get(pkg);
+			out.writeUTF(pkg);
+			out.writeInt(entry.versionCode);
+			out.writeUTF(entry.label == null ? "" : entry.label);
+		}
+		final CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeInt((int) crc.getValue());
+		out.flush();
+		final File tmp = new File(file.getPath() + ".tmp");
+		final FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			bytes.writeTo(fos);
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Cannot replace " + file);
+		}
+		dirty = false;
+	}
+	/**
+	 * Read the labels from the file (a missing or corrupted file is just ignored).
+	 */
+	private void read() {
+		if (!file.exists() || file.length() < 12 || file.length() > Integer.MAX_VALUE) {
+			return;
+		}
+		try {
+			final byte data[] = new byte[(int) file.length()];
+			final FileInputStream fis = new FileInputStream(file);
+			try {
+				int pos = 0;
+				while (pos < data.length) {
+					final int len = fis.read(data, pos, data.length - pos);
+					if (len == -1) return;
+					pos += len;
+				}
+			} finally {
+				fis.close();
+			}
+			final CRC32 crc = new CRC32();
+			crc.update(data, 0, data.length - 4);
+			final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			in.skipBytes(data.length - 4);
+			if (in.readInt() != (int) crc.getValue()) {
+				return;
+			}
+			final DataInputStream entriesIn = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 4));
+			if (entriesIn.readInt() != MAGIC || entriesIn.readInt() != VERSION) {
+				return;
+			}
+			locale = entriesIn.readUTF();
+			final int count = entriesIn.readInt();
+			for (int i=0; i<count; i++) {
+				final String pkg = entriesIn.readUTF();
+				final int versionCode = entriesIn.readInt();
+				final String label = entriesIn.readUTF();
+				entries.put(pkg, new Entry(versionCode, label.length() > 0 ? label : null));
+			}
+		} catch (IOException ex) {
+			entries.clear();
+			locale = null;
+		}
+	}
+
+	/**
+	 * Cached label of a package version.
+	 */
+	private static final class Entry {
+		private final int versionCode;
+		private String label; // null if it must be read again
+		private Entry(int versionCode, String label) {
+			this.versionCode = versionCode;
+			this.label = label;
+		}
+	}
+}
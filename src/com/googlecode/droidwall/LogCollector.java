@@ -0,0 +1,308 @@
+/**
+ * Background collector of the packets blocked by DroidWall.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Background collector of the packets blocked by DroidWall.
+ * A thread reads the kernel log incrementally from a {@link LogSource} and adds the DroidWall lines
+ * to a {@link LogSummary}, so the blocked packets survive kernel ring buffer overruns and can be shown
+ * without reading the whole log again.
+ * If the source stops (E.g.: the reading process dies), it is opened again from the last complete line read.
+ * The events are also appended to an {@link EventStore} (if any), and the summary starts with the events
+ * kept there, so the blocked packets are also shown across restarts. The summary shown is then read again
+ * from the store, so events past the retention period expire.
+ * The logger and the clock are injected, so this class does not depend on Android.
+ */
+final class LogCollector {
+	/** maximum length of a log line (longer lines are truncated) */
+	private static final int MAX_LINE = 1024;
+	/** delay before opening the source again, in milliseconds */
+	private static final long RETRY_DELAY = 1000;
+	/** maximum delay before opening the source again, in milliseconds */
+	private static final long MAX_RETRY_DELAY = 60000;
+
+	/** minimum time between writes of the events to the store, in milliseconds */
+	private static final long FLUSH_DELAY = 1000;
+
+	/**
+	 * Source of the event times.
+	 */
+	interface Clock {
+		/**
+		 * @return current time, in milliseconds since the epoch
+		 */
+		long now();
+	}
+	/** clock of the system (System.currentTimeMillis()) */
+	static final Clock SYSTEM_CLOCK = new Clock() {
+		public long now() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	private final LogSource source;
+	private final EventStore store;
+	private final Logger logger;
+	private final Clock clock;
+	private final LogParser parser = new LogParser();
+	private final LogSummary summary = new LogSummary();
+	private long lastFlush = 0;
+	/** number of bytes consumed from the source (complete lines only) */
+	private long cursor = 0;
+	private volatile boolean running;
+	private Thread thread;
+
+	/**
+	 * @param source source of the kernel log lines
+	 * @param store store of the events (null for none), closed when the collector stops
+	 * @param logger receives the read errors
+	 * @param clock source of the event times
+	 */
+	LogCollector(LogSource source, EventStore store, Logger logger, Clock clock) {
+		this.source = source;
+		this.store = store;
+		this.logger = logger;
+		this.clock = clock;
+	}
+	/**
+	 * Start collecting on a background thread.
+	 */
+	synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread("LogCollector") {
+			@Override
+			public void run() {
+				collect();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+	/**
+	 * Stop collecting, waiting for the background thread to finish (the collected information is kept).
+	 * The store is closed by the background thread itself, so no event is appended after it is closed.
+	 * This blocks until the current read ends, so it should not be called on the main thread.
+	 */
+	void stop() {
+		final Thread t;
+		synchronized (this) {
+			t = thread;
+			thread = null;
+			running = false;
+		}
+		if (t == null) {
+			return;
+		}
+		source.close();
+		t.interrupt();
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	/**
+	 * @return number of bytes consumed from the source so far
+	 */
+	synchronized long getCursor() {
+		return cursor;
+	}
+	/**
+	 * @return true if no blocked packet was collected
+	 */
+	boolean isEmpty() {
+		synchronized (summary) {
+			return summary.isEmpty();
+		}
+	}
+	/**
+	 * Format the collected information for display.
+	 * With a store, the events are summarized again from it, so only the events of the retention
+	 * period are shown; otherwise the summary covers everything collected since the start.
+	 * @param names application names per UID
+	 * @return human readable summary
+	 */
+	String format(Map<Integer, String[]> names) {
+		synchronized (summary) {
+			if (store == null) {
+				return summary.format(names);
+			}
+			final LogSummary window = new LogSummary();
+			store.summarize(clock.now() - EventStore.RETENTION, Long.MAX_VALUE, window);
+			return window.format(names);
+		}
+	}
+	/**
+	 * Discard the collected information.
+	 */
+	void clear() {
+		synchronized (summary) {
+			summary.clear();
+			if (store != null) {
+				store.clear();
+			}
+		}
+	}
+	/**
+	 * Background thread loop: read the source, opening it again whenever it stops.
+	 */
+	private void collect() {
+		try {
+			if (store != null) {
+				final long now = clock.now();
+				synchronized (summary) {
+					store.summarize(now - EventStore.RETENTION, Long.MAX_VALUE, summary);
+				}
+			}
+			loop();
+		} finally {
+			if (store != null) {
+				synchronized (summary) {
+					store.close();
+				}
+			}
+		}
+	}
+	/**
+	 * Read the source until the collector is stopped, opening it again whenever it stops.
+	 */
+	private void loop() {
+		long delay = RETRY_DELAY;
+		while (running) {
+			InputStream in = null;
+			try {
+				in = source.open(getCursor());
+				if (read(in)) {
+					// something was read - the source was working
+					delay = RETRY_DELAY;
+				}
+			} catch (IOException e) {
+				if (running) logger.d("Error reading the kernel log: " + e);
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+			if (!running) {
+				break;
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				break;
+			}
+			delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+		}
+	}
+	/**
+	 * Read complete lines from a stream until it ends.
+	 * @param in stream to read
+	 * @return true if anything was read
+	 * @throws IOException on read errors
+	 */
+	private boolean read(InputStream in) throws IOException {
+		final byte buf[] = new byte[4096];
+		final byte line[] = new byte[MAX_LINE];
+		int linelen = 0;
+		// bytes of the current line, including the truncated ones
+		long pending = 0;
+		boolean any = false;
+		int n;
+		while (running && (n = in.read(buf, 0, buf.length)) != -1) {
+			any = true;
+			for (int i=0; i<n; i++) {
+				final byte b = buf[i];
+				pending++;
+				if (b == '\n') {
+					addLine(line, linelen);
+					synchronized (this) {
+						cursor += pending;
+					}
+					linelen = 0;
+					pending = 0;
+				} else if (linelen < line.length) {
+					line[linelen++] = b;
+				}
+			}
+			// write the events when there is nothing else to read
+			flushStore(in.available() == 0);
+		}
+		flushStore(true);
+		return any;
+	}
+	/**
+	 * Add a complete line to the summary (parsed straight from the line buffer).
+	 * @param line line buffer
+	 * @param len line length
+	 */
+	private void addLine(byte line[], int len) {
+		if (parser.parse(line, 0, len)) {
+			addEvent(parser.uid, parser.hasDst, parser.dst, parser.dpt, parser.proto);
+		}
+	}
+	/**
+	 * Add a blocked packet to the summary and to the store.
+	 * @param uid application UID (LogParser.UNKNOWN_UID for the kernel)
+	 * @param hasDst indicates if the destination address is known
+	 * @param dst destination IPv4 address (ignored if hasDst is false)
+	 * @param dpt destination port (-1 if unknown)
+	 * @param proto protocol number (LogParser.PROTO_NONE if unknown)
+	 */
+	private void addEvent(int uid, boolean hasDst, int dst, int dpt, int proto) {
+		synchronized (summary) {
+			summary.add(uid, hasDst, dst, dpt, 1);
+			if (store != null) {
+				try {
+					store.append(clock.now(), uid, hasDst, dst, dpt, proto);
+				} catch (IOException e) {
+					logger.d("Error storing blocked packet: " + e);
+				}
+			}
+		}
+	}
+	/**
+	 * Write the buffered events to the store, at most once every FLUSH_DELAY.
+	 * @param force if true, write them now
+	 */
+	private void flushStore(boolean force) {
+		final long now = clock.now();
+		if (store == null || (!force && now - lastFlush < FLUSH_DELAY)) {
+			return;
+		}
+		lastFlush = now;
+		try {
+			store.flush();
+		} catch (IOException e) {
+			logger.d("Error storing blocked packets: " + e);
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/**
+ * Byte-level parser of the DroidWall kernel log lines.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+/**
+ * Byte-level parser of the DroidWall kernel log lines.
+ * The fields of a line are read straight from the log buffer, without creating strings or boxed
+ * numbers: after a successful {@link #parse(byte[], int, int)} they are available on the parser fields
+ * until the next line is parsed. IPv4 addresses are encoded as ints (most significant byte first),
+ * and interfaces are replaced by small ids, so their names are only allocated once.
+ * This class does not depend on Android.
+ */
+final class LogParser {
+	/** UID used for packets without an owner (kernel) */
+	static final int UNKNOWN_UID = -99;
+	/** protocol numbers (as used by PROTO=), PROTO_NONE if not logged */
+	static final int PROTO_NONE = -1;
+	static final int PROTO_ICMP = 1;
+	static final int PROTO_TCP = 6;
+	static final int PROTO_UDP = 17;
+	/**
+	 * destination of the packets sent to IPv6 addresses, which share a single bucket
+	 * (0.0.0.0 is never the destination of a sent packet, so it is not used by IPv4 lines)
+	 */
+	static final int IPV6_DST = 0;
+	/** prefix of the DroidWall log lines */
+	private static final byte PREFIX[] = {'[', 'D', 'R', 'O', 'I', 'D', 'W', 'A', 'L', 'L', ']'};
+	private static final byte KEY_OUT[] = {'O', 'U', 'T', '='};
+	private static final byte KEY_DST[] = {'D', 'S', 'T', '='};
+	private static final byte KEY_DPT[] = {'D', 'P', 'T', '='};
+	private static final byte KEY_PROTO[] = {'P', 'R', 'O', 'T', 'O', '='};
+	private static final byte KEY_UID[] = {'U', 'I', 'D', '='};
+	private static final byte NAME_TCP[] = {'T', 'C', 'P'};
+	private static final byte NAME_UDP[] = {'U', 'D', 'P'};
+	private static final byte NAME_ICMP[] = {'I', 'C', 'M', 'P'};
+	/** maximum number of distinct interfaces (the others share the last id) */
+	private static final int MAX_IFACES = 64;
+
+	/** owner of the packet, UNKNOWN_UID if not logged */
+	int uid;
+	/** destination IPv4 address (IPV6_DST for any IPv6 address), only valid if hasDst is true */
+	int dst;
+	boolean hasDst;
+	/** destination port, -1 if not logged */
+	int dpt;
+	/** protocol number, PROTO_NONE if not logged */
+	int proto;
+	/** output interface id (see {@link #getInterface(int)}), -1 if not logged */
+	int iface;
+
+	private final byte ifaceNames[][] = new byte[MAX_IFACES][];
+	private final String ifaceStrings[] = new String[MAX_IFACES];
+	private int ifaceCount = 0;
+
+	/**
+	 * Parse a single log line (without the line terminator).
+	 * @param buf log buffer
+	 * @param off line start
+	 * @param len line length
+	 * @return true if this is a DroidWall line (and the fields were set), false if it must be ignored
+	 */
+	boolean parse(byte buf[], int off, int len) {
+		final int end = off + len;
+		int pos = find(buf, off, end, PREFIX);
+		if (pos == -1) {
+			return false;
+		}
+		uid = UNKNOWN_UID;
+		hasDst = false;
+		dpt = -1;
+		proto = PROTO_NONE;
+		iface = -1;
+		pos += PREFIX.length;
+		while (pos < end) {
+			// skip to the next token
+			while (pos < end && buf[pos] == ' ') pos++;
+			if (pos < end && buf[pos] == '[') {
+				// packet quoted by an ICMP error: its fields are not those of the blocked packet
+				pos = skipQuoted(buf, pos, end);
+				continue;
+			}
+			int tokenEnd = pos;
+			while (tokenEnd < end && buf[tokenEnd] != ' ') tokenEnd++;
+			if (startsWith(buf, pos, tokenEnd, KEY_UID)) {
+				final int value = parseInt(buf, pos + KEY_UID.length, tokenEnd);
+				if (value >= 0) uid = value;
+			} else if (startsWith(buf, pos, tokenEnd, KEY_DST)) {
+				hasDst = parseAddress(buf, pos + KEY_DST.length, tokenEnd);
+			} else if (startsWith(buf, pos, tokenEnd, KEY_DPT)) {
+				dpt = parseInt(buf, pos + KEY_DPT.length, tokenEnd);
+			} else if (startsWith(buf, pos, tokenEnd, KEY_PROTO)) {
+				proto = parseProto(buf, pos + KEY_PROTO.length, tokenEnd);
+			} else if (startsWith(buf, pos, tokenEnd, KEY_OUT)) {
+				iface = internInterface(buf, pos + KEY_OUT.length, tokenEnd);
+			}
+			pos = tokenEnd;
+		}
+		return true;
+	}
+	/**
+	 * @param id interface id
+	 * @return interface name, or null if unknown
+	 */
+	String getInterface(int id) {
+		if (id < 0 || id >= ifaceCount) {
+			return null;
+		}
+		if (ifaceStrings[id] == null) {
+			final byte name[] = ifaceNames[id];
+			final char chars[] = new char[name.length];
+			for (int i=0; i<name.length; i++) {
+				chars[i] = (char) (name[i] & 0xff);
+			}
+			ifaceStrings[id] = new String(chars);
+		}
+		return ifaceStrings[id];
+	}
+	/**
+	 * Format an IPv4 address encoded as an int.
+	 * @param addr address (most significant byte first)
+	 * @return dotted address (E.g.: "10.0.0.1")
+	 */
+	static String formatAddress(int addr) {
+		return new StringBuilder(15).append(addr >>> 24).append('.').append((addr >>> 16) & 0xff).append('.')
+			.append((addr >>> 8) & 0xff).append('.').append(addr & 0xff).toString();
+	}
+	/**
+	 * @return the id of an interface name, adding it if necessary
+	 */
+	private int internInterface(byte buf[], int start, int end) {
+		if (start == end) {
+			return -1;
+		}
+		for (int i=0; i<ifaceCount; i++) {
+			final byte name[] = ifaceNames[i];
+			if (name.length == end - start && startsWith(buf, start, end, name)) {
+				return i;
+			}
+		}
+		if (ifaceCount == MAX_IFACES) {
+			return MAX_IFACES - 1;
+		}
+		final byte name[] = new byte[end - start];
+		System.arraycopy(buf, start, name, 0, name.length);
+		ifaceNames[ifaceCount] = name;
+		return ifaceCount++;
+	}
+	/**
+	 * @return the position after the bracketed section starting at start (nested sections included)
+	 */
+	private static int skipQuoted(byte buf[], int start, int end) {
+		int depth = 0;
+		for (int i=start; i<end; i++) {
+			if (buf[i] == '[') {
+				depth++;
+			} else if (buf[i] == ']' && --depth == 0) {
+				return i + 1;
+			}
+		}
+		return end;
+	}
+	/**
+	 * Parse a dotted IPv4 address, setting the dst field.
+	 * IPv6 addresses are accepted as IPV6_DST.
+	 * @return true if the address is valid
+	 */
+	private boolean parseAddress(byte buf[], int start, int end) {
+		if (isIpv6(buf, start, end)) {
+			dst = IPV6_DST;
+			return true;
+		}
+		int addr = 0, octet = -1, dots = 0;
+		for (int i=start; i<end; i++) {
+			final byte b = buf[i];
+			if (b >= '0' && b <= '9') {
+				octet = ((octet == -1) ? 0 : octet * 10) + (b - '0');
+				if (octet > 255) return false;
+			} else if (b == '.' && octet != -1 && dots < 3) {
+				addr = (addr << 8) | octet;
+				octet = -1;
+				dots++;
+			} else {
+				return false;
+			}
+		}
+		if (octet == -1 || dots != 3) {
+			return false;
+		}
+		dst = (addr << 8) | octet;
+		return dst != IPV6_DST;
+	}
+	/**
+	 * @return true if the buffer range looks like an IPv6 address (hexadecimal digits, colons and
+	 *  dots, with at least two colons)
+	 */
+	private static boolean isIpv6(byte buf[], int start, int end) {
+		int colons = 0;
+		for (int i=start; i<end; i++) {
+			final byte b = buf[i];
+			if (b == ':') {
+				colons++;
+			} else if (!((b >= '0' && b <= '9') || (b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F') || b == '.')) {
+				return false;
+			}
+		}
+		return colons >= 2;
+	}
+	/**
+	 * @return the protocol number of a PROTO= value (a name or a number)
+	 */
+	private static int parseProto(byte buf[], int start, int end) {
+		final int len = end - start;
+		if (len == NAME_TCP.length && startsWith(buf, start, end, NAME_TCP)) return PROTO_TCP;
+		if (len == NAME_UDP.length && startsWith(buf, start, end, NAME_UDP)) return PROTO_UDP;
+		if (len == NAME_ICMP.length && startsWith(buf, start, end, NAME_ICMP)) return PROTO_ICMP;
+		final int value = parseInt(buf, start, end);
+		return (value >= 0) ? value : PROTO_NONE;
+	}
+	/**
+	 * @return the non-negative decimal number on the buffer, or -1 if invalid
+	 */
+	private static int parseInt(byte buf[], int start, int end) {
+		if (start == end || end - start > 9) {
+			return -1;
+		}
+		int value = 0;
+		for (int i=start; i<end; i++) {
+			final byte b = buf[i];
+			if (b < '0' || b > '9') return -1;
+			value = value * 10 + (b - '0');
+		}
+		return value;
+	}
+	/**
+	 * @return true if the buffer range starts with the given bytes
+	 */
+	private static boolean startsWith(byte buf[], int start, int end, byte prefix[]) {
+		if (end - start < prefix.length) {
+			return false;
+		}
+		for (int i=0; i<prefix.length; i++) {
+			if (buf[start + i] != prefix[i]) return false;
+		}
+		return true;
+	}
+	/**
+	 * @return the position of the first occurrence of the given bytes on the buffer range, or -1 if not found
+	 */
+	private static int find(byte buf[], int start, int end, byte what[]) {
+		final byte first = what[0];
+		for (int i=start; i<=end-what.length; i++) {
+			if (buf[i] == first && startsWith(buf, i, end, what)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
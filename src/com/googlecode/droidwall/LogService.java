@@ -0,0 +1,126 @@
+/**
+ * Service that keeps the kernel log collector running.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.IBinder;
+import android.util.Log;
+
+/**
+ * Service that keeps the kernel log collector running while the firewall rules log the blocked packets.
+ */
+public class LogService extends Service {
+	/** directory of the blocked packet events (see {@link EventStore}) */
+	private static final String EVENTS_DIR = "events";
+	/** file keeping the position on the kernel log (see {@link LogSource.Kmsg}) */
+	private static final String KMSG_STATE = "kmsg.state";
+	/** logger of the collector and of the event store */
+	static final Logger LOGGER = new Logger() {
+		public void d(String message) {
+			Log.d("DroidWall", message);
+		}
+	};
+	/** worker starting and stopping the collectors, since stopping one waits for its thread */
+	private static final ExecutorService worker = Executors.newSingleThreadExecutor();
+	/** collector of the running service (null if not running) */
+	private static volatile LogCollector collector;
+
+	/**
+	 * @return the collector of the running service, or null if it is not running
+	 */
+	static LogCollector getCollector() {
+		return collector;
+	}
+	/**
+	 * Discard the collected blocked packets, including the stored ones.
+	 * @param ctx context
+	 */
+	static void clear(Context ctx) {
+		final LogCollector c = collector;
+		if (c != null) {
+			c.clear();
+		} else {
+			new EventStore(new File(ctx.getFilesDir(), EVENTS_DIR), LOGGER).clear();
+		}
+	}
+	/**
+	 * Start or stop the service.
+	 * @param ctx context
+	 * @param enabled true to start the service, false to stop it
+	 */
+	static void update(Context ctx, boolean enabled) {
+		final Intent intent = new Intent(ctx, LogService.class);
+		if (enabled) {
+			ctx.startService(intent);
+		} else {
+			ctx.stopService(intent);
+		}
+	}
+
+	@Override
+	public void onStart(Intent intent, int startId) {
+		super.onStart(intent, startId);
+		final File dir = new File(getFilesDir(), EVENTS_DIR);
+		final File state = new File(getFilesDir(), KMSG_STATE);
+		worker.execute(new Runnable() {
+			public void run() {
+				start(dir, state);
+			}
+		});
+	}
+	@Override
+	public void onDestroy() {
+		worker.execute(new Runnable() {
+			public void run() {
+				final LogCollector c = collector;
+				collector = null;
+				if (c != null) {
+					c.stop();
+				}
+			}
+		});
+		super.onDestroy();
+	}
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+	/**
+	 * Start the collector, unless it is already running (called on the worker).
+	 * @param dir directory of the blocked packet events
+	 * @param state file keeping the position on the kernel log
+	 */
+	private static void start(File dir, File state) {
+		if (collector != null) {
+			return;
+		}
+		final LogCollector c = new LogCollector(LogSource.Kmsg.root(state), new EventStore(dir, LOGGER), LOGGER, LogCollector.SYSTEM_CLOCK);
+		c.start();
+		collector = c;
+	}
+}
@@ -0,0 +1,315 @@
+/**
+ * Source of kernel log lines, read incrementally by the log collector.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Source of kernel log lines, read incrementally by the {@link LogCollector}.
+ * Sources only provide the raw stream, so a recorded log file can stand in for the kernel.
+ */
+interface LogSource {
+	/**
+	 * Open the source, positioned at the given cursor.
+	 * @param cursor number of bytes already consumed from this source
+	 * (ignored by sources that keep their own position, such as {@link Kmsg})
+	 * @return stream of log lines
+	 * @throws IOException if the source cannot be opened
+	 */
+	InputStream open(long cursor) throws IOException;
+	/**
+	 * Close the source, unblocking any pending read.
+	 */
+	void close();
+
+	/**
+	 * Kernel log records followed as root on a dedicated process (so the root shell is not held).
+	 * /dev/kmsg is read when available: every reader gets its own copy of the records, and each record starts
+	 * with a sequence number ("priority,sequence,timestamp,flags;message"), so reopening the source skips the
+	 * records already returned, even across restarts (the last sequence number is saved along with the boot id).
+	 * Older kernels only have /proc/kmsg, which is consumed as it is read.
+	 * The cursor is ignored, since this position is kept by the source itself.
+	 */
+	static final class Kmsg implements LogSource {
+		/** kernel log device with sequence numbers (Linux 3.5 and later) */
+		static final String DEV_KMSG = "/dev/kmsg";
+		/** consuming kernel log reader of older kernels */
+		static final String PROC_KMSG = "/proc/kmsg";
+		/** random id of the current boot */
+		static final String BOOT_ID = "/proc/sys/kernel/random/boot_id";
+		/** maximum length of a record line (longer lines are truncated) */
+		private static final int MAX_LINE = 8192;
+
+		private final String command[];
+		private final File state;
+		private final File bootIdFile;
+		private String bootId;
+		/** sequence number of the last record returned (-1 if none) */
+		private long lastSeq = -1;
+		private boolean loaded = false;
+		private Process process;
+
+		/**
+		 * @param command command printing the kernel log records as they are logged (E.g.: "cat /dev/kmsg")
+		 * @param state file keeping the last sequence number returned
+		 * @param bootId file with the id of the current boot (see BOOT_ID)
+		 */
+		Kmsg(String command[], File state, File bootId) {
+			this.command = command;
+			this.state = state;
+			this.bootIdFile = bootId;
+		}
+		/**
+		 * Creates a source reading the kernel log as root.
+		 * @param state file keeping the last sequence number returned
+		 * @return new source
+		 */
+		static Kmsg root(File state) {
+			final String device = new File(DEV_KMSG).exists() ? DEV_KMSG : PROC_KMSG;
+			return new Kmsg(new String[] {"su", "-c", "cat " + device}, state, new File(BOOT_ID));
+		}
+		public synchronized InputStream open(long cursor) throws IOException {
+			close();
+			if (!loaded) {
+				load();
+				loaded = true;
+			}
+			process = Runtime.getRuntime().exec(command);
+			final InputStream in = new BufferedInputStream(process.getInputStream());
+			return new InputStream() {
+				private final byte line[] = new byte[MAX_LINE];
+				private int len = 0;
+				private int pos = 0;
+				/** indicates if the current record was returned (for its continuation lines) */
+				private boolean returned = true;
+				@Override
+				public int read() throws IOException {
+					final byte b[] = new byte[1];
+					return (read(b, 0, 1) == 1) ? (b[0] & 0xff) : -1;
+				}
+				@Override
+				public int read(byte[] b, int off, int n) throws IOException {
+					while (pos == len) {
+						if (!nextLine()) {
+							return -1;
+						}
+					}
+					n = Math.min(n, len - pos);
+					System.arraycopy(line, pos, b, off, n);
+					pos += n;
+					return n;
+				}
+				@Override
+				public int available() throws IOException {
+					return (len - pos) + in.available();
+				}
+				@Override
+				public void close() throws IOException {
+					in.close();
+				}
+				/**
+				 * Read the next line, keeping it only if it belongs to a new record.
+				 * @return false at the end of the stream
+				 */
+				private boolean nextLine() throws IOException {
+					len = 0;
+					pos = 0;
+					int c;
+					while ((c = in.read()) != -1 && c != '\n') {
+						if (len < line.length - 1) line[len++] = (byte) c;
+					}
+					if (c == -1) {
+						// incomplete lines are dropped
+						len = 0;
+						return false;
+					}
+					line[len++] = '\n';
+					if (line[0] == ' ') {
+						// continuation line of the previous record
+						if (!returned) len = 0;
+						return true;
+					}
+					final long seq = sequence(line, len);
+					if (seq != -1) {
+						synchronized (Kmsg.this) {
+							returned = (seq > lastSeq);
+							if (returned) {
+								lastSeq = seq;
+							} else {
+								len = 0;
+							}
+						}
+					}
+					return true;
+				}
+			};
+		}
+		public synchronized void close() {
+			if (process != null) {
+				process.destroy();
+				process = null;
+				save();
+			}
+		}
+		/**
+		 * @return the sequence number of a /dev/kmsg record line, or -1 if the line has no header
+		 */
+		static long sequence(byte line[], int len) {
+			int i = 0;
+			while (i < len && line[i] >= '0' && line[i] <= '9') i++;
+			if (i == 0 || i == len || line[i] != ',') {
+				return -1;
+			}
+			long seq = 0;
+			int digits = 0;
+			for (i++; i < len && line[i] >= '0' && line[i] <= '9'; i++) {
+				seq = seq * 10 + (line[i] - '0');
+				digits++;
+			}
+			return (digits > 0 && digits < 19 && i < len && (line[i] == ',' || line[i] == ';')) ? seq : -1;
+		}
+		/**
+		 * Read the last sequence number returned on the current boot (if any).
+		 */
+		private void load() {
+			bootId = readLine(bootIdFile);
+			final String saved = readLine(state);
+			if (bootId == null || saved == null) {
+				return;
+			}
+			final int sep = saved.indexOf(' ');
+			if (sep != -1 && saved.substring(0, sep).equals(bootId)) {
+				try {
+					lastSeq = Long.parseLong(saved.substring(sep + 1));
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+		/**
+		 * Save the last sequence number returned, along with the boot id.
+		 */
+		private void save() {
+			if (bootId == null || lastSeq == -1) {
+				return;
+			}
+			try {
+				final FileOutputStream out = new FileOutputStream(state);
+				try {
+					out.write((bootId + " " + lastSeq + "\n").getBytes("US-ASCII"));
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				// the records are read again next time
+			}
+		}
+		/**
+		 * @return the first line of a file, or null if it cannot be read
+		 */
+		private static String readLine(File file) {
+			try {
+				final BufferedReader r = new BufferedReader(new FileReader(file));
+				try {
+					final String line = r.readLine();
+					return (line != null) ? line.trim() : null;
+				} finally {
+					r.close();
+				}
+			} catch (IOException e) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Recorded log file, followed as it grows (like "tail -f").
+	 */
+	static final class Recorded implements LogSource {
+		/** delay between checks for new data at the end of the file, in milliseconds */
+		private static final long POLL_DELAY = 200;
+		private final File file;
+		private final boolean follow;
+		private volatile boolean closed;
+		private RandomAccessFile raf;
+
+		/**
+		 * @param file recorded log file
+		 * @param follow if true, wait for new data at the end of the file until the source is closed
+		 */
+		Recorded(File file, boolean follow) {
+			this.file = file;
+			this.follow = follow;
+		}
+		public synchronized InputStream open(long cursor) throws IOException {
+			if (raf != null) {
+				raf.close();
+			}
+			closed = false;
+			final RandomAccessFile in = new RandomAccessFile(file, "r");
+			in.seek(Math.min(cursor, in.length()));
+			raf = in;
+			return new InputStream() {
+				@Override
+				public int read() throws IOException {
+					final byte b[] = new byte[1];
+					return (read(b, 0, 1) == 1) ? (b[0] & 0xff) : -1;
+				}
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					while (!closed) {
+						final int n = in.read(b, off, len);
+						if (n > 0 || !follow) {
+							return n;
+						}
+						try {
+							Thread.sleep(POLL_DELAY);
+						} catch (InterruptedException e) {
+							break;
+						}
+					}
+					return -1;
+				}
+				@Override
+				public void close() throws IOException {
+					in.close();
+				}
+			};
+		}
+		public synchronized void close() {
+			closed = true;
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+				raf = null;
+			}
+		}
+	}
+}
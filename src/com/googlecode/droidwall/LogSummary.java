@@ -0,0 +1,302 @@
+/**
+ * Summary of the packets blocked by DroidWall, built from the kernel log.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Summary of the packets blocked by DroidWall, built from the kernel log (dmesg) lines.
+ * Lines are parsed straight from the log bytes by a {@link LogParser}, and counted without allocating
+ * (except for the first packet of an application).
+ * The total of blocked packets per application is exact, while only the most frequent destinations
+ * and ports are kept, on fixed-size {@link TopK} counters (with error bounds).
+ * This class does not depend on Android.
+ */
+final class LogSummary {
+	/** UID used for packets without an owner (kernel) */
+	static final int UNKNOWN_UID = LogParser.UNKNOWN_UID;
+	/** number of destinations and ports kept per application (enough to keep the busiest ones past a scan) */
+	static final int TOP_DESTINATIONS = 64;
+	static final int TOP_PORTS = 32;
+	/** number of destinations and ports shown per application */
+	private static final int SHOWN_DESTINATIONS = 10;
+	private static final int SHOWN_PORTS = 5;
+
+	private final LogParser parser = new LogParser();
+	/** index of the blocked packets information per UID */
+	private final IntMap uids = new IntMap();
+	/** blocked packets information, in the order the UIDs were found */
+	private final ArrayList<LogInfo> infos = new ArrayList<LogInfo>();
+
+	/**
+	 * Parse all DroidWall lines of a kernel log.
+	 * @param log kernel log (one entry per line)
+	 */
+	void parse(String log) {
+		final byte buf[];
+		try {
+			buf = log.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return;
+		}
+		parse(buf, 0, buf.length);
+	}
+	/**
+	 * Parse all DroidWall lines of a kernel log buffer.
+	 * @param buf kernel log buffer (one entry per line)
+	 * @param off log start
+	 * @param len log length
+	 */
+	void parse(byte buf[], int off, int len) {
+		final int end = off + len;
+		int pos = off;
+		while (pos < end) {
+			int eol = pos;
+			while (eol < end && buf[eol] != '\n') eol++;
+			add(buf, pos, eol - pos);
+			pos = eol + 1;
+		}
+	}
+	/**
+	 * Add a single kernel log line (lines not generated by DroidWall are ignored).
+	 * @param buf log buffer
+	 * @param off line start
+	 * @param len line length (without the line terminator)
+	 */
+	void add(byte buf[], int off, int len) {
+		if (!parser.parse(buf, off, len)) return;
+		add(parser.uid, parser.hasDst, parser.dst, parser.dpt, 1);
+	}
+	/**
+	 * Add blocked packets of an application.
+	 * @param uid application UID (UNKNOWN_UID for the kernel)
+	 * @param hasDst indicates if the destination address is known
+	 * @param dst destination IPv4 address (ignored if hasDst is false)
+	 * @param dpt destination port (-1 if unknown)
+	 * @param count number of packets
+	 */
+	void add(int uid, boolean hasDst, int dst, int dpt, int count) {
+		final LogInfo loginfo = getInfo(uid);
+		loginfo.totalBlocked += count;
+		if (hasDst) {
+			loginfo.dstBlocked.offer(dst, count);
+		}
+		if (dpt >= 0) {
+			loginfo.dptBlocked.offer(dpt, count);
+		}
+	}
+	/**
+	 * Add all blocked packets of another summary.
+	 * @param other summary to add
+	 */
+	void add(LogSummary other) {
+		for (int i=0; i<other.uids.size(); i++) {
+			final LogInfo from = other.infos.get(other.uids.valueAt(i));
+			final LogInfo loginfo = getInfo(other.uids.keyAt(i));
+			loginfo.totalBlocked += from.totalBlocked;
+			loginfo.dstBlocked.add(from.dstBlocked);
+			loginfo.dptBlocked.add(from.dptBlocked);
+		}
+	}
+	/**
+	 * @param uid application UID
+	 * @return blocked packets information of the application, created if necessary
+	 */
+	private LogInfo getInfo(int uid) {
+		final int index = uids.indexOf(uid);
+		if (index != -1) {
+			return infos.get(uids.valueAt(index));
+		}
+		final LogInfo loginfo = new LogInfo();
+		uids.put(uid, infos.size());
+		infos.add(loginfo);
+		return loginfo;
+	}
+	/**
+	 * Write the summary counters (see {@link #readFrom(DataInput)}).
+	 * @param out output
+	 * @throws IOException on write errors
+	 */
+	void writeTo(DataOutput out) throws IOException {
+		out.writeInt(uids.size());
+		for (int i=0; i<uids.size(); i++) {
+			final LogInfo loginfo = infos.get(uids.valueAt(i));
+			out.writeInt(uids.keyAt(i));
+			out.writeInt(loginfo.totalBlocked);
+			writeTopK(out, loginfo.dstBlocked);
+			writeTopK(out, loginfo.dptBlocked);
+		}
+	}
+	/**
+	 * Write the monitored keys of a counter.
+	 * @param out output
+	 * @param top counter
+	 * @throws IOException on write errors
+	 */
+	private static void writeTopK(DataOutput out, TopK top) throws IOException {
+		out.writeInt(top.size());
+		for (int i=0; i<top.size(); i++) {
+			out.writeInt(top.keyAt(i));
+			out.writeInt(top.countAt(i));
+			out.writeInt(top.errorAt(i));
+		}
+	}
+	/**
+	 * Read monitored keys written by {@link #writeTopK(DataOutput, TopK)}, merging them into a counter.
+	 * @param in input
+	 * @param top counter
+	 * @throws IOException on read errors
+	 */
+	private static void readTopK(DataInput in, TopK top) throws IOException {
+		final int count = in.readInt();
+		// the written counter had the same capacity, so it was full if it had that many keys
+		final TopK read = new TopK(Math.max(count, top.capacity()));
+		for (int i=0; i<count; i++) {
+			final int key = in.readInt();
+			final int value = in.readInt();
+			read.offer(key, value, in.readInt());
+		}
+		top.add(read);
+	}
+	/**
+	 * Read summary counters written by {@link #writeTo(DataOutput)}, adding them to this summary.
+	 * @param in input
+	 * @throws IOException on read errors
+	 */
+	void readFrom(DataInput in) throws IOException {
+		final int count = in.readInt();
+		for (int i=0; i<count; i++) {
+			final LogInfo loginfo = getInfo(in.readInt());
+			loginfo.totalBlocked += in.readInt();
+			readTopK(in, loginfo.dstBlocked);
+			readTopK(in, loginfo.dptBlocked);
+		}
+	}
+	/**
+	 * Discard all blocked packets information.
+	 */
+	void clear() {
+		uids.clear();
+		infos.clear();
+	}
+	/**
+	 * @return true if no blocked packet was found
+	 */
+	boolean isEmpty() {
+		return infos.isEmpty();
+	}
+	/**
+	 * Format the summary for display.
+	 * @param names application names per UID
+	 * @return human readable summary
+	 */
+	String format(Map<Integer, String[]> names) {
+		final StringBuilder res = new StringBuilder();
+		for (int i=0; i<uids.size(); i++) {
+			final int id = uids.keyAt(i);
+			res.append("App ID ");
+			if (id != UNKNOWN_UID) {
+				res.append(id);
+				final String appnames[] = names.get(id);
+				if (appnames != null) {
+					res.append(" (").append(appnames[0]);
+					if (appnames.length > 1) {
+						res.append(", ...)");
+					} else {
+						res.append(")");
+					}
+				}
+			} else {
+				res.append("(kernel)");
+			}
+			final LogInfo loginfo = infos.get(uids.valueAt(i));
+			res.append(" - Blocked ").append(loginfo.totalBlocked).append(" packets");
+			final TopK dsts = loginfo.dstBlocked;
+			if (dsts.size() > 0) {
+				res.append(" (");
+				final int order[] = dsts.sorted();
+				final int shown = Math.min(order.length, SHOWN_DESTINATIONS);
+				for (int k=0; k<shown; k++) {
+					if (k > 0) {
+						res.append(", ");
+					}
+					appendCount(res, dsts, order[k]).append(" packets for ");
+					final int dst = dsts.keyAt(order[k]);
+					res.append((dst == LogParser.IPV6_DST) ? "IPv6 addresses" : LogParser.formatAddress(dst));
+				}
+				res.append((shown < order.length) ? ", ...)" : ")");
+			}
+			final TopK dpts = loginfo.dptBlocked;
+			if (dpts.size() > 0) {
+				res.append("\nPorts: ");
+				final int order[] = dpts.sorted();
+				final int shown = Math.min(order.length, SHOWN_PORTS);
+				for (int k=0; k<shown; k++) {
+					if (k > 0) {
+						res.append(", ");
+					}
+					res.append(dpts.keyAt(order[k])).append(" (");
+					appendCount(res, dpts, order[k]).append(")");
+				}
+				if (shown < order.length) {
+					res.append(", ...");
+				}
+			}
+			res.append("\n\n");
+		}
+		return res.toString();
+	}
+	/**
+	 * Append an estimated count, as a range if it may be overestimated (E.g.: "3-5").
+	 * Keys that replaced others (E.g.: the addresses of a scan) are shown with their range, not hidden.
+	 * @param res output
+	 * @param top counter
+	 * @param index monitored key index
+	 * @return output
+	 */
+	private static StringBuilder appendCount(StringBuilder res, TopK top, int index) {
+		final int count = top.countAt(index);
+		final int error = top.errorAt(index);
+		if (error > 0) {
+			res.append(count - error).append('-');
+		}
+		return res.append(count);
+	}
+
+    /**
+     * Small internal structure used to hold log information
+     */
+	private static final class LogInfo {
+		private int totalBlocked; // Total number of packets blocked
+		private final TopK dstBlocked; // Number of packets blocked for the top destination IPv4 addresses
+		private final TopK dptBlocked; // Number of packets blocked for the top destination ports
+		private LogInfo() {
+			this.dstBlocked = new TopK(TOP_DESTINATIONS);
+			this.dptBlocked = new TopK(TOP_PORTS);
+		}
+	}
+}
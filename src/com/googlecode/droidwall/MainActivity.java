@@ -33,7 +33,6 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
-import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -52,6 +51,7 @@ import android.widget.ArrayAdapter;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
+import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.ListAdapter;
 import android.widget.ListView;
@@ -77,6 +77,8 @@ public class MainActivity extends Activity implements OnCheckedChangeListener, O
 	private static final int MENU_CLEARLOG	= 7;
 	private static final int MENU_SETPWD	= 8;
 	private static final int MENU_SETCUSTOM = 9;
+	private static final int MENU_TOGGLEHITORDER = 10;
+	private static final int MENU_PROFILES	= 11;
 	
 	/** progress dialog instance */
 	private ListView listview = null;
@@ -150,7 +152,12 @@ public class MainActivity extends Activity implements OnCheckedChangeListener, O
 		final TextView labelmode = (TextView) this.findViewById(R.id.label_mode);
     	final Resources res = getResources();
 		int resid = (mode.equals(Api.MODE_WHITELIST) ? R.string.mode_whitelist : R.string.mode_blacklist);
-		labelmode.setText(res.getString(R.string.mode_header, res.getString(resid)));
+		if (Api.getProfiles(this).length > 1) {
+			final String profile = Api.getProfileName(this, Api.getActiveProfile(this));
+			labelmode.setText(res.getString(R.string.profile_mode_header, profile, res.getString(resid)));
+		} else {
+			labelmode.setText(res.getString(R.string.mode_header, res.getString(resid)));
+		}
 		resid = (Api.isEnabled(this) ? R.string.title_enabled : R.string.title_disabled);
 		setTitle(res.getString(resid, Api.VERSION));
     }
@@ -221,27 +228,204 @@ public class MainActivity extends Activity implements OnCheckedChangeListener, O
 		editor.putBoolean(Api.PREF_LOGENABLED, enabled);
 		editor.commit();
 		if (Api.isEnabled(this)) {
-			Api.applySavedIptablesRules(this, true);
+			requestRules(ApplyScheduler.APPLY, new Handler() {
+				public void handleMessage(Message msg) {
+					if (msg.obj != null) Api.alert(MainActivity.this, (String) msg.obj);
+				}
+			});
 		}
 		Toast.makeText(MainActivity.this, (enabled?R.string.log_was_enabled:R.string.log_was_disabled), Toast.LENGTH_SHORT).show();
 	}
+	/**
+	 * Request a change to the rules, receiving its result on the UI thread
+	 * @param action ApplyScheduler.APPLY or ApplyScheduler.PURGE
+	 * @param handler receives the result (arg1 is non-zero on success, obj is the error message, if any)
+	 */
+	private void requestRules(int action, final Handler handler) {
+		ApplyScheduler.request(this, action, new ApplyScheduler.Callback() {
+			public void onComplete(boolean success, String error) {
+				handler.sendMessage(handler.obtainMessage(0, success ? 1 : 0, 0, error));
+			}
+		});
+	}
+	/**
+	 * Toggle hit-count-driven rule ordering enabled/disabled
+	 */
+	private void toggleHitOrder() {
+		final SharedPreferences prefs = getSharedPreferences(Api.PREFS_NAME, 0);
+		final boolean enabled = !prefs.getBoolean(Api.PREF_HITORDER, false);
+		final Editor editor = prefs.edit();
+		editor.putBoolean(Api.PREF_HITORDER, enabled);
+		editor.commit();
+		Toast.makeText(MainActivity.this, (enabled?R.string.hit_order_was_enabled:R.string.hit_order_was_disabled), Toast.LENGTH_SHORT).show();
+	}
+	/**
+	 * Displays a dialog box to switch, create or remove profiles
+	 */
+	private void selectProfile() {
+		final Resources res = getResources();
+		final int profiles[] = Api.getProfiles(this);
+		final int active = Api.getActiveProfile(this);
+		final String items[] = new String[profiles.length + 2];
+		for (int i=0; i<profiles.length; i++) {
+			items[i] = (profiles[i] == active ? "* " : "") + Api.getProfileName(this, profiles[i]);
+		}
+		items[profiles.length] = res.getString(R.string.new_profile);
+		items[profiles.length + 1] = res.getString(R.string.remove_profile);
+		new AlertDialog.Builder(this).setItems(items, new DialogInterface.OnClickListener(){
+			public void onClick(DialogInterface dialog, int which) {
+				if (which < profiles.length) {
+					switchProfile(profiles[which]);
+				} else if (which == profiles.length) {
+					newProfile();
+				} else {
+					removeProfile();
+				}
+			}
+		}).setTitle(R.string.profiles)
+		.show();
+	}
+	/**
+	 * Request the name of a new profile, and switch to it
+	 */
+	private void newProfile() {
+		final EditText input = new EditText(this);
+		new AlertDialog.Builder(this).setView(input).setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener(){
+			public void onClick(DialogInterface dialog, int which) {
+				final String name = input.getText().toString().trim();
+				if (name.length() == 0) {
+					return;
+				}
+				if (Api.findProfile(MainActivity.this, name) != -1) {
+					Toast.makeText(MainActivity.this, R.string.profile_exists, Toast.LENGTH_SHORT).show();
+					return;
+				}
+				// the new profile starts with the current selections (including unsaved ones)
+				saveChanges();
+				switchProfile(Api.addProfile(MainActivity.this, name));
+			}
+		}).setNegativeButton(android.R.string.cancel, null)
+		.setTitle(R.string.profile_name)
+		.show();
+	}
+	/**
+	 * Displays a dialog box to remove one of the inactive profiles
+	 */
+	private void removeProfile() {
+		final int profiles[] = Api.getProfiles(this);
+		final int active = Api.getActiveProfile(this);
+		final int inactive[] = new int[profiles.length - 1];
+		final String items[] = new String[inactive.length];
+		int count = 0;
+		for (final int profile : profiles) {
+			if (profile != active && count < inactive.length) {
+				inactive[count] = profile;
+				items[count++] = Api.getProfileName(this, profile);
+			}
+		}
+		if (count == 0) {
+			return;
+		}
+		new AlertDialog.Builder(this).setItems(items, new DialogInterface.OnClickListener(){
+			public void onClick(DialogInterface dialog, int which) {
+				Api.removeProfile(MainActivity.this, inactive[which]);
+				refreshHeader();
+			}
+		}).setTitle(R.string.remove_profile)
+		.show();
+	}
+	/**
+	 * Switch to another profile, showing a visual indication
+	 * @param profile profile id
+	 */
+	private void switchProfile(final int profile) {
+		// unsaved changes belong to the current profile
+		saveChanges();
+    	final Resources res = getResources();
+		final ProgressDialog progress = ProgressDialog.show(this, res.getString(R.string.working), res.getString(R.string.switching_profile), true);
+		final Handler handler = new Handler() {
+			public void handleMessage(Message msg) {
+    			try {progress.dismiss();} catch(Exception ex){}
+				if (msg.arg1 != 0) {
+					Toast.makeText(MainActivity.this, res.getString(R.string.profile_switched, Api.getProfileName(MainActivity.this, profile)), Toast.LENGTH_SHORT).show();
+				} else {
+					Toast.makeText(MainActivity.this, R.string.profile_switch_error, Toast.LENGTH_SHORT).show();
+				}
+				refreshHeader();
+				if (Api.applications != null) {
+					showApplications();
+				}
+			}
+		};
+		// Switching waits for the rules to be changed, so it is done on another thread
+		new Thread() {
+			@Override
+			public void run() {
+				final boolean ok = Api.switchProfile(MainActivity.this, profile);
+				handler.sendMessage(handler.obtainMessage(0, ok ? 1 : 0, 0));
+			}
+		}.start();
+	}
+	/**
+	 * Exit the application, once the pending rule changes and writes have been made
+	 * (killing the process in the middle of an iptables transaction could leave the chains half-applied)
+	 */
+	private void exit() {
+		saveChanges();
+    	final Resources res = getResources();
+		final ProgressDialog progress = ProgressDialog.show(this, res.getString(R.string.working), res.getString(R.string.please_wait), true);
+		final Handler handler = new Handler() {
+			public void handleMessage(Message msg) {
+    			try {progress.dismiss();} catch(Exception ex){}
+				finish();
+				System.exit(0);
+			}
+		};
+		new Thread() {
+			@Override
+			public void run() {
+				ApplyScheduler.waitIdle();
+				// the process is killed, so the pending writes must be made now
+				DeferredWriter.flush();
+				handler.sendEmptyMessage(0);
+			}
+		}.start();
+	}
+	/**
+	 * Save the selections if they have been modified
+	 */
+	private void saveChanges() {
+		if (this.dirty) {
+			Api.saveRules(this);
+			this.dirty = false;
+		}
+	}
 	/**
 	 * If the applications are cached, just show them, otherwise load and show
 	 */
 	private void showOrLoadApplications() {
     	final Resources res = getResources();
-    	if (Api.applications == null) {
+    	if (Api.applications == null && Api.loadSnapshot(this)) {
+    		// Show the last known list right away, and check it against the installed packages on background
+    		showApplications();
+    		reconcileApplications();
+    	} else if (Api.applications == null) {
     		// The applications are not cached.. so lets display the progress dialog
     		final ProgressDialog progress = ProgressDialog.show(this, res.getString(R.string.working), res.getString(R.string.reading_apps), true);
-        	new AsyncTask<Void, Void, Void>() {
+        	new AsyncTask<Void, Void, String>() {
 				@Override
-				protected Void doInBackground(Void... params) {
-        			Api.getApps(MainActivity.this);
-					return null;
+				protected String doInBackground(Void... params) {
+					final StringBuilder errors = new StringBuilder();
+        			Api.getApps(MainActivity.this, errors);
+					return errors.toString();
 				}
 				@Override
-				protected void onPostExecute(Void result) {
+				protected void onPostExecute(String errors) {
         			try {progress.dismiss();} catch(Exception ex){}
+        			if (errors.length() > 0) {
+        				Api.alert(MainActivity.this, errors);
+        				return;
+        			}
         			showApplications();
 				}
         	}.execute();
@@ -250,12 +434,41 @@ public class MainActivity extends Activity implements OnCheckedChangeListener, O
         	showApplications();
     	}
 	}
+	/**
+	 * Scan the installed applications on background, and display the list again if it differs from the snapshot
+	 */
+	private void reconcileApplications() {
+    	final StringBuilder errors = new StringBuilder();
+    	new AsyncTask<Void, Void, DroidApp[]>() {
+			@Override
+			protected DroidApp[] doInBackground(Void... params) {
+				return Api.scanApps(MainActivity.this, errors);
+			}
+			@Override
+			protected void onPostExecute(DroidApp[] fresh) {
+				if (errors.length() > 0) {
+					Api.alert(MainActivity.this, errors);
+				}
+				if (fresh != null && Api.reconcileApps(fresh)) {
+					// keep the "unsaved changes" state, since the selections have been preserved
+					final boolean dirty = MainActivity.this.dirty;
+					showApplications();
+					MainActivity.this.dirty = dirty;
+				}
+			}
+    	}.execute();
+	}
     /**
      * Show the list of applications
      */
     private void showApplications() {
     	this.dirty = false;
-        final DroidApp[] apps = Api.getApps(this);
+    	final StringBuilder errors = new StringBuilder();
+        final DroidApp[] apps = Api.getApps(this, errors);
+        if (apps == null) {
+        	Api.alert(this, errors);
+        	return;
+        }
         // Sort applications - selected first, then alphabetically
         Arrays.sort(apps, new Comparator<DroidApp>() {
 			@Override
@@ -294,11 +507,8 @@ public class MainActivity extends Activity implements OnCheckedChangeListener, O
         		final DroidApp app = apps[position];
         		entry.app = app;
         		entry.text.setText(app.toString());
-        		entry.icon.setImageDrawable(app.cached_icon);
-        		if (!app.icon_loaded && app.appinfo!=null) {
-        			// this icon has not been loaded yet - load it on a separated thread
-            		new LoadIconTask().execute(app, getPackageManager(), convertView);
-        		}
+        		// display the icon (loaded on a separated thread if it is not cached)
+        		IconLoader.getInstance(MainActivity.this).load(app, entry.icon);
         		final CheckBox box_wifi = entry.box_wifi;
         		box_wifi.setTag(app);
         		box_wifi.setChecked(app.selected_wifi);
@@ -322,6 +532,8 @@ public class MainActivity extends Activity implements OnCheckedChangeListener, O
     	menu.add(0, MENU_CLEARLOG, 0, R.string.clear_log).setIcon(android.R.drawable.ic_menu_close_clear_cancel);
     	menu.add(0, MENU_SETPWD, 0, R.string.setpwd).setIcon(android.R.drawable.ic_lock_lock);
     	menu.add(0, MENU_SETCUSTOM, 0, R.string.set_custom_script);
+    	menu.add(0, MENU_TOGGLEHITORDER, 0, R.string.hit_order_enabled);
+    	menu.add(0, MENU_PROFILES, 0, R.string.profiles);
     	
     	return true;
     }
@@ -348,6 +560,9 @@ public class MainActivity extends Activity implements OnCheckedChangeListener, O
     		item_log.setIcon(android.R.drawable.button_onoff_indicator_off);
     		item_log.setTitle(R.string.log_disabled);
     	}
+    	final MenuItem item_hitorder = menu.getItem(MENU_TOGGLEHITORDER);
+    	final boolean hitorder = getSharedPreferences(Api.PREFS_NAME, 0).getBoolean(Api.PREF_HITORDER, false);
+    	item_hitorder.setTitle(hitorder ? R.string.hit_order_enabled : R.string.hit_order_disabled);
     	return super.onPrepareOptionsMenu(menu);
     }
     @Override
@@ -363,8 +578,7 @@ public class MainActivity extends Activity implements OnCheckedChangeListener, O
     		applyOrSaveRules();
     		return true;
     	case MENU_EXIT:
-    		finish();
-    		System.exit(0);
+    		exit();
     		return true;
     	case MENU_HELP:
     		new HelpDialog(this).show();
@@ -384,6 +598,12 @@ public class MainActivity extends Activity implements OnCheckedChangeListener, O
     	case MENU_SETCUSTOM:
     		setCustomScript();
     		return true;
+    	case MENU_TOGGLEHITORDER:
+    		toggleHitOrder();
+    		return true;
+    	case MENU_PROFILES:
+    		selectProfile();
+    		return true;
     	}
     	return false;
     }
@@ -462,20 +682,69 @@ public class MainActivity extends Activity implements OnCheckedChangeListener, O
 		}
 	}
 	
+	/**
+	 * Operation run as root on a background thread, behind a progress dialog.
+	 * Root commands wait for the rules being applied (which may take seconds), so they must not run on the UI thread.
+	 * The root access is checked first.
+	 */
+	private abstract class RootTask extends AsyncTask<Void, Void, String> {
+		private final ProgressDialog progress;
+		private boolean rooted = false;
+		/**
+		 * Show the progress dialog (the task must be executed next)
+		 * @param message progress message
+		 */
+		RootTask(int message) {
+	    	final Resources res = getResources();
+			progress = ProgressDialog.show(MainActivity.this, res.getString(R.string.working), res.getString(message), true);
+		}
+		@Override
+		protected String doInBackground(Void... params) {
+			final StringBuilder errors = new StringBuilder();
+			if (!Api.hasRootAccess(MainActivity.this, errors)) {
+				return errors.toString();
+			}
+			rooted = true;
+			return run();
+		}
+		@Override
+		protected void onPostExecute(String result) {
+			try {progress.dismiss();} catch(Exception ex){}
+			if (rooted) {
+				onDone(result);
+			} else {
+				Api.alert(MainActivity.this, result);
+				onNoRoot();
+			}
+		}
+		/**
+		 * Called on the background thread, once the root access is granted
+		 * @return result passed to onDone()
+		 */
+		abstract String run();
+		/**
+		 * Called on the UI thread after run()
+		 * @param result result of run()
+		 */
+		abstract void onDone(String result);
+		/**
+		 * Called on the UI thread if there is no root access (the error has been alerted)
+		 */
+		void onNoRoot() {
+		}
+	}
 	/**
 	 * Show iptable rules on a dialog
 	 */
 	private void showRules() {
-    	final Resources res = getResources();
-		final ProgressDialog progress = ProgressDialog.show(this, res.getString(R.string.working), res.getString(R.string.please_wait), true);
-		final Handler handler = new Handler() {
-			public void handleMessage(Message msg) {
-    			try {progress.dismiss();} catch(Exception ex){}
-				if (!Api.hasRootAccess(MainActivity.this, true)) return;
-				Api.showIptablesRules(MainActivity.this);
+		new RootTask(R.string.please_wait) {
+			String run() {
+				return Api.getIptablesRules(MainActivity.this);
 			}
-		};
-		handler.sendEmptyMessageDelayed(0, 100);
+			void onDone(String result) {
+				Api.alert(MainActivity.this, result);
+			}
+		}.execute();
 	}
 	/**
 	 * Show logs on a dialog
@@ -483,75 +752,87 @@ public class MainActivity extends Activity implements OnCheckedChangeListener, O
 	private void showLog() {
     	final Resources res = getResources();
 		final ProgressDialog progress = ProgressDialog.show(this, res.getString(R.string.working), res.getString(R.string.please_wait), true);
-		final Handler handler = new Handler() {
-			public void handleMessage(Message msg) {
+		// the log may be read as root
+		new AsyncTask<Void, Void, String>() {
+			@Override
+			protected String doInBackground(Void... params) {
+				return Api.getLog(MainActivity.this);
+			}
+			@Override
+			protected void onPostExecute(String result) {
     			try {progress.dismiss();} catch(Exception ex){}
-				Api.showLog(MainActivity.this);
+				Api.alert(MainActivity.this, result);
 			}
-		};
-		handler.sendEmptyMessageDelayed(0, 100);
+		}.execute();
 	}
 	/**
 	 * Clear logs
 	 */
 	private void clearLog() {
-    	final Resources res = getResources();
-		final ProgressDialog progress = ProgressDialog.show(this, res.getString(R.string.working), res.getString(R.string.please_wait), true);
-		final Handler handler = new Handler() {
-			public void handleMessage(Message msg) {
-    			try {progress.dismiss();} catch(Exception ex){}
-				if (!Api.hasRootAccess(MainActivity.this, true)) return;
-				if (Api.clearLog(MainActivity.this)) {
+		new RootTask(R.string.please_wait) {
+			String run() {
+				final StringBuilder errors = new StringBuilder();
+				return Api.clearLog(MainActivity.this, errors) ? null : errors.toString();
+			}
+			void onDone(String result) {
+				if (result == null) {
 					Toast.makeText(MainActivity.this, R.string.log_cleared, Toast.LENGTH_SHORT).show();
+				} else {
+					Api.alert(MainActivity.this, result);
 				}
 			}
-		};
-		handler.sendEmptyMessageDelayed(0, 100);
+		}.execute();
 	}
 	/**
 	 * Apply or save iptable rules, showing a visual indication
 	 */
 	private void applyOrSaveRules() {
-    	final Resources res = getResources();
-		final boolean enabled = Api.isEnabled(this);
-		final ProgressDialog progress = ProgressDialog.show(this, res.getString(R.string.working), res.getString(enabled?R.string.applying_rules:R.string.saving_rules), true);
-		final Handler handler = new Handler() {
-			public void handleMessage(Message msg) {
-    			try {progress.dismiss();} catch(Exception ex){}
-				if (enabled) {
-					Log.d("DroidWall", "Applying rules.");
-					if (Api.hasRootAccess(MainActivity.this, true) && Api.applyIptablesRules(MainActivity.this, true)) {
-						Toast.makeText(MainActivity.this, R.string.rules_applied, Toast.LENGTH_SHORT).show();
-					} else {
-						Log.d("DroidWall", "Failed - Disabling firewall.");
-						Api.setEnabled(MainActivity.this, false);
-					}
+		if (!Api.isEnabled(this)) {
+			Log.d("DroidWall", "Saving rules.");
+			Api.saveRules(this);
+			Toast.makeText(MainActivity.this, R.string.rules_saved, Toast.LENGTH_SHORT).show();
+			this.dirty = false;
+			return;
+		}
+		Log.d("DroidWall", "Applying rules.");
+		Api.saveRules(this);
+		this.dirty = false;
+		new RootTask(R.string.applying_rules) {
+			String run() {
+				final StringBuilder errors = new StringBuilder();
+				return ApplyScheduler.requestAndWait(MainActivity.this, ApplyScheduler.APPLY, errors) ? null : errors.toString();
+			}
+			void onDone(String result) {
+				if (result == null) {
+					Toast.makeText(MainActivity.this, R.string.rules_applied, Toast.LENGTH_SHORT).show();
 				} else {
-					Log.d("DroidWall", "Saving rules.");
-					Api.saveRules(MainActivity.this);
-					Toast.makeText(MainActivity.this, R.string.rules_saved, Toast.LENGTH_SHORT).show();
+					if (result.length() > 0) Api.alert(MainActivity.this, result);
+					onNoRoot();
 				}
-				MainActivity.this.dirty = false;
 			}
-		};
-		handler.sendEmptyMessageDelayed(0, 100);
+			void onNoRoot() {
+				Log.d("DroidWall", "Failed - Disabling firewall.");
+				Api.setEnabled(MainActivity.this, false);
+			}
+		}.execute();
 	}
 	/**
 	 * Purge iptable rules, showing a visual indication
 	 */
 	private void purgeRules() {
-    	final Resources res = getResources();
-		final ProgressDialog progress = ProgressDialog.show(this, res.getString(R.string.working), res.getString(R.string.deleting_rules), true);
-		final Handler handler = new Handler() {
-			public void handleMessage(Message msg) {
-    			try {progress.dismiss();} catch(Exception ex){}
-				if (!Api.hasRootAccess(MainActivity.this, true)) return;
-				if (Api.purgeIptables(MainActivity.this, true)) {
+		new RootTask(R.string.deleting_rules) {
+			String run() {
+				final StringBuilder errors = new StringBuilder();
+				return ApplyScheduler.requestAndWait(MainActivity.this, ApplyScheduler.PURGE, errors) ? null : errors.toString();
+			}
+			void onDone(String result) {
+				if (result == null) {
 					Toast.makeText(MainActivity.this, R.string.rules_deleted, Toast.LENGTH_SHORT).show();
+				} else if (result.length() > 0) {
+					Api.alert(MainActivity.this, result);
 				}
 			}
-		};
-		handler.sendEmptyMessageDelayed(0, 100);
+		}.execute();
 	}
 	/**
 	 * Called an application is check/unchecked
@@ -613,40 +894,6 @@ public class MainActivity extends Activity implements OnCheckedChangeListener, O
 		}
 		return super.onKeyDown(keyCode, event);
 	}
-	/**
-	 * Asynchronous task used to load icons in a background thread.
-	 */
-	private static class LoadIconTask extends AsyncTask<Object, Void, View> {
-		@Override
-		protected View doInBackground(Object... params) {
-			try {
-				final DroidApp app = (DroidApp) params[0];
-				final PackageManager pkgMgr = (PackageManager) params[1];
-				final View viewToUpdate = (View) params[2];
-				if (!app.icon_loaded) {
-					app.cached_icon = pkgMgr.getApplicationIcon(app.appinfo);
-					app.icon_loaded = true;
-				}
-				// Return the view to update at "onPostExecute"
-				// Note that we cannot be sure that this view still references "app"
-				return viewToUpdate;
-			} catch (Exception e) {
-				Log.e("DroidWall", "Error loading icon", e);
-				return null;
-			}
-		}
-		protected void onPostExecute(View viewToUpdate) {
-			try {
-				// This is executed in the UI thread, so it is safe to use viewToUpdate.getTag()
-				// and modify the UI
-				final ListEntry entryToUpdate = (ListEntry) viewToUpdate.getTag();
-				entryToUpdate.icon.setImageDrawable(entryToUpdate.app.cached_icon);
-			} catch (Exception e) {
-				Log.e("DroidWall", "Error showing icon", e);
-			}
-		};
-	}
-
 	/**
 	 * Entry representing an application in the screen
 	 */
@@ -0,0 +1,182 @@
+/**
+ * Parser of the nfnetlink_log messages of the packets blocked by DroidWall.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+/**
+ * Parser of the nfnetlink_log messages of the packets blocked by DroidWall.
+ * A batch (one netlink datagram) may carry several packets: after {@link #reset(byte[], int, int)},
+ * each call to {@link #next()} moves to the next packet and sets the parser fields, without allocating.
+ * The netlink headers are in host byte order (little-endian on the supported devices), while the
+ * attribute values are in network byte order.
+ * This class does not depend on Android.
+ */
+final class NflogParser {
+	// Netlink constants (linux/netlink.h, linux/netfilter/nfnetlink_log.h)
+	private static final int NLMSG_HDRLEN = 16;
+	private static final int NFGENMSG_LEN = 4;
+	private static final int NLA_HDRLEN = 4;
+	private static final int NLA_TYPE_MASK = 0x3fff;
+	private static final int NFNL_SUBSYS_ULOG = 4;
+	private static final int NFULNL_MSG_PACKET = 0;
+	private static final int NFULA_IFINDEX_OUTDEV = 5;
+	private static final int NFULA_PAYLOAD = 9;
+	private static final int NFULA_PREFIX = 10;
+	private static final int NFULA_UID = 11;
+	/** prefix of the DroidWall NFLOG rules */
+	private static final byte PREFIX[] = {'[', 'D', 'R', 'O', 'I', 'D', 'W', 'A', 'L', 'L', ']'};
+
+	/** owner of the packet, LogParser.UNKNOWN_UID if not available */
+	int uid;
+	/** destination IPv4 address, only valid if hasDst is true */
+	int dst;
+	boolean hasDst;
+	/** destination port, -1 if not available */
+	int dpt;
+	/** protocol number, LogParser.PROTO_NONE if not available */
+	int proto;
+	/** output interface index, -1 if not available */
+	int ifindex;
+
+	private byte buf[];
+	private int pos;
+	private int end;
+
+	/**
+	 * Start parsing a batch of netlink messages.
+	 * @param buf batch buffer
+	 * @param off batch start
+	 * @param len batch length
+	 */
+	void reset(byte buf[], int off, int len) {
+		this.buf = buf;
+		this.pos = off;
+		this.end = off + len;
+	}
+	/**
+	 * Move to the next DroidWall packet of the batch.
+	 * @return true if a packet was found (and the fields were set), false at the end of the batch
+	 */
+	boolean next() {
+		while (end - pos >= NLMSG_HDRLEN) {
+			final int start = pos;
+			final int len = le32(start);
+			final int type = le16(start + 4);
+			if (len < NLMSG_HDRLEN || len > end - start) {
+				// truncated or corrupted batch
+				pos = end;
+				return false;
+			}
+			pos = start + align(len);
+			if (type == ((NFNL_SUBSYS_ULOG << 8) | NFULNL_MSG_PACKET) && len >= NLMSG_HDRLEN + NFGENMSG_LEN
+					&& parsePacket(start + NLMSG_HDRLEN + NFGENMSG_LEN, start + len)) {
+				return true;
+			}
+		}
+		pos = end;
+		return false;
+	}
+	/**
+	 * Parse the attributes of a packet message.
+	 * @param off first attribute
+	 * @param limit message end
+	 * @return true if this is a DroidWall packet
+	 */
+	private boolean parsePacket(int off, int limit) {
+		uid = LogParser.UNKNOWN_UID;
+		hasDst = false;
+		dpt = -1;
+		proto = LogParser.PROTO_NONE;
+		ifindex = -1;
+		boolean ours = true;
+		while (limit - off >= NLA_HDRLEN) {
+			final int len = le16(off);
+			final int type = le16(off + 2) & NLA_TYPE_MASK;
+			if (len < NLA_HDRLEN || len > limit - off) {
+				break;
+			}
+			final int value = off + NLA_HDRLEN;
+			final int valueLen = len - NLA_HDRLEN;
+			switch (type) {
+			case NFULA_UID:
+				if (valueLen >= 4) uid = be32(value);
+				break;
+			case NFULA_IFINDEX_OUTDEV:
+				if (valueLen >= 4) ifindex = be32(value);
+				break;
+			case NFULA_PREFIX:
+				ours = startsWith(value, valueLen, PREFIX);
+				break;
+			case NFULA_PAYLOAD:
+				parseIpv4(value, valueLen);
+				break;
+			}
+			off += align(len);
+		}
+		return ours;
+	}
+	/**
+	 * Read the protocol, destination and destination port of an IPv4 packet.
+	 * @param off packet start
+	 * @param len packet length (usually truncated by the NFLOG range)
+	 */
+	private void parseIpv4(int off, int len) {
+		if (len < 20 || ((buf[off] >> 4) & 0x0f) != 4) {
+			return;
+		}
+		final int ihl = (buf[off] & 0x0f) * 4;
+		proto = buf[off + 9] & 0xff;
+		dst = be32(off + 16);
+		hasDst = true;
+		// the ports are only on the first fragment
+		final boolean first = ((buf[off + 6] & 0x1f) | buf[off + 7]) == 0;
+		if (first && (proto == LogParser.PROTO_TCP || proto == LogParser.PROTO_UDP) && len >= ihl + 4) {
+			dpt = ((buf[off + ihl + 2] & 0xff) << 8) | (buf[off + ihl + 3] & 0xff);
+		}
+	}
+	/**
+	 * @return true if the value starts with the given bytes
+	 */
+	private boolean startsWith(int off, int len, byte prefix[]) {
+		if (len < prefix.length) {
+			return false;
+		}
+		for (int i=0; i<prefix.length; i++) {
+			if (buf[off + i] != prefix[i]) return false;
+		}
+		return true;
+	}
+	private int le16(int off) {
+		return (buf[off] & 0xff) | ((buf[off + 1] & 0xff) << 8);
+	}
+	private int le32(int off) {
+		return (buf[off] & 0xff) | ((buf[off + 1] & 0xff) << 8) | ((buf[off + 2] & 0xff) << 16) | ((buf[off + 3] & 0xff) << 24);
+	}
+	private int be32(int off) {
+		return ((buf[off] & 0xff) << 24) | ((buf[off + 1] & 0xff) << 16) | ((buf[off + 2] & 0xff) << 8) | (buf[off + 3] & 0xff);
+	}
+	/**
+	 * @return length aligned to 4 bytes (netlink messages and attributes)
+	 */
+	private static int align(int len) {
+		return (len + 3) & ~3;
+	}
+}
@@ -0,0 +1,197 @@
+/**
+ * Renders a rule set as an nftables script, using UID sets instead of one rule per application.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+/**
+ * Renders a rule set as an nftables script (to be fed to "nft -f -").
+ * Instead of one owner rule per application, the selected UIDs are kept on one set per interface class,
+ * so each packet is matched by a single set lookup, and changes on the selected applications
+ * are applied by adding/deleting set elements.
+ * The whole table is replaced on a single transaction, so the rules are never partially applied.
+ */
+final class NftRuleRenderer {
+	// Table, set and chain names
+	static final String TABLE		= "inet droidwall";
+	static final String SET_WIFI	= "uids_wifi";
+	static final String SET_3G		= "uids_3g";
+	private static final String CHAIN_OUTPUT	= "output";
+	private static final String CHAIN_WIFI		= "wifi";
+	private static final String CHAIN_3G		= "mobile";
+	private static final String CHAIN_REJECT	= "reject";
+
+	/**
+	 * Render the script that replaces the whole droidwall table.
+	 * @param ruleset rules to render
+	 * @return nftables script
+	 */
+	String render(RuleSet ruleset) {
+		final StringBuilder out = new StringBuilder();
+		final UidSet uidsWifi = ruleset.getUidsWifi();
+		final UidSet uids3g = ruleset.getUids3g();
+		// Make sure the table exists before deleting it, so the deletion never fails
+		out.append("table ").append(TABLE).append('\n');
+		out.append("delete table ").append(TABLE).append('\n');
+		out.append("table ").append(TABLE).append(" {\n");
+		appendSet(out, SET_WIFI, uidsWifi);
+		appendSet(out, SET_3G, uids3g);
+		out.append("\tchain ").append(CHAIN_REJECT).append(" {\n");
+		if (ruleset.isLogEnabled()) {
+			out.append("\t\tlog prefix \"[DROIDWALL] \" flags skuid\n");
+		}
+		out.append("\t\treject\n");
+		out.append("\t}\n");
+		appendChain(out, ruleset, CHAIN_WIFI, SET_WIFI, uidsWifi, true);
+		appendChain(out, ruleset, CHAIN_3G, SET_3G, uids3g, false);
+		out.append("\tchain ").append(CHAIN_OUTPUT).append(" {\n");
+		out.append("\t\ttype filter hook output priority 0; policy accept;\n");
+		if (ruleset.isWhitelist() && ruleset.isLogEnabled()) {
+			// Allow DNS lookups on white-list for a better logging
+			out.append("\t\tudp dport 53 return\n");
+		}
+		for (final String itf : RuleSet.ITFS_3G) {
+			out.append("\t\toifname \"").append(wildcard(itf)).append("\" jump ").append(CHAIN_3G).append('\n');
+		}
+		for (final String itf : RuleSet.ITFS_WIFI) {
+			out.append("\t\toifname \"").append(wildcard(itf)).append("\" jump ").append(CHAIN_WIFI).append('\n');
+		}
+		out.append("\t}\n");
+		out.append("}\n");
+		return out.toString();
+	}
+	/**
+	 * Render the script that updates the UID sets from a rule set to another.
+	 * Both rule sets must have the same header (see RuleSet.sameHeader()).
+	 * @param previous rules applied last time
+	 * @param ruleset new rules to apply
+	 * @return nftables script, or an empty string if nothing has changed
+	 */
+	String update(RuleSet previous, RuleSet ruleset) {
+		final StringBuilder out = new StringBuilder();
+		appendDiff(out, SET_WIFI, previous.getUidsWifi(), ruleset.getUidsWifi());
+		appendDiff(out, SET_3G, previous.getUids3g(), ruleset.getUids3g());
+		return out.toString();
+	}
+	/**
+	 * Append a UID set declaration.
+	 * @param out script being rendered
+	 * @param name set name
+	 * @param uids selected UIDs (special negative UIDs are ignored)
+	 */
+	private static void appendSet(StringBuilder out, String name, UidSet uids) {
+		out.append("\tset ").append(name).append(" {\n");
+		out.append("\t\ttype uid\n");
+		final int start = uids.firstUid();
+		if (start < uids.size()) {
+			out.append("\t\telements = { ");
+			for (int i=start; i<uids.size(); i++) {
+				if (i > start) out.append(", ");
+				out.append(uids.get(i));
+			}
+			out.append(" }\n");
+		}
+		out.append("\t}\n");
+	}
+	/**
+	 * Append the filtering chain of an interface class.
+	 * @param out script being rendered
+	 * @param ruleset rules being rendered
+	 * @param chain chain name
+	 * @param set name of the UID set used by this chain
+	 * @param uids UIDs selected for this interface class
+	 * @param wifi true if this is the WIFI chain
+	 */
+	private static void appendChain(StringBuilder out, RuleSet ruleset, String chain, String set, UidSet uids, boolean wifi) {
+		final boolean any = uids.containsAny();
+		final boolean kernel = uids.containsKernel();
+		out.append("\tchain ").append(chain).append(" {\n");
+		if (ruleset.isWhitelist()) {
+			if (!any) {
+				if (wifi) {
+					// When "white listing" wifi, we need to ensure that the dhcp and wifi users are allowed
+					if (ruleset.getDhcpUid() != -1) {
+						out.append("\t\tmeta skuid ").append(ruleset.getDhcpUid()).append(" return\n");
+					}
+					if (ruleset.getWifiUid() != -1) {
+						out.append("\t\tmeta skuid ").append(ruleset.getWifiUid()).append(" return\n");
+					}
+				}
+				out.append("\t\tmeta skuid @").append(set).append(" return\n");
+				if (kernel) {
+					// packets without an owner (kernel) do not match "meta skuid", so they are allowed
+					out.append("\t\tmeta skuid 0-999999999 jump ").append(CHAIN_REJECT).append('\n');
+				} else {
+					out.append("\t\tjump ").append(CHAIN_REJECT).append('\n');
+				}
+			}
+		} else {
+			if (any) {
+				/* block any application on this interface */
+				out.append("\t\tjump ").append(CHAIN_REJECT).append('\n');
+			} else {
+				out.append("\t\tmeta skuid @").append(set).append(" jump ").append(CHAIN_REJECT).append('\n');
+				if (kernel) {
+					// block packets without an owner (kernel)
+					out.append("\t\tmeta skuid 0-999999999 return\n");
+					out.append("\t\tjump ").append(CHAIN_REJECT).append('\n');
+				}
+			}
+		}
+		out.append("\t}\n");
+	}
+	/**
+	 * Append the commands that turn a UID set into another.
+	 * @param out script being rendered
+	 * @param set set name
+	 * @param before UIDs currently on the set
+	 * @param after UIDs that should be on the set
+	 */
+	private static void appendDiff(StringBuilder out, String set, UidSet before, UidSet after) {
+		final StringBuilder deleted = new StringBuilder();
+		final StringBuilder added = new StringBuilder();
+		for (int i=before.firstUid(); i<before.size(); i++) {
+			if (!after.contains(before.get(i))) {
+				if (deleted.length() > 0) deleted.append(", ");
+				deleted.append(before.get(i));
+			}
+		}
+		for (int i=after.firstUid(); i<after.size(); i++) {
+			if (!before.contains(after.get(i))) {
+				if (added.length() > 0) added.append(", ");
+				added.append(after.get(i));
+			}
+		}
+		if (deleted.length() > 0) {
+			out.append("delete element ").append(TABLE).append(' ').append(set).append(" { ").append(deleted).append(" }\n");
+		}
+		if (added.length() > 0) {
+			out.append("add element ").append(TABLE).append(' ').append(set).append(" { ").append(added).append(" }\n");
+		}
+	}
+	/**
+	 * Converts an iptables interface wildcard ("wlan+") to the nftables syntax ("wlan*").
+	 * @param itf iptables interface name
+	 * @return nftables interface name
+	 */
+	private static String wildcard(String itf) {
+		return itf.endsWith("+") ? itf.substring(0, itf.length() - 1) + "*" : itf;
+	}
+}
@@ -32,6 +32,7 @@ public class PackageBroadcast extends BroadcastReceiver {
 
 	@Override
 	public void onReceive(Context context, Intent intent) {
+		final String pkg = (intent.getData() != null) ? intent.getData().getSchemeSpecificPart() : null;
 		if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())) {
 			// Ignore application updates
 			final boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
@@ -39,12 +40,15 @@ public class PackageBroadcast extends BroadcastReceiver {
 				// Update the Firewall if necessary
 				final int uid = intent.getIntExtra(Intent.EXTRA_UID, -123);
 				Api.applicationRemoved(context, uid);
-				// Force app list reload next time
-				Api.applications = null;
+				// Remove it from the app list
+				Api.patchApplicationRemoved(context, pkg, uid);
+				IconLoader.forget(context, pkg);
 			}
 		} else if (Intent.ACTION_PACKAGE_ADDED.equals(intent.getAction())) {
-			// Force app list reload next time
-			Api.applications = null;
+			// Add it to the app list (or update it)
+			Api.patchApplicationAdded(context, pkg);
+			// The icon may have changed
+			IconLoader.forget(context, pkg);
 		}
 	}
 
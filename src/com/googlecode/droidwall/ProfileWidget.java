@@ -0,0 +1,112 @@
+/**
+ * Profile switching widget implementation
+ * 
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Message;
+import android.widget.RemoteViews;
+import android.widget.Toast;
+
+/**
+ * Profile switching widget implementation.
+ * It displays the active profile, and switches to the next one when clicked.
+ * It also handles SWITCH_PROFILE_MSG requests, which may name the profile to switch to (PROFILE_EXTRA).
+ */
+public class ProfileWidget extends AppWidgetProvider {
+
+	@Override
+	public void onReceive(final Context context, final Intent intent) {
+        super.onReceive(context, intent);
+        if (Api.PROFILE_CHANGED_MSG.equals(intent.getAction())) {
+        	// Broadcast sent when the active profile has changed
+            final AppWidgetManager manager = AppWidgetManager.getInstance(context);
+            final int[] widgetIds = manager.getAppWidgetIds(new ComponentName(context, ProfileWidget.class));
+            showWidget(context, manager, widgetIds);
+        } else if (Api.SWITCH_PROFILE_MSG.equals(intent.getAction())) {
+        	// Broadcast sent to request switching DroidWall's profile
+    		final String pwd = context.getSharedPreferences(Api.PREFS_NAME, 0).getString(Api.PREF_PASSWORD, "");
+    		if (pwd.length() != 0) {
+        		Toast.makeText(context, "Cannot switch profile - password defined!", Toast.LENGTH_SHORT).show();
+        		return;
+    		}
+    		final String name = intent.getStringExtra(Api.PROFILE_EXTRA);
+    		final int profile = (name != null) ? Api.findProfile(context, name) : nextProfile(context);
+    		if (profile == -1) {
+        		Toast.makeText(context, "Unknown profile: " + name, Toast.LENGTH_SHORT).show();
+        		return;
+    		}
+        	final Handler toaster = new Handler() {
+        		public void handleMessage(Message msg) {
+        			if (msg.obj != null) Toast.makeText(context, (String) msg.obj, Toast.LENGTH_SHORT).show();
+        		}
+        	};
+			// Start a new thread to change the firewall - this prevents ANR
+			new Thread() {
+				@Override
+				public void run() {
+        			final Message msg = new Message();
+					if (Api.switchProfile(context, profile)) {
+						msg.obj = context.getString(R.string.toast_profile_switched, Api.getProfileName(context, profile));
+					} else {
+						msg.obj = context.getString(R.string.toast_error_switching_profile);
+					}
+					toaster.sendMessage(msg);
+				}
+			}.start();
+        }
+	}
+    @Override
+    public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] ints) {
+        super.onUpdate(context, appWidgetManager, ints);
+        showWidget(context, appWidgetManager, ints);
+    }
+    /**
+     * @param context application context
+     * @return id of the profile after the active one (wrapping around)
+     */
+    private static int nextProfile(Context context) {
+    	final int profiles[] = Api.getProfiles(context);
+    	final int active = Api.getActiveProfile(context);
+    	for (int i=0; i<profiles.length; i++) {
+    		if (profiles[i] == active) {
+    			return profiles[(i + 1) % profiles.length];
+    		}
+    	}
+    	return profiles[0];
+    }
+
+    private void showWidget(Context context, AppWidgetManager manager, int[] widgetIds) {
+        final RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.profile_widget);
+        views.setTextViewText(R.id.widgetProfile, Api.getProfileName(context, Api.getActiveProfile(context)));
+        final Intent msg = new Intent(Api.SWITCH_PROFILE_MSG);
+        final PendingIntent intent = PendingIntent.getBroadcast(context, -1, msg, PendingIntent.FLAG_UPDATE_CURRENT);
+        views.setOnClickPendingIntent(R.id.widgetProfile, intent);
+        manager.updateAppWidget(widgetIds, views);
+    }
+    
+}
@@ -0,0 +1,63 @@
+/**
+ * Renders rules as an iptables-restore payload.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Renders rules as an iptables-restore payload.
+ * The payload must be fed to "iptables-restore --noflush", so that only the droidwall chains
+ * are changed, and all changes are committed in a single transaction.
+ */
+final class RestoreRuleRenderer implements RuleRenderer {
+	@Override
+	public void begin(StringBuilder out, String flush[]) {
+		out.append("*filter\n");
+		if (flush != null) {
+			// Declaring a chain creates it (if necessary) and flushes it
+			for (final String chain : flush) {
+				out.append(':').append(chain).append(" - [0:0]\n");
+			}
+		}
+	}
+	@Override
+	public void append(StringBuilder out, List<RuleSet.Rule> rules) {
+		for (final RuleSet.Rule rule : rules) {
+			out.append("-A ").append(rule.chain).append(' ').append(rule.spec).append('\n');
+		}
+	}
+	@Override
+	public void update(StringBuilder out, Collection<RuleSet.Rule> deleted, List<RuleSet.Rule> inserted, int positions[]) {
+		for (final RuleSet.Rule rule : deleted) {
+			out.append("-D ").append(rule.chain).append(' ').append(rule.spec).append('\n');
+		}
+		int i = 0;
+		for (final RuleSet.Rule rule : inserted) {
+			out.append("-I ").append(rule.chain).append(' ').append(positions[i++]).append(' ').append(rule.spec).append('\n');
+		}
+	}
+	@Override
+	public void commit(StringBuilder out) {
+		out.append("COMMIT\n");
+	}
+}
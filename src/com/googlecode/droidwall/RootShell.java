@@ -0,0 +1,208 @@
+/**
+ * Long-lived root shell used to execute commands without starting "su" every time.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived root shell used to execute commands without starting "su" every time.
+ * Commands are written to the shell standard input, and their output is read back
+ * until an end marker carrying the command exit code is found.
+ * The shell is started on the first command and restarted automatically if it dies.
+ * The command used to start the shell can be replaced (E.g.: by a plain "sh" standing in for "su").
+ */
+final class RootShell {
+	/** end-of-command marker (followed by the command sequence number and exit code) */
+	private static final String MARKER = "__DROIDWALL_END__";
+	/** sentinel queued by the reader thread when the shell output is closed */
+	private static final String EOF = new String("EOF");
+	/** charset used to write commands and decode their output */
+	static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private final String command[];
+	private Process process;
+	private OutputStreamWriter stdin;
+	private BlockingQueue<String> lines;
+	private int sequence = 0;
+
+	/**
+	 * Creates a new root shell (the shell process is only started on the first command).
+	 * @param command command used to start the shell (E.g.: "su")
+	 */
+	RootShell(String... command) {
+		this.command = command;
+	}
+	/**
+	 * Runs a command on the shell, starting it first if necessary.
+	 * @param cmd command to run (a single line)
+	 * @param callback receives each line of the command output (stdout + stderr)
+	 * @param timeout timeout in milliseconds (-1 for none)
+	 * @return the command exit code, or -1 if the shell could not run it
+	 */
+	synchronized int run(String cmd, LineCallback callback, long timeout) {
+		final int seq = ++sequence;
+		try {
+			if (isDead()) {
+				// The shell has exited since the last command - start a new one
+				close();
+			}
+			try {
+				send(cmd, seq);
+			} catch (IOException ex) {
+				// The shell has died since the last command - start a new one and try again
+				close();
+				send(cmd, seq);
+			}
+			final String end = MARKER + seq + " ";
+			final long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
+			while (true) {
+				final String line;
+				if (deadline == 0) {
+					line = lines.take();
+				} else {
+					final long remaining = deadline - System.currentTimeMillis();
+					line = (remaining > 0) ? lines.poll(remaining, TimeUnit.MILLISECONDS) : null;
+				}
+				if (line == null) {
+					if (callback != null) callback.onLine("Operation timed-out");
+					close();
+					return -1;
+				}
+				if (line == EOF) {
+					close();
+					return -1;
+				}
+				final int pos = line.indexOf(end);
+				if (pos == -1) {
+					if (callback != null) callback.onLine(line);
+					continue;
+				}
+				if (pos > 0 && callback != null) {
+					// Output not terminated by a new line
+					callback.onLine(line.substring(0, pos));
+				}
+				try {
+					return Integer.parseInt(line.substring(pos + end.length()).trim());
+				} catch (NumberFormatException ex) {
+					return -1;
+				}
+			}
+		} catch (InterruptedException ex) {
+			if (callback != null) callback.onLine("Operation interrupted");
+			// Let the caller know that it was interrupted
+			Thread.currentThread().interrupt();
+		} catch (Exception ex) {
+			if (callback != null) callback.onLine(ex.toString());
+		}
+		// The shell state is unknown - start a new one next time
+		close();
+		return -1;
+	}
+	/**
+	 * Checks if the shell process has exited since the last command (E.g.: killed by the system).
+	 * Any output left over by the previous commands is discarded.
+	 * @return true if there is a shell process, but it has exited
+	 */
+	private boolean isDead() {
+		if (process == null) {
+			return false;
+		}
+		String line;
+		while ((line = lines.poll()) != null) {
+			if (line == EOF) return true;
+		}
+		try {
+			process.exitValue();
+			return true;
+		} catch (IllegalThreadStateException ex) {
+			// still running
+			return false;
+		}
+	}
+	/**
+	 * Writes a command to the shell, followed by the end marker.
+	 * @param cmd command to write
+	 * @param seq command sequence number
+	 * @throws IOException if the shell cannot be started or written to
+	 */
+	private void send(String cmd, int seq) throws IOException {
+		if (process == null) {
+			start();
+		}
+		stdin.write(cmd);
+		stdin.write("\necho \"" + MARKER + seq + " $?\"\n");
+		stdin.flush();
+	}
+	/**
+	 * Starts the shell process, along with the thread reading its output.
+	 * @throws IOException if the shell cannot be started
+	 */
+	private void start() throws IOException {
+		final Process proc = Runtime.getRuntime().exec(command);
+		final BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+		final BufferedReader stdout = new BufferedReader(new InputStreamReader(proc.getInputStream(), CHARSET));
+		final Thread reader = new Thread("RootShell") {
+			@Override
+			public void run() {
+				try {
+					String line;
+					while ((line = stdout.readLine()) != null) {
+						queue.add(line);
+					}
+				} catch (IOException ex) {
+				} finally {
+					queue.add(EOF);
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+		this.process = proc;
+		this.lines = queue;
+		this.stdin = new OutputStreamWriter(proc.getOutputStream(), CHARSET);
+		// Merge stderr into stdout, so that all output is read in order
+		this.stdin.write("exec 2>&1\n");
+		this.stdin.flush();
+	}
+	/**
+	 * Terminates the shell process (a new one is started on the next command).
+	 */
+	synchronized void close() {
+		if (process != null) {
+			try {
+				stdin.close();
+			} catch (IOException ex) {
+			}
+			process.destroy();
+		}
+		process = null;
+		stdin = null;
+		lines = null;
+	}
+}
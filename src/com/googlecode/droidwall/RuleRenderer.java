@@ -0,0 +1,58 @@
+/**
+ * Renders a rule set (or changes to it) as commands for a given backend.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Renders a rule set (or changes to it) as commands for a given backend.
+ * A rendering always starts with begin() and ends with commit().
+ */
+interface RuleRenderer {
+	/**
+	 * Starts a new set of changes.
+	 * @param out output
+	 * @param flush chains whose rules are removed first (created if necessary), null for none
+	 */
+	void begin(StringBuilder out, String flush[]);
+	/**
+	 * Appends the given rules to the end of their chains.
+	 * @param out output
+	 * @param rules rules to append
+	 */
+	void append(StringBuilder out, List<RuleSet.Rule> rules);
+	/**
+	 * Deletes and inserts individual rules, keeping all others.
+	 * The rules are inserted in the given order, after all rules are deleted.
+	 * @param out output
+	 * @param deleted rules to delete
+	 * @param inserted rules to insert
+	 * @param positions 1-based position of each inserted rule on its chain
+	 */
+	void update(StringBuilder out, Collection<RuleSet.Rule> deleted, List<RuleSet.Rule> inserted, int positions[]);
+	/**
+	 * Finishes the current set of changes.
+	 * @param out output
+	 */
+	void commit(StringBuilder out);
+}
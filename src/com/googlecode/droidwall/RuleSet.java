@@ -0,0 +1,389 @@
+/**
+ * Immutable in-memory model of the firewall rules.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable in-memory model of the firewall rules.
+ * It holds the rules for each droidwall chain, built from the selected UIDs and the preferences,
+ * independently from the way they are applied (see RuleRenderer).
+ * This class does not depend on Android, so it can be built and rendered anywhere.
+ */
+final class RuleSet {
+	/** main chain, called from OUTPUT (also the name prefix of the chains of a rule set without profiles) */
+	static final String CHAIN_MAIN		= "droidwall";
+	// Chain name suffixes (E.g.: "droidwall-3g")
+	static final String SUFFIX_3G		= "-3g";
+	static final String SUFFIX_WIFI		= "-wifi";
+	static final String SUFFIX_REJECT	= "-reject";
+	// Modes
+	static final String MODE_WHITELIST	= "whitelist";
+	static final String MODE_BLACKLIST	= "blacklist";
+	// Interfaces
+	static final String ITFS_WIFI[] = {"tiwlan+", "wlan+", "eth+", "ra+"};
+	static final String ITFS_3G[] = {"rmnet+","pdp+","ppp+","uwbr+","wimax+","vsnet+","ccmni+","usb+"};
+
+	private final String chainMain;
+	private final String chain3g;
+	private final String chainWifi;
+	private final String chainReject;
+	private final boolean whitelist;
+	private final boolean logenabled;
+	private final String customScript;
+	private final UidSet uidsWifi;
+	private final UidSet uids3g;
+	private final int dhcpUid;
+	private final int wifiUid;
+	private final List<Rule> rejectRules;
+	private final List<Rule> rules;
+	private final Set<Rule> perAppRules;
+	private final String header;
+
+	/**
+	 * Builds a new rule set.
+	 * @param chain name of the main chain of this rule set, also used as prefix of its other chains
+	 *  (CHAIN_MAIN, or the chain of a profile - see {@link #profileChain(int)})
+	 * @param whitelist true for white-list mode, false for black-list mode
+	 * @param logenabled indicates if blocked packets should be logged
+	 * @param customScript user-defined custom script (empty for none)
+	 * @param uidsWifi selected UIDs for WIFI to allow or disallow (depending on the working mode)
+	 * @param uids3g selected UIDs for 2G/3G to allow or disallow (depending on the working mode)
+	 * @param dhcpUid UID of the "dhcp" user (-1 if not available)
+	 * @param wifiUid UID of the "wifi" user (-1 if not available)
+	 * @param ownerRanges indicates if the owner match supports UID ranges
+	 * @param hotWifi UIDs whose WIFI rules should come first, busiest first (null to keep the UID order)
+	 * @param hot3g UIDs whose 2G/3G rules should come first, busiest first (null to keep the UID order)
+	 */
+	RuleSet(String chain, boolean whitelist, boolean logenabled, String customScript, UidSet uidsWifi, UidSet uids3g,
+			int dhcpUid, int wifiUid, boolean ownerRanges, int hotWifi[], int hot3g[]) {
+		this.chainMain = chain;
+		this.chain3g = chain + SUFFIX_3G;
+		this.chainWifi = chain + SUFFIX_WIFI;
+		this.chainReject = chain + SUFFIX_REJECT;
+		this.whitelist = whitelist;
+		this.logenabled = logenabled;
+		this.customScript = customScript;
+		this.uidsWifi = uidsWifi;
+		this.uids3g = uids3g;
+		this.dhcpUid = dhcpUid;
+		this.wifiUid = wifiUid;
+		final boolean blacklist = !whitelist;
+		final List<Rule> rejectRules = new ArrayList<Rule>();
+		final List<Rule> rules = new ArrayList<Rule>();
+		// Check if logging is enabled
+		if (logenabled) {
+			// ignore errors on the LOG target just in case it is not available
+			rejectRules.add(new Rule(chainReject, "-j LOG --log-prefix \"[DROIDWALL] \" --log-uid", true, false));
+		}
+		rejectRules.add(new Rule(chainReject, "-j REJECT", false, false));
+		if (whitelist && logenabled) {
+			// Allow DNS lookups on white-list for a better logging (ignore errors)
+			rules.add(new Rule(chainMain, "-p udp --dport 53 -j RETURN", true, false));
+		}
+		// Main rules (per interface)
+		for (final String itf : ITFS_3G) {
+			rules.add(new Rule(chainMain, "-o " + itf + " -j " + chain3g, false, false));
+		}
+		for (final String itf : ITFS_WIFI) {
+			rules.add(new Rule(chainMain, "-o " + itf + " -j " + chainWifi, false, false));
+		}
+		// Filtering rules
+		final String targetRule = (whitelist ? "RETURN" : chainReject);
+		final boolean any_3g = uids3g.containsAny();
+		final boolean any_wifi = uidsWifi.containsAny();
+		if (whitelist && !any_wifi) {
+			// When "white listing" wifi, we need to ensure that the dhcp and wifi users are allowed
+			if (dhcpUid != -1) {
+				rules.add(new Rule(chainWifi, "-m owner --uid-owner " + dhcpUid + " -j RETURN", false, false));
+			}
+			if (wifiUid != -1) {
+				rules.add(new Rule(chainWifi, "-m owner --uid-owner " + wifiUid + " -j RETURN", false, false));
+			}
+		}
+		if (any_3g) {
+			if (blacklist) {
+				/* block any application on this interface */
+				rules.add(new Rule(chain3g, "-j " + targetRule, false, false));
+			}
+		} else {
+			/* release/block individual applications on this interface */
+			addOwnerRules(rules, chain3g, uids3g, targetRule, ownerRanges, hot3g);
+		}
+		if (any_wifi) {
+			if (blacklist) {
+				/* block any application on this interface */
+				rules.add(new Rule(chainWifi, "-j " + targetRule, false, false));
+			}
+		} else {
+			/* release/block individual applications on this interface */
+			addOwnerRules(rules, chainWifi, uidsWifi, targetRule, ownerRanges, hotWifi);
+		}
+		if (whitelist) {
+			if (!any_3g) {
+				if (uids3g.containsKernel()) {
+					// hack to allow kernel packets on white-list
+					rules.add(new Rule(chain3g, "-m owner --uid-owner 0:999999999 -j " + chainReject, false, false));
+				} else {
+					rules.add(new Rule(chain3g, "-j " + chainReject, false, false));
+				}
+			}
+			if (!any_wifi) {
+				if (uidsWifi.containsKernel()) {
+					// hack to allow kernel packets on white-list
+					rules.add(new Rule(chainWifi, "-m owner --uid-owner 0:999999999 -j " + chainReject, false, false));
+				} else {
+					rules.add(new Rule(chainWifi, "-j " + chainReject, false, false));
+				}
+			}
+		} else {
+			if (uids3g.containsKernel()) {
+				// hack to BLOCK kernel packets on black-list
+				rules.add(new Rule(chain3g, "-m owner --uid-owner 0:999999999 -j RETURN", false, false));
+				rules.add(new Rule(chain3g, "-j " + chainReject, false, false));
+			}
+			if (uidsWifi.containsKernel()) {
+				// hack to BLOCK kernel packets on black-list
+				rules.add(new Rule(chainWifi, "-m owner --uid-owner 0:999999999 -j RETURN", false, false));
+				rules.add(new Rule(chainWifi, "-j " + chainReject, false, false));
+			}
+		}
+		// Everything but the per-application rules must be identical for an incremental update
+		final StringBuilder header = new StringBuilder();
+		header.append(whitelist ? MODE_WHITELIST : MODE_BLACKLIST).append(logenabled ? " log\n" : "\n");
+		for (final Rule rule : rejectRules) {
+			header.append(rule).append('\n');
+		}
+		final Set<Rule> perAppRules = new LinkedHashSet<Rule>();
+		for (final Rule rule : rules) {
+			if (rule.perApp) {
+				perAppRules.add(rule);
+			} else {
+				header.append(rule).append('\n');
+			}
+		}
+		header.append(customScript);
+		this.rejectRules = Collections.unmodifiableList(rejectRules);
+		this.rules = Collections.unmodifiableList(rules);
+		this.perAppRules = Collections.unmodifiableSet(perAppRules);
+		this.header = header.toString();
+	}
+	/**
+	 * Add the per-application owner rules for a chain.
+	 * Consecutive UIDs are merged into a single "--uid-owner first-last" rule when ranges are supported,
+	 * since every packet walks these rules linearly.
+	 * @param rules list of rules to add to
+	 * @param chain chain name
+	 * @param uids selected UIDs (special negative UIDs are ignored)
+	 * @param target rule target
+	 * @param ranges indicates if the owner match supports UID ranges
+	 * @param hot UIDs whose rules should come first, busiest first (null to keep the UID order)
+	 */
+	private static void addOwnerRules(List<Rule> rules, String chain, UidSet uids, String target, boolean ranges, int hot[]) {
+		final int count = uids.size();
+		// rank of each UID on the set: its position on the hot list (UIDs never seen go last)
+		final int uidRanks[] = new int[count];
+		Arrays.fill(uidRanks, Integer.MAX_VALUE);
+		if (hot != null) {
+			for (int r=hot.length-1; r>=0; r--) {
+				final int index = uids.indexOf(hot[r]);
+				if (index >= 0) uidRanks[index] = r;
+			}
+		}
+		// owner rules, as sort keys: rank on the high 32 bits, index of the first UID on the low ones
+		final long keys[] = new long[count];
+		final int lasts[] = new int[count];
+		int owners = 0;
+		int i = uids.firstUid();
+		while (i < count) {
+			final int first = i;
+			// a rule is as hot as the busiest UID it matches
+			int rank = uidRanks[i];
+			i++;
+			// merge consecutive UIDs
+			while (i < count && ranges && uids.get(i) == uids.get(i-1) + 1) {
+				if (uidRanks[i] < rank) rank = uidRanks[i];
+				i++;
+			}
+			keys[owners] = ((long) rank << 32) | first;
+			lasts[first] = i - 1;
+			owners++;
+		}
+		// busiest first, in UID order otherwise
+		Arrays.sort(keys, 0, owners);
+		for (int k=0; k<owners; k++) {
+			final int first = (int) keys[k];
+			final int last = lasts[first];
+			final String owner = (first == last) ? String.valueOf(uids.get(first)) : uids.get(first) + "-" + uids.get(last);
+			rules.add(new Rule(chain, "-m owner --uid-owner " + owner + " -j " + target, false, true));
+		}
+	}
+	/**
+	 * @param profile profile id
+	 * @return name of the main chain of a profile (E.g.: "droidwall-p1")
+	 */
+	static String profileChain(int profile) {
+		return CHAIN_MAIN + "-p" + profile;
+	}
+	/** @return name of the main chain of this rule set */
+	String getMainChain() {
+		return chainMain;
+	}
+	/** @return name of the 2G/3G chain of this rule set */
+	String get3gChain() {
+		return chain3g;
+	}
+	/** @return name of the WIFI chain of this rule set */
+	String getWifiChain() {
+		return chainWifi;
+	}
+	/** @return all chains of this rule set, in creation order */
+	String[] getChains() {
+		return new String[] {chainMain, chain3g, chainWifi, chainReject};
+	}
+	/** @return true for white-list mode, false for black-list mode */
+	boolean isWhitelist() {
+		return whitelist;
+	}
+	/** @return selected UIDs for WIFI (including special UIDs) */
+	UidSet getUidsWifi() {
+		return uidsWifi;
+	}
+	/** @return selected UIDs for 2G/3G (including special UIDs) */
+	UidSet getUids3g() {
+		return uids3g;
+	}
+	/** @return UID of the "dhcp" user (-1 if not available) */
+	int getDhcpUid() {
+		return dhcpUid;
+	}
+	/** @return UID of the "wifi" user (-1 if not available) */
+	int getWifiUid() {
+		return wifiUid;
+	}
+	/** @return true if blocked packets are logged */
+	boolean isLogEnabled() {
+		return logenabled;
+	}
+	/** @return user-defined custom script (empty for none) */
+	String getCustomScript() {
+		return customScript;
+	}
+	/** @return rules of the reject chain, which must exist before the custom script runs */
+	List<Rule> getRejectRules() {
+		return rejectRules;
+	}
+	/** @return all other rules, in order */
+	List<Rule> getRules() {
+		return rules;
+	}
+	/** @return the per-application rules (also contained in getRules()) */
+	Set<Rule> getPerAppRules() {
+		return perAppRules;
+	}
+	/**
+	 * Find the position of some rules on their chains.
+	 * @param subset rules of this rule set, in the same order as getRules()
+	 * @return 1-based position of each rule on its chain
+	 * @throws IllegalArgumentException if a rule is not found, or the rules are out of order
+	 */
+	int[] positionsOf(List<Rule> subset) {
+		final int positions[] = new int[subset.size()];
+		final HashMap<String, int[]> counters = new HashMap<String, int[]>();
+		int next = 0;
+		for (final Rule rule : rules) {
+			if (next == positions.length) break;
+			int counter[] = counters.get(rule.chain);
+			if (counter == null) {
+				counter = new int[1];
+				counters.put(rule.chain, counter);
+			}
+			counter[0]++;
+			if (rule.equals(subset.get(next))) {
+				positions[next++] = counter[0];
+			}
+		}
+		if (next != positions.length) {
+			throw new IllegalArgumentException("Rule not found: " + subset.get(next));
+		}
+		return positions;
+	}
+	/**
+	 * Check if the given rule set differs from this one only by its per-application rules,
+	 * in which case it can be updated incrementally.
+	 * @param other rule set to compare to
+	 * @return true if everything but the per-application rules is the same
+	 */
+	boolean sameHeader(RuleSet other) {
+		return other != null && header.equals(other.header);
+	}
+	/**
+	 * Check if the rules applied from the given rule set can be updated incrementally to this one.
+	 * The insert positions only count the rules of the rule set, so a custom script adding rules to the
+	 * same chains would shift them: in that case all rules must be rebuilt.
+	 * @param previous rule set applied last time
+	 * @return true if the per-application rules can be just deleted/inserted
+	 */
+	boolean canUpdate(RuleSet previous) {
+		return sameHeader(previous) && customScript.length() == 0;
+	}
+
+	/**
+	 * Single iptables rule
+	 */
+	static final class Rule {
+		/** chain name (E.g.: "droidwall-wifi") */
+		final String chain;
+		/** rule specification (E.g.: "-m owner --uid-owner 10012 -j RETURN") */
+		final String spec;
+		/** if true, errors adding this rule are ignored (when adding rules one by one) */
+		final boolean optional;
+		/** if true, this rule refers to selected applications */
+		final boolean perApp;
+		Rule(String chain, String spec, boolean optional, boolean perApp) {
+			this.chain = chain;
+			this.spec = spec;
+			this.optional = optional;
+			this.perApp = perApp;
+		}
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Rule)) return false;
+			final Rule other = (Rule) o;
+			return chain.equals(other.chain) && spec.equals(other.spec);
+		}
+		@Override
+		public int hashCode() {
+			return chain.hashCode() * 31 + spec.hashCode();
+		}
+		@Override
+		public String toString() {
+			return chain + " " + spec;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * Renders rules as shell commands, executing iptables once per rule.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Renders rules as shell commands, executing iptables once per rule.
+ * The script header must define the IPTABLES variable.
+ */
+final class ShellRuleRenderer implements RuleRenderer {
+	@Override
+	public void begin(StringBuilder out, String flush[]) {
+		if (flush != null) {
+			// exit codes 7 to 10 (the codes after them are used by the caller)
+			for (int i=0; i<flush.length; i++) {
+				out.append("$IPTABLES -F ").append(flush[i]).append(" || exit ").append(7 + Math.min(i, 3)).append('\n');
+			}
+		}
+	}
+	@Override
+	public void append(StringBuilder out, List<RuleSet.Rule> rules) {
+		for (final RuleSet.Rule rule : rules) {
+			out.append("$IPTABLES -A ").append(rule.chain).append(' ').append(rule.spec);
+			out.append(rule.optional ? "\n" : " || exit\n");
+		}
+	}
+	@Override
+	public void update(StringBuilder out, Collection<RuleSet.Rule> deleted, List<RuleSet.Rule> inserted, int positions[]) {
+		for (final RuleSet.Rule rule : deleted) {
+			out.append("$IPTABLES -D ").append(rule.chain).append(' ').append(rule.spec).append(" || exit\n");
+		}
+		int i = 0;
+		for (final RuleSet.Rule rule : inserted) {
+			out.append("$IPTABLES -I ").append(rule.chain).append(' ').append(positions[i++]).append(' ').append(rule.spec).append(" || exit\n");
+		}
+	}
+	@Override
+	public void commit(StringBuilder out) {
+	}
+}
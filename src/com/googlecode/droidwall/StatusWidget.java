@@ -55,7 +55,8 @@ public class StatusWidget extends AppWidgetProvider {
         } else if (Api.TOGGLE_REQUEST_MSG.equals(intent.getAction())) {
         	// Broadcast sent to request toggling DroidWall's status
             final SharedPreferences prefs = context.getSharedPreferences(Api.PREFS_NAME, 0);
-            final boolean enabled = !prefs.getBoolean(Api.PREF_ENABLED, true);
+            // the status is cached in memory, since it may not have been written yet
+            final boolean enabled = !Api.isEnabled(context);
     		final String pwd = prefs.getString(Api.PREF_PASSWORD, "");
     		if (!enabled && pwd.length() != 0) {
         		Toast.makeText(context, "Cannot disable firewall - password defined!", Toast.LENGTH_SHORT).show();
@@ -72,12 +73,16 @@ public class StatusWidget extends AppWidgetProvider {
 				public void run() {
         			final Message msg = new Message();
 		            if (enabled) {
+		            	// the rules are only applied while the firewall is enabled
+		            	Api.setEnabled(context, true);
 		            	if (Api.applySavedIptablesRules(context, false)) {
 		        			msg.arg1 = R.string.toast_enabled;
 		        			toaster.sendMessage(msg);
 		            	} else {
 		        			msg.arg1 = R.string.toast_error_enabling;
 		        			toaster.sendMessage(msg);
+		        			Api.setEnabled(context, false);
+		        			DeferredWriter.flush();
 		            		return;
 		            	}
 		            } else {
@@ -91,6 +96,8 @@ public class StatusWidget extends AppWidgetProvider {
 		            	}
 		            }
 		            Api.setEnabled(context, enabled);
+		            // the new status must survive a crash or reboot
+		            DeferredWriter.flush();
 				}
 			}.start();
         }
@@ -98,9 +105,8 @@ public class StatusWidget extends AppWidgetProvider {
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] ints) {
         super.onUpdate(context, appWidgetManager, ints);
-        final SharedPreferences prefs = context.getSharedPreferences(Api.PREFS_NAME, 0);
-        boolean enabled = prefs.getBoolean(Api.PREF_ENABLED, true);
-        showWidget(context, appWidgetManager, ints, enabled);
+        // the preference may be stale while the new status is being written
+        showWidget(context, appWidgetManager, ints, Api.isEnabled(context));
     }
 
     private void showWidget(Context context, AppWidgetManager manager, int[] widgetIds, boolean enabled) {
@@ -0,0 +1,211 @@
+/**
+ * Bounded-memory counter of the most frequent int keys (Space-Saving).
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+/**
+ * Bounded-memory counter of the most frequent int keys, using the Space-Saving algorithm.
+ * At most "capacity" keys are monitored: when a new key arrives and the counter is full, it replaces
+ * the key with the lowest count, inheriting that count as its error. Every key whose real count is
+ * above total/capacity is guaranteed to be monitored, and each monitored key count is an upper bound
+ * of its real count, which is at least count - error.
+ * Counters can be merged keeping the same guarantees (see {@link #add(TopK)}).
+ * This class does not depend on Android.
+ */
+final class TopK {
+	private final int keys[];
+	private final int counts[];
+	private final int errors[];
+	private int size = 0;
+
+	/**
+	 * @param capacity maximum number of monitored keys
+	 */
+	TopK(int capacity) {
+		keys = new int[capacity];
+		counts = new int[capacity];
+		errors = new int[capacity];
+	}
+	/**
+	 * @return number of monitored keys
+	 */
+	int size() {
+		return size;
+	}
+	/**
+	 * @return maximum number of monitored keys
+	 */
+	int capacity() {
+		return keys.length;
+	}
+	/**
+	 * @param index monitored key index (0 to size-1, the index of a key may change after each offer)
+	 * @return monitored key
+	 */
+	int keyAt(int index) {
+		return keys[index];
+	}
+	/**
+	 * @param index monitored key index
+	 * @return estimated count of the key (an upper bound)
+	 */
+	int countAt(int index) {
+		return counts[index];
+	}
+	/**
+	 * @param index monitored key index
+	 * @return maximum overestimation of the key count
+	 */
+	int errorAt(int index) {
+		return errors[index];
+	}
+	/**
+	 * Count occurrences of a key.
+	 * @param key key
+	 * @param count number of occurrences
+	 */
+	void offer(int key, int count) {
+		offer(key, count, 0);
+	}
+	/**
+	 * Count occurrences of a key, with a known overestimation (used to merge counters).
+	 * @param key key
+	 * @param count number of occurrences
+	 * @param error maximum overestimation of the count
+	 */
+	void offer(int key, int count, int error) {
+		int min = -1;
+		for (int i=0; i<size; i++) {
+			if (keys[i] == key) {
+				counts[i] += count;
+				errors[i] += error;
+				return;
+			}
+			if (min == -1 || counts[i] < counts[min]) {
+				min = i;
+			}
+		}
+		if (size < keys.length) {
+			keys[size] = key;
+			counts[size] = count;
+			errors[size] = error;
+			size++;
+			return;
+		}
+		// replace the least frequent key, which may have had all its occurrences
+		keys[min] = key;
+		errors[min] = counts[min] + error;
+		counts[min] += count;
+	}
+	/**
+	 * Add all counts of another counter (mergeable Space-Saving).
+	 * A key missing from a full counter may have had up to its minimum count, so that minimum is added
+	 * to the count and error of the keys monitored by the other counter only (a key missing from a counter
+	 * that is not full had no occurrences). The counts of the shared keys are summed, and the keys with
+	 * the highest counts are kept.
+	 * @param other counter to add
+	 */
+	void add(TopK other) {
+		final int thisMin = minCount();
+		final int otherMin = other.minCount();
+		final int total = size + other.size;
+		final int mergedKeys[] = new int[total];
+		final int mergedCounts[] = new int[total];
+		final int mergedErrors[] = new int[total];
+		int n = 0;
+		for (int i=0; i<size; i++) {
+			final int j = other.indexOf(keys[i]);
+			mergedKeys[n] = keys[i];
+			mergedCounts[n] = counts[i] + ((j != -1) ? other.counts[j] : otherMin);
+			mergedErrors[n] = errors[i] + ((j != -1) ? other.errors[j] : otherMin);
+			n++;
+		}
+		for (int j=0; j<other.size; j++) {
+			if (indexOf(other.keys[j]) == -1) {
+				mergedKeys[n] = other.keys[j];
+				mergedCounts[n] = other.counts[j] + thisMin;
+				mergedErrors[n] = other.errors[j] + thisMin;
+				n++;
+			}
+		}
+		// keep the highest counts (the dropped keys are below the new minimum)
+		final int order[] = sort(mergedCounts, mergedKeys, n);
+		size = Math.min(n, keys.length);
+		for (int i=0; i<size; i++) {
+			keys[i] = mergedKeys[order[i]];
+			counts[i] = mergedCounts[order[i]];
+			errors[i] = mergedErrors[order[i]];
+		}
+	}
+	/**
+	 * @return monitored key indexes, by decreasing count (and increasing key on ties)
+	 */
+	int[] sorted() {
+		return sort(counts, keys, size);
+	}
+	/**
+	 * Remove all keys.
+	 */
+	void clear() {
+		size = 0;
+	}
+	/**
+	 * @return the lowest count if the counter is full (the maximum count of a key not monitored), 0 otherwise
+	 */
+	private int minCount() {
+		if (size < keys.length) {
+			return 0;
+		}
+		int min = counts[0];
+		for (int i=1; i<size; i++) {
+			if (counts[i] < min) min = counts[i];
+		}
+		return min;
+	}
+	/**
+	 * @return index of a monitored key, or -1 if not monitored
+	 */
+	private int indexOf(int key) {
+		for (int i=0; i<size; i++) {
+			if (keys[i] == key) return i;
+		}
+		return -1;
+	}
+	/**
+	 * @param values values to sort
+	 * @param keys keys of the values, ordering equal values (so merged and scanned counters list them alike)
+	 * @param len number of values
+	 * @return value indexes, by decreasing value and increasing key
+	 */
+	private static int[] sort(int values[], int keys[], int len) {
+		final int order[] = new int[len];
+		for (int i=0; i<len; i++) {
+			// insertion sort (the capacity is small)
+			int j = i;
+			while (j > 0 && (values[order[j-1]] < values[i] || (values[order[j-1]] == values[i] && keys[order[j-1]] > keys[i]))) {
+				order[j] = order[j-1];
+				j--;
+			}
+			order[j] = i;
+		}
+		return order;
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * Pipe-separated UID lists, as persisted on the preferences.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+/**
+ * Pipe-separated UID lists (E.g.: "10001|10005|-11"), as persisted on the preferences.
+ * The lists are scanned directly, without StringTokenizer or temporary strings.
+ * This class does not depend on Android.
+ */
+final class UidList {
+	/** UID list separator */
+	static final char SEPARATOR = '|';
+
+	private UidList() {
+	}
+	/**
+	 * Parse a pipe-separated UID list. Empty and invalid entries are ignored.
+	 * @param list pipe-separated UID list
+	 * @return UIDs, in the list order
+	 */
+	static int[] parse(String list) {
+		final int length = list.length();
+		int uids[] = new int[count(list)];
+		int count = 0;
+		int pos = 0;
+		while (pos < length) {
+			int end = list.indexOf(SEPARATOR, pos);
+			if (end == -1) end = length;
+			final long uid = parseUid(list, pos, end);
+			if (uid != Long.MIN_VALUE) {
+				uids[count++] = (int) uid;
+			}
+			pos = end + 1;
+		}
+		if (count != uids.length) {
+			final int copy[] = new int[count];
+			System.arraycopy(uids, 0, copy, 0, count);
+			uids = copy;
+		}
+		return uids;
+	}
+	/**
+	 * Build a pipe-separated UID list.
+	 * @param uids UIDs
+	 * @param count number of UIDs to use from the array
+	 * @return pipe-separated UID list
+	 */
+	static String format(int uids[], int count) {
+		final StringBuilder list = new StringBuilder(count * 6);
+		for (int i=0; i<count; i++) {
+			if (i != 0) list.append(SEPARATOR);
+			list.append(uids[i]);
+		}
+		return list.toString();
+	}
+	/**
+	 * @param list pipe-separated UID list
+	 * @return maximum number of UIDs on the list
+	 */
+	private static int count(String list) {
+		if (list.length() == 0) return 0;
+		int count = 1;
+		for (int i=list.length()-1; i>=0; i--) {
+			if (list.charAt(i) == SEPARATOR) count++;
+		}
+		return count;
+	}
+	/**
+	 * Parse a single UID.
+	 * @param list string containing the UID
+	 * @param start start position (inclusive)
+	 * @param end end position (exclusive)
+	 * @return the UID, or Long.MIN_VALUE if it is empty or invalid
+	 */
+	private static long parseUid(String list, int start, int end) {
+		if (start >= end) return Long.MIN_VALUE;
+		boolean negative = false;
+		if (list.charAt(start) == '-') {
+			negative = true;
+			if (++start == end) return Long.MIN_VALUE;
+		}
+		long value = 0;
+		for (int i=start; i<end; i++) {
+			final char c = list.charAt(i);
+			if (c < '0' || c > '9') return Long.MIN_VALUE;
+			value = value * 10 + (c - '0');
+			if (value > Integer.MAX_VALUE) return Long.MIN_VALUE;
+		}
+		return negative ? -value : value;
+	}
+}
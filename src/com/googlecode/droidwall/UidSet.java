@@ -0,0 +1,158 @@
+/**
+ * Immutable set of selected UIDs.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Arrays;
+
+/**
+ * Immutable set of selected UIDs for an interface class, backed by a sorted int array.
+ * The special UIDs (SPECIAL_UID_ANY and SPECIAL_UID_KERNEL) are also kept as flags,
+ * so checking them does not require a search.
+ * Each set carries the version of the change that produced it, so readers can tell a stale set apart.
+ * This class does not depend on Android.
+ */
+final class UidSet {
+	/** special application UID used to indicate "any application" */
+	static final int SPECIAL_UID_ANY	= -10;
+	/** special application UID used to indicate the Linux Kernel */
+	static final int SPECIAL_UID_KERNEL	= -11;
+	/** empty set (version 0) */
+	static final UidSet EMPTY = new UidSet(new int[0], 0);
+
+	private final int uids[];
+	private final boolean any;
+	private final boolean kernel;
+	private final int version;
+
+	/**
+	 * @param sorted sorted UIDs without duplicates (not copied)
+	 * @param version selection version
+	 */
+	private UidSet(int sorted[], int version) {
+		this.uids = sorted;
+		this.any = Arrays.binarySearch(sorted, SPECIAL_UID_ANY) >= 0;
+		this.kernel = Arrays.binarySearch(sorted, SPECIAL_UID_KERNEL) >= 0;
+		this.version = version;
+	}
+	/**
+	 * Build a set from UIDs in any order, possibly duplicated.
+	 * @param uids UIDs (copied)
+	 * @param version selection version
+	 * @return new set
+	 */
+	static UidSet of(int uids[], int version) {
+		final int sorted[] = uids.clone();
+		Arrays.sort(sorted);
+		int count = 0;
+		for (int i=0; i<sorted.length; i++) {
+			if (count == 0 || sorted[i] != sorted[count-1]) {
+				sorted[count++] = sorted[i];
+			}
+		}
+		if (count == sorted.length) {
+			return new UidSet(sorted, version);
+		}
+		final int copy[] = new int[count];
+		System.arraycopy(sorted, 0, copy, 0, count);
+		return new UidSet(copy, version);
+	}
+	/**
+	 * Build a set from UIDs that are already sorted and without duplicates (E.g.: read from UidStore).
+	 * @param sorted sorted UIDs without duplicates (not copied)
+	 * @param version selection version
+	 * @return new set
+	 */
+	static UidSet fromSorted(int sorted[], int version) {
+		return new UidSet(sorted, version);
+	}
+	/**
+	 * @param uid UID to look for
+	 * @return true if the UID is on this set
+	 */
+	boolean contains(int uid) {
+		if (uid == SPECIAL_UID_ANY) return any;
+		if (uid == SPECIAL_UID_KERNEL) return kernel;
+		return Arrays.binarySearch(uids, uid) >= 0;
+	}
+	/** @return true if "any application" is selected */
+	boolean containsAny() {
+		return any;
+	}
+	/** @return true if the Linux kernel is selected */
+	boolean containsKernel() {
+		return kernel;
+	}
+	/** @return number of UIDs on this set (including special UIDs) */
+	int size() {
+		return uids.length;
+	}
+	/**
+	 * @param index position, from 0 to size()-1
+	 * @return the UID at the given position (in ascending order)
+	 */
+	int get(int index) {
+		return uids[index];
+	}
+	/**
+	 * @param uid UID
+	 * @return position of the UID (from 0 to size()-1), or a negative value if not present
+	 */
+	int indexOf(int uid) {
+		return Arrays.binarySearch(uids, uid);
+	}
+	/** @return index of the first real UID (the special UIDs are negative, so they come first) */
+	int firstUid() {
+		int i = 0;
+		while (i < uids.length && uids[i] < 0) i++;
+		return i;
+	}
+	/** @return a sorted copy of the UIDs */
+	int[] toArray() {
+		return uids.clone();
+	}
+	/**
+	 * @param uid UID to remove
+	 * @param version version of the new set
+	 * @return a set without the given UID, or this instance if it was not present
+	 */
+	UidSet without(int uid, int version) {
+		final int pos = Arrays.binarySearch(uids, uid);
+		if (pos < 0) {
+			return this;
+		}
+		final int newuids[] = new int[uids.length - 1];
+		System.arraycopy(uids, 0, newuids, 0, pos);
+		System.arraycopy(uids, pos + 1, newuids, pos, newuids.length - pos);
+		return new UidSet(newuids, version);
+	}
+	/** @return version of the selection this set belongs to */
+	int getVersion() {
+		return version;
+	}
+	/**
+	 * @param other another set
+	 * @return true if both sets have the same UIDs (regardless of the version)
+	 */
+	boolean sameUids(UidSet other) {
+		return other != null && Arrays.equals(uids, other.uids);
+	}
+}
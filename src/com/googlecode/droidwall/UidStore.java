@@ -0,0 +1,163 @@
+/**
+ * Binary storage of the selected UIDs.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Binary storage of the selected UIDs, one sorted list per interface class.
+ * File layout (big-endian):
+ * <pre>
+ * int magic, int version, int count[CLASSES]
+ * int uids[count[0]], int uids[count[1]], ...	(sorted, no duplicates)
+ * int crc32 (of everything above)
+ * </pre>
+ * The file is read through a memory-mapped buffer and copied straight into int arrays,
+ * and it is always replaced atomically (written to a temporary file and renamed).
+ * This class does not depend on Android.
+ */
+final class UidStore {
+	/** interface class: WIFI */
+	static final int WIFI = 0;
+	/** interface class: 2G/3G */
+	static final int MOBILE = 1;
+	/** number of interface classes */
+	static final int CLASSES = 2;
+	/** file signature ("DWUI") */
+	private static final int MAGIC = 0x44575549;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8 + 4 * CLASSES;
+
+	private final File file;
+
+	/**
+	 * @param file file used to store the UIDs
+	 */
+	UidStore(File file) {
+		this.file = file;
+	}
+	/**
+	 * Read the stored UIDs.
+	 * @return sorted UIDs for each interface class, or null if the file does not exist or is corrupted
+	 */
+	synchronized int[][] read() {
+		if (!file.exists()) {
+			return null;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			final FileChannel channel = raf.getChannel();
+			final long size = channel.size();
+			if (size < HEADER_SIZE + 4 || size > Integer.MAX_VALUE) {
+				return null;
+			}
+			final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			final byte data[] = new byte[(int) size - 4];
+			buf.get(data);
+			final CRC32 crc = new CRC32();
+			crc.update(data);
+			if (buf.getInt() != (int) crc.getValue()) {
+				return null;
+			}
+			buf.rewind();
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+				return null;
+			}
+			final int counts[] = new int[CLASSES];
+			long total = 0;
+			for (int i=0; i<CLASSES; i++) {
+				counts[i] = buf.getInt();
+				if (counts[i] < 0) return null;
+				total += counts[i];
+			}
+			if (HEADER_SIZE + 4 * total + 4 != size) {
+				return null;
+			}
+			final int uids[][] = new int[CLASSES][];
+			for (int i=0; i<CLASSES; i++) {
+				uids[i] = new int[counts[i]];
+				buf.asIntBuffer().get(uids[i]);
+				buf.position(buf.position() + 4 * counts[i]);
+			}
+			return uids;
+		} catch (IOException ex) {
+			return null;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+	}
+	/**
+	 * Replace the stored UIDs.
+	 * @param uids sorted UIDs (without duplicates) for each interface class
+	 * @throws IOException if the file cannot be written
+	 */
+	synchronized void write(int uids[][]) throws IOException {
+		int total = 0;
+		for (int i=0; i<CLASSES; i++) {
+			total += uids[i].length;
+		}
+		final ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + 4 * total + 4);
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		for (int i=0; i<CLASSES; i++) {
+			buf.putInt(uids[i].length);
+		}
+		for (int i=0; i<CLASSES; i++) {
+			buf.asIntBuffer().put(uids[i]);
+			buf.position(buf.position() + 4 * uids[i].length);
+		}
+		final CRC32 crc = new CRC32();
+		crc.update(buf.array(), 0, buf.position());
+		buf.putInt((int) crc.getValue());
+		final File tmp = new File(file.getPath() + ".tmp");
+		final FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(buf.array());
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Cannot replace " + file);
+		}
+	}
+	/**
+	 * Delete the stored UIDs.
+	 */
+	synchronized void delete() {
+		file.delete();
+	}
+}
@@ -0,0 +1,14 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_JAVA_LIBRARIES := android.test.runner
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+LOCAL_JAVA_RESOURCE_DIRS := fixtures
+
+LOCAL_PACKAGE_NAME := DroidwallTests
+LOCAL_INSTRUMENTATION_FOR := Droidwall
+
+include $(BUILD_PACKAGE)
@@ -0,0 +1,43 @@
+#!/bin/sh
+#
+# Run the unit tests on a plain JVM (only the classes that do not depend on Android are compiled)
+# Usage: run-jvm.sh <junit.jar> [benchmark class]...
+# E.g.: run-jvm.sh junit-3.8.2.jar HotPathBenchmark LogParserBenchmark
+#
+
+ROOT=$(dirname $0)/..
+JUNIT=$1
+
+if [ ! -f "$JUNIT" ]; then
+	echo Error - JUnit jar not found: $JUNIT
+	exit 1
+fi
+shift
+
+# Classes without Android dependencies
+CLASSES="EventStore HitOrder IntMap LabelStore LineCallback LogCollector Logger LogParser LogSource LogSummary NflogParser
+	NftRuleRenderer RestoreRuleRenderer RootShell RuleRenderer RuleSet ShellRuleRenderer TopK UidList UidSet UidStore"
+SOURCES=""
+for CLASS in $CLASSES; do
+	SOURCES="$SOURCES $ROOT/src/com/googlecode/droidwall/$CLASS.java"
+done
+
+OUT=$(mktemp -d) || exit
+trap "rm -rf $OUT" EXIT
+echo Compiling
+javac -encoding UTF-8 -cp $JUNIT -d $OUT $SOURCES $(find $ROOT/tests/src -name '*.java') || exit
+
+echo Running tests
+FAILED=0
+for TEST in $(cd $ROOT/tests/src && find . -name '*Test.java' | sed 's/^\.\///;s/\.java$//;s/\//./g'); do
+	java -cp $OUT:$JUNIT:$ROOT/tests/fixtures junit.textui.TestRunner $TEST || FAILED=1
+done
+if [ $FAILED != 0 ]; then
+	echo Error - Some tests have failed
+	exit 1
+fi
+
+for BENCHMARK in "$@"; do
+	echo Running $BENCHMARK
+	java -cp $OUT com.googlecode.droidwall.$BENCHMARK || exit
+done
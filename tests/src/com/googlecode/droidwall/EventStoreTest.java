@@ -0,0 +1,179 @@
+/**
+ * Tests of the persistent store of blocked packet events.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the persistent store of blocked packet events.
+ */
+public class EventStoreTest extends TestCase {
+	private static final long NOW = 1300000000000L;
+	private static final long SPAN = 1000;
+	private static final int DST = 0x01020304;
+
+	private File dir;
+	private final List<String> logged = new ArrayList<String>();
+	private final Logger logger = new Logger() {
+		public void d(String message) {
+			logged.add(message);
+		}
+	};
+	private final Map<Integer, String[]> names = new HashMap<Integer, String[]>();
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("droidwall", "test");
+		dir.delete();
+		dir.mkdirs();
+	}
+	@Override
+	protected void tearDown() {
+		final File files[] = dir.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+	public void testRotationByTime() throws IOException {
+		final EventStore store = new EventStore(dir, logger, SPAN, 1000, 100 * SPAN);
+		for (int i=0; i<6; i++) {
+			store.append(NOW + i * SPAN / 2, 10001, true, DST, 443, 6);
+		}
+		store.close();
+		assertEquals(3, count(".dat"));
+		assertEquals(3, count(".sum"));
+		assertEquals(6, total(store, NOW, Long.MAX_VALUE));
+		// a range starting at the second segment
+		assertEquals(4, total(store, NOW + SPAN, Long.MAX_VALUE));
+		assertTrue(logged.toString(), logged.isEmpty());
+	}
+	public void testRotationByRecords() throws IOException {
+		final EventStore store = new EventStore(dir, logger, SPAN, 4, 100 * SPAN);
+		for (int i=0; i<10; i++) {
+			store.append(NOW, 10001, true, DST, 443, 6);
+		}
+		store.close();
+		// segments of 4, 4 and 2 records, all starting at the same time
+		assertEquals(3, count(".dat"));
+		assertEquals(10, total(store, NOW, Long.MAX_VALUE));
+		assertTrue(logged.toString(), logged.isEmpty());
+	}
+	public void testRetention() throws IOException {
+		final EventStore store = new EventStore(dir, logger, SPAN, 1000, 3 * SPAN);
+		store.append(NOW, 10001, true, DST, 443, 6);
+		store.append(NOW + SPAN, 10001, true, DST, 443, 6);
+		assertEquals(2, count(".dat"));
+		// rotating past the retention deletes the old segments along with their summaries
+		store.append(NOW + 5 * SPAN, 10001, true, DST, 443, 6);
+		store.close();
+		assertEquals(1, count(".dat"));
+		assertEquals(1, count(".sum"));
+		assertEquals(1, total(store, 0, Long.MAX_VALUE));
+		assertTrue(logged.toString(), logged.isEmpty());
+	}
+	public void testTruncatedRecord() throws IOException {
+		final EventStore store = new EventStore(dir, logger, SPAN, 1000, 100 * SPAN);
+		for (int i=0; i<3; i++) {
+			store.append(NOW + i, 10001, true, DST, 443, 6);
+		}
+		store.flush();
+		// a crash in the middle of a record
+		final File segment = dir.listFiles()[0];
+		final FileOutputStream fos = new FileOutputStream(segment, true);
+		fos.write(new byte[] {0, 0, 1, 2, 3});
+		fos.close();
+		// a new store seals the segment left open, ignoring the partial record
+		final EventStore next = new EventStore(dir, logger, SPAN, 1000, 100 * SPAN);
+		next.append(NOW + SPAN, 10002, false, 0, -1, 17);
+		next.close();
+		assertEquals(4, total(next, NOW, Long.MAX_VALUE));
+		deleteSummaries();
+		assertEquals(4, total(next, NOW, Long.MAX_VALUE));
+		assertTrue(logged.toString(), logged.isEmpty());
+	}
+	public void testSummariesMatchScans() throws IOException {
+		final EventStore store = new EventStore(dir, logger, SPAN, 7, 100 * SPAN);
+		for (int i=0; i<50; i++) {
+			store.append(NOW + i * 100, 10001 + i % 3, i % 5 != 0, DST + i % 4, i % 7 == 0 ? -1 : 80 + i % 2, 6);
+		}
+		store.close();
+		assertTrue(count(".sum") > 1);
+		final long ranges[][] = {{0, Long.MAX_VALUE}, {NOW + SPAN, Long.MAX_VALUE}, {NOW, NOW + 3 * SPAN}, {NOW + 250, NOW + 2750}};
+		final String fromSummaries[] = new String[ranges.length];
+		for (int i=0; i<ranges.length; i++) {
+			fromSummaries[i] = format(store, ranges[i][0], ranges[i][1]);
+		}
+		deleteSummaries();
+		for (int i=0; i<ranges.length; i++) {
+			assertEquals(fromSummaries[i], format(store, ranges[i][0], ranges[i][1]));
+		}
+		assertTrue(logged.toString(), logged.isEmpty());
+	}
+
+	private String format(EventStore store, long from, long to) {
+		final LogSummary summary = new LogSummary();
+		store.summarize(from, to, summary);
+		return summary.format(names);
+	}
+	/**
+	 * @return number of packets on a time range, counted from the formatted summary
+	 */
+	private int total(EventStore store, long from, long to) {
+		final LogSummary summary = new LogSummary();
+		store.summarize(from, to, summary);
+		int total = 0;
+		for (final String line : summary.format(names).split("\n")) {
+			final int i = line.indexOf(" - Blocked ");
+			if (i != -1) {
+				total += Integer.parseInt(line.substring(i + 11, line.indexOf(' ', i + 11)));
+			}
+		}
+		return total;
+	}
+	private int count(String suffix) {
+		int count = 0;
+		for (final String name : dir.list()) {
+			if (name.endsWith(suffix)) {
+				count++;
+			}
+		}
+		return count;
+	}
+	private void deleteSummaries() {
+		for (final File file : dir.listFiles()) {
+			if (file.getName().endsWith(".sum")) {
+				file.delete();
+			}
+		}
+	}
+}
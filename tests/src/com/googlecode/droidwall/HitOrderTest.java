@@ -0,0 +1,87 @@
+/**
+ * Tests of the hit-count-driven rule order.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the hit-count-driven rule order, on "iptables -L chain -v -x -n" listings.
+ */
+public class HitOrderTest extends TestCase {
+	private static final String HEADER = "Chain droidwall-wifi (1 references)\n"
+		+ "    pkts      bytes target     prot opt in     out     source               destination\n";
+
+	public void testKernelRuleIsNotExpanded() {
+		final HitOrder order = new HitOrder();
+		// the catch-all rule matches every UID, and must not be credited to each one of them
+		order.sample(listing(new long[] {120, 500, 10, 90000}, new String[] {"1014", "10001-10003", "10005", "0-999999999"}));
+		assertTrue(order.update());
+		assertEquals("[10001, 1014, 10005]", Arrays.toString(order.getOrder()));
+	}
+	public void testRangeScoredUnderFirstUid() {
+		final HitOrder order = new HitOrder();
+		order.sample(listing(new long[] {0, 0}, new String[] {"10001-10003", "10007"}));
+		order.update();
+		order.sample(listing(new long[] {1000, 10}, new String[] {"10001-10003", "10007"}));
+		assertTrue(order.update());
+		final int hot[] = order.getOrder();
+		assertEquals(10001, hot[0]);
+		// the whole range is placed by its first UID
+		final UidSet uids = UidSet.of(new int[] {10007, 10001, 10002, 10003}, 1);
+		final RuleSet ruleset = new RuleSet(RuleSet.CHAIN_MAIN, false, false, "", uids, uids, 1014, 1010, true, hot, null);
+		final StringBuilder owners = new StringBuilder();
+		for (final RuleSet.Rule rule : ruleset.getPerAppRules()) {
+			if (rule.chain.equals(ruleset.getWifiChain())) {
+				owners.append(rule.spec.substring(rule.spec.indexOf("--uid-owner ") + 12, rule.spec.indexOf(" -j"))).append(' ');
+			}
+		}
+		assertEquals("10001-10003 10007 ", owners.toString());
+	}
+	public void testCountersDecayAndRestart() {
+		final HitOrder order = new HitOrder();
+		order.sample(listing(new long[] {1000, 10}, new String[] {"10001", "10002"}));
+		order.update();
+		assertEquals("[10001, 10002]", Arrays.toString(order.getOrder()));
+		// the counters have been reset (the rules were re-created), and 10002 is now much busier
+		order.sample(listing(new long[] {0, 5000}, new String[] {"10001", "10002"}));
+		assertTrue(order.update());
+		assertEquals("[10002, 10001]", Arrays.toString(order.getOrder()));
+		// small differences do not reorder the rules
+		order.sample(listing(new long[] {50, 5000}, new String[] {"10001", "10002"}));
+		assertFalse(order.update());
+	}
+
+	/**
+	 * @return listing of a chain with one owner rule per UID (or range)
+	 */
+	private static String listing(long packets[], String owners[]) {
+		final StringBuilder res = new StringBuilder(HEADER);
+		for (int i=0; i<owners.length; i++) {
+			res.append("    ").append(packets[i]).append("    ").append(packets[i] * 80)
+				.append(" RETURN     all  --  *      *       0.0.0.0/0            0.0.0.0/0           owner UID match ")
+				.append(owners[i]).append('\n');
+		}
+		return res.toString();
+	}
+}
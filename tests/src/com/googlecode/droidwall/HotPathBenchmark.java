@@ -0,0 +1,187 @@
+/**
+ * Micro-benchmark of the pure-Java hot paths, with synthetic inputs.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Micro-benchmark of the pure-Java hot paths, with synthetic inputs from 10 to 20000 UIDs:
+ * UID list parsing, rule and script generation, the UID storage used by saveRules and
+ * applicationRemoved, and the aggregation of the blocked packets log.
+ * It runs on a plain JVM (see run-jvm.sh), and prints the average time of each operation.
+ */
+public class HotPathBenchmark {
+	/** number of UIDs of each run */
+	private static final int SIZES[] = {10, 100, 1000, 5000, 20000};
+	/** number of log lines per UID (up to LOG_LINES_MAX) */
+	private static final int LOG_LINES_PER_UID = 20;
+	private static final int LOG_LINES_MAX = 200000;
+	/** minimum measuring time of each operation */
+	private static final long MEASURE_NANOS = 500 * 1000000L;
+
+	/** keeps the results alive, so that the work is not optimized away */
+	static int sink;
+
+	/**
+	 * Operation being measured.
+	 */
+	private static abstract class Operation {
+		final String name;
+		Operation(String name) {
+			this.name = name;
+		}
+		abstract void run() throws Exception;
+	}
+
+	public static void main(String args[]) throws Exception {
+		final File dir = File.createTempFile("droidwall", "");
+		dir.delete();
+		dir.mkdir();
+		try {
+			System.out.println("uids\toperation\tus/op");
+			for (final int size : SIZES) {
+				for (final Operation op : operations(size, dir)) {
+					measure(op);	// warm-up
+					System.out.println(size + "\t" + op.name + "\t" + String.format("%.1f", measure(op) / 1000.0));
+				}
+			}
+		} finally {
+			for (final File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+		System.out.println("(" + sink + ")");
+	}
+	/**
+	 * @param op operation
+	 * @return average time of the operation, in nanoseconds
+	 * @throws Exception if the operation fails
+	 */
+	private static double measure(Operation op) throws Exception {
+		int count = 0;
+		final long start = System.nanoTime();
+		long elapsed;
+		do {
+			op.run();
+			count++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < MEASURE_NANOS);
+		return (double) elapsed / count;
+	}
+	/**
+	 * Build the operations measured for a number of UIDs.
+	 * @param size number of UIDs
+	 * @param dir temporary directory
+	 * @return operations
+	 */
+	private static Operation[] operations(int size, File dir) throws IOException {
+		final Random random = new Random(size);
+		final int uids[] = SyntheticData.uids(size, random);
+		final String list = UidList.format(uids, uids.length);
+		final UidSet wifi = UidSet.of(uids, 1);
+		final UidSet mobile = UidSet.of(SyntheticData.uids(size, random), 1);
+		final int removed = uids[uids.length / 2];
+		final UidStore store = new UidStore(new File(dir, "uids-" + size + ".bin"));
+		final int stored[][] = {wifi.toArray(), mobile.toArray()};
+		store.write(stored);
+		final byte log[] = SyntheticData.log(uids, Math.min(size * LOG_LINES_PER_UID, LOG_LINES_MAX), random);
+		final Map<Integer, String[]> names = new HashMap<Integer, String[]>();
+		for (final int uid : uids) {
+			names.put(uid, new String[] {"app" + uid});
+		}
+		return new Operation[] {
+			new Operation("UidList.parse") {
+				@Override
+				void run() {
+					sink += UidList.parse(list).length;
+				}
+			},
+			new Operation("UidList.format") {
+				@Override
+				void run() {
+					sink += UidList.format(uids, uids.length).length();
+				}
+			},
+			new Operation("RuleSet+restore") {
+				@Override
+				void run() {
+					sink += renderRestore(new RuleSet(RuleSet.CHAIN_MAIN, true, true, "", wifi, mobile, 1014, 1010, true, null, null)).length();
+				}
+			},
+			new Operation("RuleSet+shell") {
+				@Override
+				void run() {
+					sink += renderShell(new RuleSet(RuleSet.CHAIN_MAIN, false, false, "", wifi, mobile, 1014, 1010, false, uids, null)).length();
+				}
+			},
+			new Operation("RuleSet+nft") {
+				@Override
+				void run() {
+					sink += new NftRuleRenderer().render(new RuleSet(RuleSet.CHAIN_MAIN, true, true, "", wifi, mobile, 1014, 1010, true, null, null)).length();
+				}
+			},
+			new Operation("saveRules") {
+				@Override
+				void run() throws IOException {
+					store.write(new int[][] {UidSet.of(uids, 2).toArray(), mobile.toArray()});
+				}
+			},
+			new Operation("applicationRemoved") {
+				@Override
+				void run() throws IOException {
+					final int current[][] = store.read();
+					final UidSet before = UidSet.fromSorted(current[UidStore.WIFI], 3);
+					final UidSet after = before.without(removed, 4);
+					store.write(new int[][] {after.toArray(), current[UidStore.MOBILE]});
+					store.write(stored);
+				}
+			},
+			new Operation("LogSummary(" + (log.length / 1024) + "KB)") {
+				@Override
+				void run() {
+					final LogSummary summary = new LogSummary();
+					summary.parse(log, 0, log.length);
+					sink += summary.format(names).length();
+				}
+			},
+		};
+	}
+	private static String renderRestore(RuleSet ruleset) {
+		return render(new RestoreRuleRenderer(), ruleset);
+	}
+	private static String renderShell(RuleSet ruleset) {
+		return render(new ShellRuleRenderer(), ruleset);
+	}
+	private static String render(RuleRenderer renderer, RuleSet ruleset) {
+		final StringBuilder out = new StringBuilder();
+		renderer.begin(out, ruleset.getChains());
+		renderer.append(out, ruleset.getRejectRules());
+		renderer.append(out, ruleset.getRules());
+		renderer.commit(out);
+		return out.toString();
+	}
+}
@@ -0,0 +1,216 @@
+/**
+ * Tests of the log collector, using recorded logs in place of the kernel log.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the log collector, using recorded logs in place of the kernel log.
+ */
+public class LogCollectorTest extends TestCase {
+	/** maximum time waiting for the collector, in milliseconds */
+	private static final long TIMEOUT = 5000;
+	private static final long NOW = 1300000000000L;
+
+	private File dir;
+	private final List<String> logged = new ArrayList<String>();
+	private final Logger logger = new Logger() {
+		public void d(String message) {
+			synchronized (logged) {
+				logged.add(message);
+			}
+		}
+	};
+	private final LogCollector.Clock clock = new LogCollector.Clock() {
+		public long now() {
+			return NOW;
+		}
+	};
+	private final Map<Integer, String[]> names = new HashMap<Integer, String[]>();
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("droidwall", "test");
+		dir.delete();
+		dir.mkdirs();
+		names.put(10001, new String[] {"App1"});
+	}
+	@Override
+	protected void tearDown() {
+		delete(dir);
+	}
+	public void testRecordedLog() throws Exception {
+		final File log = new File(dir, "kmsg");
+		append(log, line(10001, "1.2.3.4", 443) + "<6>[  101.000000] wlan0: no DroidWall here\n" + line(10001, "1.2.3.4", 443) + line(10002, "5.6.7.8", 80));
+		final EventStore store = new EventStore(new File(dir, "events"), logger);
+		final LogCollector collector = new LogCollector(new LogSource.Recorded(log, true), store, logger, clock);
+		collector.start();
+		waitForCursor(collector, log.length());
+		String res = collector.format(names);
+		assertTrue(res, res.contains("App ID 10001 (App1) - Blocked 2 packets (2 packets for 1.2.3.4)\nPorts: 443 (2)"));
+		assertTrue(res, res.contains("App ID 10002 - Blocked 1 packets"));
+		// lines appended to the followed log
+		append(log, line(10002, "5.6.7.8", 80));
+		waitForCursor(collector, log.length());
+		res = collector.format(names);
+		assertTrue(res, res.contains("App ID 10002 - Blocked 2 packets"));
+		collector.stop();
+		assertTrue(logged.toString(), logged.isEmpty());
+
+		// a new collector starts with the stored events
+		final File empty = new File(dir, "empty");
+		append(empty, "");
+		final LogCollector next = new LogCollector(new LogSource.Recorded(empty, true), new EventStore(new File(dir, "events"), logger), logger, clock);
+		next.start();
+		final long end = System.currentTimeMillis() + TIMEOUT;
+		while (next.isEmpty() && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(res, next.format(names));
+		next.stop();
+		assertTrue(logged.toString(), logged.isEmpty());
+	}
+	public void testStopClosesStore() throws Exception {
+		final File log = new File(dir, "kmsg");
+		append(log, line(10001, "1.2.3.4", 443));
+		final EventStore store = new EventStore(new File(dir, "events"), logger);
+		final LogCollector collector = new LogCollector(new LogSource.Recorded(log, true), store, logger, clock);
+		collector.start();
+		waitForCursor(collector, log.length());
+		collector.stop();
+		// the current segment was sealed along with its summary
+		final LogSummary summary = new LogSummary();
+		assertFalse(store.isEmpty());
+		store.summarize(NOW - 1, NOW + 1, summary);
+		assertTrue(summary.format(names).contains("Blocked 1 packets"));
+		final String files[] = new File(dir, "events").list();
+		assertEquals(2, files.length);
+	}
+	public void testKmsgSkipsReturnedRecords() throws Exception {
+		final File log = new File(dir, "kmsg");
+		final File state = new File(dir, "kmsg.state");
+		final File bootId = new File(dir, "boot_id");
+		append(bootId, "boot1\n");
+		append(log, "6,1,100000,-;wlan0: associated\n" + record(2, 10001) + " SUBSYSTEM=net\n" + record(3, 10002));
+		final LogSource source = new LogSource.Kmsg(new String[] {"cat", log.getAbsolutePath()}, state, bootId);
+		assertEquals("6,1,100000,-;wlan0: associated\n" + record(2, 10001) + " SUBSYSTEM=net\n" + record(3, 10002), readAll(source.open(0)));
+		// the whole buffer is read again, but only the new records are returned (even with the same text)
+		append(log, record(4, 10002) + " SUBSYSTEM=net\n");
+		assertEquals(record(4, 10002) + " SUBSYSTEM=net\n", readAll(source.open(0)));
+		assertEquals("", readAll(source.open(0)));
+		source.close();
+		// the position survives a restart on the same boot
+		append(log, record(5, 10003));
+		assertEquals(record(5, 10003), readAll(new LogSource.Kmsg(new String[] {"cat", log.getAbsolutePath()}, state, bootId).open(0)));
+		// but not a reboot
+		bootId.delete();
+		append(bootId, "boot2\n");
+		final LogSource rebooted = new LogSource.Kmsg(new String[] {"cat", log.getAbsolutePath()}, state, bootId);
+		assertEquals(7, readAll(rebooted.open(0)).split("\n").length);
+		rebooted.close();
+	}
+	public void testKmsgLinesWithoutSequence() throws Exception {
+		// /proc/kmsg lines are returned as they are
+		final File log = new File(dir, "kmsg");
+		append(log, line(10001, "1.2.3.4", 443) + line(10001, "1.2.3.4", 443));
+		final LogSource source = new LogSource.Kmsg(new String[] {"cat", log.getAbsolutePath()}, new File(dir, "state"), new File(dir, "none"));
+		assertEquals(line(10001, "1.2.3.4", 443) + line(10001, "1.2.3.4", 443), readAll(source.open(0)));
+		source.close();
+		assertEquals(-1, LogSource.Kmsg.sequence("<4>[ 1.0] x\n".getBytes(), 11));
+		assertEquals(-1, LogSource.Kmsg.sequence("12\n".getBytes(), 3));
+		assertEquals(7, LogSource.Kmsg.sequence("4,7,1;x\n".getBytes(), 8));
+	}
+	public void testCollectorReopeningKmsg() throws Exception {
+		final File log = new File(dir, "kmsg");
+		final File bootId = new File(dir, "boot_id");
+		append(bootId, "boot1\n");
+		append(log, record(1, 10001) + record(2, 10001));
+		final LogCollector collector = new LogCollector(new LogSource.Kmsg(new String[] {"cat", log.getAbsolutePath()}, new File(dir, "state"), bootId),
+				null, logger, clock);
+		collector.start();
+		// "cat" ends at once, so the source is opened again after a delay, without counting the records twice
+		Thread.sleep(2500);
+		append(log, record(3, 10001));
+		final long end = System.currentTimeMillis() + TIMEOUT;
+		while (!collector.format(names).contains("Blocked 3 packets") && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(2500);
+		collector.stop();
+		assertTrue(collector.format(names), collector.format(names).contains("App ID 10001 (App1) - Blocked 3 packets"));
+	}
+
+	/**
+	 * @return kernel log line of a blocked TCP packet
+	 */
+	private static String line(int uid, String dst, int dpt) {
+		return "<4>[  100.000000] [DROIDWALL] IN= OUT=wlan0 SRC=10.0.0.2 DST=" + dst
+			+ " LEN=60 TOS=0x00 PREC=0x00 TTL=64 ID=1 DF PROTO=TCP SPT=40000 DPT=" + dpt + " WINDOW=14600 RES=0x00 SYN URGP=0 UID=" + uid + "\n";
+	}
+	/**
+	 * @return /dev/kmsg record of a blocked TCP packet
+	 */
+	private static String record(int seq, int uid) {
+		return "4," + seq + ",100000,-;[DROIDWALL] IN= OUT=wlan0 SRC=10.0.0.2 DST=1.2.3.4 LEN=60 PROTO=TCP SPT=40000 DPT=443 UID=" + uid + "\n";
+	}
+	private static void append(File file, String data) throws IOException {
+		final FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(data.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+	private static String readAll(InputStream in) throws IOException {
+		final StringBuilder res = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			res.append((char) c);
+		}
+		return res.toString();
+	}
+	private static void waitForCursor(LogCollector collector, long cursor) throws InterruptedException {
+		final long end = System.currentTimeMillis() + TIMEOUT;
+		while (collector.getCursor() < cursor && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(cursor, collector.getCursor());
+	}
+	private static void delete(File file) {
+		final File files[] = file.listFiles();
+		if (files != null) {
+			for (final File f : files) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * Throughput benchmark of the kernel log parser on a replayed log.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Throughput benchmark of the kernel log parser on a replayed log.
+ * The log is read from the file given as argument (E.g.: a "dmesg" output), or generated
+ * with {@link SyntheticData#log(int[], int, Random)}. It is parsed by {@link LogParser},
+ * by the String-based parser it replaced (indexOf/substring/parseInt on boxed maps) and by the whole
+ * {@link LogSummary}, and the throughput of each one is printed in MB/s.
+ * It runs on a plain JVM (see run-jvm.sh).
+ */
+public class LogParserBenchmark {
+	/** number of UIDs and lines of the synthetic log */
+	private static final int SYNTHETIC_UIDS = 1000;
+	private static final int SYNTHETIC_LINES = 300000;
+	/** number of measured replays (after the same number of warm-up replays) */
+	private static final int REPLAYS = 10;
+
+	/** keeps the results alive, so that the work is not optimized away */
+	static int sink;
+
+	public static void main(String args[]) throws IOException {
+		final byte log[];
+		if (args.length > 0) {
+			log = readFile(new File(args[0]));
+		} else {
+			final Random random = new Random(0);
+			log = SyntheticData.log(SyntheticData.uids(SYNTHETIC_UIDS, random), SYNTHETIC_LINES, random);
+		}
+		// both parsers must find the same packets
+		final int bytes = parseBytes(log), strings = parseStrings(log);
+		if (bytes != strings) {
+			throw new IllegalStateException("Parsers disagree: " + bytes + " != " + strings);
+		}
+		System.out.println("Replaying " + (log.length / 1024) + "KB, " + bytes + " blocked packets");
+		System.out.println("parser\tMB/s");
+		for (int pass=0; pass<2; pass++) {
+			final boolean warmup = (pass == 0);
+			long start = System.nanoTime();
+			for (int i=0; i<REPLAYS; i++) sink += parseBytes(log);
+			report(warmup, "LogParser", log.length, System.nanoTime() - start);
+			start = System.nanoTime();
+			for (int i=0; i<REPLAYS; i++) sink += parseStrings(log);
+			report(warmup, "String", log.length, System.nanoTime() - start);
+			start = System.nanoTime();
+			for (int i=0; i<REPLAYS; i++) {
+				final LogSummary summary = new LogSummary();
+				summary.parse(log, 0, log.length);
+				sink += summary.isEmpty() ? 0 : 1;
+			}
+			report(warmup, "LogSummary", log.length, System.nanoTime() - start);
+		}
+		System.out.println("(" + sink + ")");
+	}
+	private static void report(boolean warmup, String name, int length, long nanos) {
+		if (!warmup) {
+			System.out.println(name + "\t" + String.format("%.1f", (double) length * REPLAYS / (1024 * 1024) / (nanos / 1e9)));
+		}
+	}
+	/**
+	 * Parse the log with LogParser.
+	 * @return number of DroidWall lines
+	 */
+	private static int parseBytes(byte log[]) {
+		final LogParser parser = new LogParser();
+		int count = 0;
+		int pos = 0;
+		while (pos < log.length) {
+			int eol = pos;
+			while (eol < log.length && log[eol] != '\n') eol++;
+			if (parser.parse(log, pos, eol - pos)) {
+				count++;
+				sink += parser.uid + parser.dst + parser.dpt;
+			}
+			pos = eol + 1;
+		}
+		return count;
+	}
+	/**
+	 * Parse the log the way it was done before LogParser (one String per line, boxed map keys).
+	 * @return number of DroidWall lines
+	 */
+	private static int parseStrings(byte log[]) throws IOException {
+		final HashMap<Integer, HashMap<String, Integer>> map = new HashMap<Integer, HashMap<String, Integer>>();
+		int count = 0;
+		int pos = 0;
+		while (pos < log.length) {
+			int eol = pos;
+			while (eol < log.length && log[eol] != '\n') eol++;
+			final String line = new String(log, pos, eol - pos, "UTF-8");
+			pos = eol + 1;
+			if (line.indexOf("[DROIDWALL]") == -1) continue;
+			count++;
+			int start, end;
+			int appid = LogParser.UNKNOWN_UID;
+			if (((start=line.indexOf("UID=")) != -1) && ((end=line.indexOf(" ", start)) != -1)) {
+				try {
+					appid = Integer.parseInt(line.substring(start+4, end));
+				} catch (NumberFormatException ex) {
+				}
+			}
+			HashMap<String, Integer> dsts = map.get(appid);
+			if (dsts == null) {
+				dsts = new HashMap<String, Integer>();
+				map.put(appid, dsts);
+			}
+			if (((start=line.indexOf("DST=")) != -1) && ((end=line.indexOf(" ", start)) != -1)) {
+				final String dst = line.substring(start+4, end);
+				final Integer n = dsts.get(dst);
+				dsts.put(dst, (n == null) ? 1 : n + 1);
+			}
+		}
+		sink += map.size();
+		return count;
+	}
+	private static byte[] readFile(File file) throws IOException {
+		final byte buf[] = new byte[(int) file.length()];
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			int pos = 0, n;
+			while (pos < buf.length && (n = in.read(buf, pos, buf.length - pos)) != -1) {
+				pos += n;
+			}
+		} finally {
+			in.close();
+		}
+		return buf;
+	}
+}
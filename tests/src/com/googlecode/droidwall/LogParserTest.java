@@ -0,0 +1,164 @@
+/**
+ * Tests of the byte-level kernel log parser.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the byte-level kernel log parser.
+ */
+public class LogParserTest extends TestCase {
+	private static final String TCP_LINE = "<4>[ 1234.567890] [DROIDWALL] IN= OUT=wlan0 SRC=10.0.0.2 DST=173.194.32.7 LEN=60 TOS=0x00 PREC=0x00 TTL=64 ID=1 DF PROTO=TCP SPT=40000 DPT=443 WINDOW=14600 RES=0x00 SYN URGP=0 UID=10001 GID=10001";
+
+	private final LogParser parser = new LogParser();
+
+	public void testTcpLine() {
+		assertTrue(parse(TCP_LINE));
+		assertEquals(10001, parser.uid);
+		assertTrue(parser.hasDst);
+		assertEquals("173.194.32.7", LogParser.formatAddress(parser.dst));
+		assertEquals(443, parser.dpt);
+		assertEquals(LogParser.PROTO_TCP, parser.proto);
+		assertEquals("wlan0", parser.getInterface(parser.iface));
+	}
+	public void testUdpAndNumericProtocol() {
+		assertTrue(parse("[DROIDWALL] IN= OUT=rmnet0 SRC=10.0.0.2 DST=8.8.8.8 LEN=40 PROTO=UDP SPT=5000 DPT=53 LEN=20 UID=0"));
+		assertEquals(0, parser.uid);
+		assertEquals(LogParser.PROTO_UDP, parser.proto);
+		assertEquals(53, parser.dpt);
+		assertTrue(parse("[DROIDWALL] IN= OUT=rmnet0 SRC=10.0.0.2 DST=8.8.8.8 LEN=40 PROTO=47 UID=10002"));
+		assertEquals(47, parser.proto);
+		assertEquals(-1, parser.dpt);
+		assertTrue(parse("[DROIDWALL] IN= OUT=rmnet0 SRC=10.0.0.2 DST=8.8.8.8 LEN=84 PROTO=ICMP TYPE=8 CODE=0 ID=1 SEQ=1 UID=10002"));
+		assertEquals(LogParser.PROTO_ICMP, parser.proto);
+	}
+	public void testIgnoredLines() {
+		assertFalse(parse("<6>[ 1234.567890] wlan0: associated"));
+		assertFalse(parse(""));
+		assertFalse(parse("[DROIDWAL] UID=10001"));
+	}
+	public void testMissingFields() {
+		// packets generated by the kernel are logged without an owner
+		assertTrue(parse("<4>[ 1234.567890] [DROIDWALL] IN= OUT= SRC=10.0.0.2 DST=10.0.0.1 LEN=52 PROTO=TCP SPT=80 DPT=40000"));
+		assertEquals(LogParser.UNKNOWN_UID, parser.uid);
+		assertEquals(-1, parser.iface);
+		assertTrue(parse("[DROIDWALL]"));
+		assertEquals(LogParser.UNKNOWN_UID, parser.uid);
+		assertFalse(parser.hasDst);
+		assertEquals(-1, parser.dpt);
+		assertEquals(LogParser.PROTO_NONE, parser.proto);
+		// fields of the previous line are reset
+		assertTrue(parse(TCP_LINE));
+		assertTrue(parse("[DROIDWALL] UID=abc DPT=-1"));
+		assertEquals(LogParser.UNKNOWN_UID, parser.uid);
+		assertFalse(parser.hasDst);
+		assertEquals(-1, parser.dpt);
+	}
+	public void testInvalidAddresses() {
+		final String invalid[] = {"1.2.3", "1.2.3.4.5", "1.2.3.256", "1..2.3", "a.b.c.d", "0.0.0.0", "db8:x::1", ":", ""};
+		for (final String dst : invalid) {
+			assertTrue(parse("[DROIDWALL] OUT=wlan0 DST=" + dst + " UID=10001"));
+			assertFalse(dst, parser.hasDst);
+			assertEquals(10001, parser.uid);
+		}
+		assertTrue(parse("[DROIDWALL] DST=255.255.255.255"));
+		assertTrue(parser.hasDst);
+		assertEquals(-1, parser.dst);
+	}
+	public void testIpv6Destinations() {
+		final String ipv6[] = {"2001:0db8:0000:0000:0000:0000:0000:0001", "2001:db8::1", "::1", "::ffff:192.0.2.1", "FE80::1"};
+		for (final String dst : ipv6) {
+			assertTrue(parse("[DROIDWALL] IN= OUT=wlan0 SRC=fe80::2 DST=" + dst + " LEN=60 PROTO=TCP SPT=40000 DPT=443 UID=10001"));
+			assertTrue(dst, parser.hasDst);
+			assertEquals(dst, LogParser.IPV6_DST, parser.dst);
+			assertEquals(443, parser.dpt);
+		}
+		// all IPv6 destinations share a bucket
+		final LogSummary summary = new LogSummary();
+		summary.add(10001, true, LogParser.IPV6_DST, 443, 2);
+		summary.add(10001, true, 0x01020304, 443, 1);
+		final String res = summary.format(new HashMap<Integer, String[]>());
+		assertTrue(res, res.contains("(2 packets for IPv6 addresses, 1 packets for 1.2.3.4)"));
+	}
+	public void testIcmpErrorQuotedPacket() {
+		// the packet that caused the error is logged between brackets, before the UID of the blocked one
+		assertTrue(parse("<4>[ 1234.567890] [DROIDWALL] IN= OUT=wlan0 SRC=10.0.0.2 DST=10.0.0.1 LEN=72 TOS=0x00 PREC=0xC0 TTL=64 ID=1 PROTO=ICMP TYPE=3 CODE=3 " +
+				"[SRC=10.0.0.1 DST=10.0.0.2 LEN=44 TOS=0x00 PREC=0x00 TTL=64 ID=2 PROTO=UDP SPT=53 DPT=40000 LEN=24 ] UID=10001 GID=10001"));
+		assertEquals("10.0.0.1", LogParser.formatAddress(parser.dst));
+		assertEquals(-1, parser.dpt);
+		assertEquals(LogParser.PROTO_ICMP, parser.proto);
+		assertEquals(10001, parser.uid);
+		// nested (ICMP error quoting an ICMP error) and unterminated quotes
+		assertTrue(parse("[DROIDWALL] DST=10.0.0.1 PROTO=ICMP [SRC=10.0.0.1 DST=10.0.0.3 PROTO=ICMP [SRC=10.0.0.3 DPT=1 ] ] UID=10002"));
+		assertEquals("10.0.0.1", LogParser.formatAddress(parser.dst));
+		assertEquals(10002, parser.uid);
+		assertTrue(parse("[DROIDWALL] DST=10.0.0.1 PROTO=ICMP [SRC=10.0.0.1 DST=10.0.0.3 DPT=7 UID=10003"));
+		assertEquals("10.0.0.1", LogParser.formatAddress(parser.dst));
+		assertEquals(-1, parser.dpt);
+		assertEquals(LogParser.UNKNOWN_UID, parser.uid);
+	}
+	public void testLineInsideBuffer() throws UnsupportedEncodingException {
+		final byte buf[] = ("garbage " + TCP_LINE + "\nUID=10002").getBytes("UTF-8");
+		final int off = "garbage ".length();
+		assertTrue(parser.parse(buf, off, TCP_LINE.length()));
+		assertEquals(10001, parser.uid);
+		assertTrue(parser.parse(buf, 0, off + TCP_LINE.length()));
+		assertFalse(parser.parse(buf, off + TCP_LINE.length() + 1, buf.length - off - TCP_LINE.length() - 1));
+	}
+	public void testInterfaces() {
+		assertTrue(parse("[DROIDWALL] OUT=wlan0"));
+		final int wlan = parser.iface;
+		assertTrue(parse("[DROIDWALL] OUT=rmnet0"));
+		final int rmnet = parser.iface;
+		assertTrue(parse("[DROIDWALL] OUT=wlan0"));
+		assertEquals(wlan, parser.iface);
+		assertFalse(wlan == rmnet);
+		assertEquals("rmnet0", parser.getInterface(rmnet));
+		assertNull(parser.getInterface(-1));
+		assertNull(parser.getInterface(rmnet + 1));
+		// interfaces beyond the limit share the last id
+		for (int i=0; i<100; i++) {
+			assertTrue(parse("[DROIDWALL] OUT=tun" + i));
+			assertTrue(parser.iface >= 0 && parser.iface < 64);
+		}
+		assertTrue(parse("[DROIDWALL] OUT=wlan0"));
+		assertEquals(wlan, parser.iface);
+	}
+	public void testFormatAddress() {
+		assertEquals("0.0.0.0", LogParser.formatAddress(0));
+		assertEquals("10.0.0.1", LogParser.formatAddress(0x0a000001));
+		assertEquals("255.255.255.255", LogParser.formatAddress(0xffffffff));
+		assertEquals("192.168.1.254", LogParser.formatAddress(0xc0a801fe));
+	}
+
+	private boolean parse(String line) {
+		try {
+			final byte buf[] = line.getBytes("UTF-8");
+			return parser.parse(buf, 0, buf.length);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
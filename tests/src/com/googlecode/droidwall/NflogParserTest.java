@@ -0,0 +1,116 @@
+/**
+ * Tests of the nfnetlink_log parser, on a netlink batch fixture.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the nfnetlink_log parser, on a netlink batch fixture (tests/fixtures/nflog-batch.bin).
+ * The batch holds five NFULNL_MSG_PACKET messages followed by NLMSG_DONE, laid out as the kernel sends them
+ * (packet header, prefix, output device, timestamp, UID/GID and payload attributes):
+ * <ol>
+ * <li>[DROIDWALL] TCP SYN from UID 10001 to 173.194.32.7:443 on interface 3</li>
+ * <li>[OTHER] TCP SYN from UID 10001 (logged by another rule)</li>
+ * <li>[DROIDWALL] UDP DNS query from UID 10002 to 8.8.8.8:53 on interface 4</li>
+ * <li>[DROIDWALL] ICMP echo to 10.0.0.1 without an owner (kernel)</li>
+ * <li>[DROIDWALL] UDP non-first fragment from UID 10003 to 192.168.1.254 (no ports)</li>
+ * </ol>
+ */
+public class NflogParserTest extends TestCase {
+	private static final String FIXTURE = "/nflog-batch.bin";
+
+	private final NflogParser parser = new NflogParser();
+
+	public void testBatch() throws IOException {
+		final byte batch[] = readFixture();
+		parser.reset(batch, 0, batch.length);
+		assertPacket(10001, "173.194.32.7", 443, LogParser.PROTO_TCP, 3);
+		assertPacket(10002, "8.8.8.8", 53, LogParser.PROTO_UDP, 4);
+		assertPacket(LogParser.UNKNOWN_UID, "10.0.0.1", -1, LogParser.PROTO_ICMP, 3);
+		assertPacket(10003, "192.168.1.254", -1, LogParser.PROTO_UDP, 4);
+		assertFalse(parser.next());
+		assertFalse(parser.next());
+	}
+	public void testBatchInsideBuffer() throws IOException {
+		final byte batch[] = readFixture();
+		final byte buf[] = new byte[batch.length + 10];
+		System.arraycopy(batch, 0, buf, 7, batch.length);
+		parser.reset(buf, 7, batch.length);
+		int count = 0;
+		while (parser.next()) count++;
+		assertEquals(4, count);
+	}
+	public void testTruncatedBatch() throws IOException {
+		final byte batch[] = readFixture();
+		// the first message is complete, the second one is cut
+		final int first = le32(batch, 0);
+		parser.reset(batch, 0, first + 20);
+		assertPacket(10001, "173.194.32.7", 443, LogParser.PROTO_TCP, 3);
+		assertFalse(parser.next());
+		// every prefix of the batch is parsed without errors
+		for (int len=0; len<=batch.length; len++) {
+			parser.reset(batch, 0, len);
+			while (parser.next()) {
+				assertTrue(parser.uid == 10001 || parser.uid == 10002 || parser.uid == 10003 || parser.uid == LogParser.UNKNOWN_UID);
+			}
+		}
+	}
+	public void testCorruptedLength() throws IOException {
+		final byte batch[] = readFixture();
+		// first message length beyond the batch end
+		batch[2] = 0x7f;
+		parser.reset(batch, 0, batch.length);
+		assertFalse(parser.next());
+	}
+
+	private void assertPacket(int uid, String dst, int dpt, int proto, int ifindex) {
+		assertTrue(parser.next());
+		assertEquals(uid, parser.uid);
+		assertTrue(parser.hasDst);
+		assertEquals(dst, LogParser.formatAddress(parser.dst));
+		assertEquals(dpt, parser.dpt);
+		assertEquals(proto, parser.proto);
+		assertEquals(ifindex, parser.ifindex);
+	}
+	private static int le32(byte buf[], int off) {
+		return (buf[off] & 0xff) | ((buf[off + 1] & 0xff) << 8) | ((buf[off + 2] & 0xff) << 16) | ((buf[off + 3] & 0xff) << 24);
+	}
+	private byte[] readFixture() throws IOException {
+		final InputStream in = getClass().getResourceAsStream(FIXTURE);
+		assertNotNull("Fixture not found: " + FIXTURE, in);
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte buf[] = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				out.write(buf, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * Tests of the persistent root shell, using a plain "sh" in place of "su".
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the persistent root shell, using a plain "sh" in place of "su".
+ */
+public class RootShellTest extends TestCase {
+	/** number of commands used to compare the latency */
+	private static final int COMMANDS = 50;
+
+	private RootShell shell;
+
+	@Override
+	protected void setUp() {
+		shell = new RootShell("sh");
+	}
+	@Override
+	protected void tearDown() {
+		shell.close();
+	}
+	public void testOutputAndExitCode() {
+		final StringBuilder res = new StringBuilder();
+		assertEquals(3, shell.run("echo out; echo err >&2; printf partial; false || exit_code=3; (exit $exit_code)", appender(res), 5000));
+		assertEquals("out\nerr\npartial\n", res.toString());
+		assertEquals(0, shell.run("true", null, 5000));
+	}
+	public void testTimeout() {
+		final StringBuilder res = new StringBuilder();
+		assertEquals(-1, shell.run("sleep 5", appender(res), 200));
+		assertEquals("Operation timed-out\n", res.toString());
+		assertEquals(0, shell.run("true", null, 5000));
+	}
+	public void testInterrupt() {
+		Thread.currentThread().interrupt();
+		assertEquals(-1, shell.run("true", null, -1));
+		assertTrue(Thread.interrupted());
+		assertEquals(0, shell.run("true", null, 5000));
+	}
+	public void testRestartAfterCommandExits() {
+		assertEquals(-1, shell.run("exit 1", null, 5000));
+		final StringBuilder res = new StringBuilder();
+		assertEquals(0, shell.run("echo ok", appender(res), 5000));
+		assertEquals("ok\n", res.toString());
+	}
+	public void testRestartAfterShellDiesBetweenCommands() throws InterruptedException {
+		final StringBuilder pid = new StringBuilder();
+		assertEquals(0, shell.run("echo $$", appender(pid), 5000));
+		// a process that keeps the shell input open, so that writing to the dead shell may not fail
+		assertEquals(0, shell.run("exec 3<&0; sleep 2 >/dev/null 2>&1 &", null, 5000));
+		assertEquals(0, shell.run("(sleep 0.2; kill -9 $$) >/dev/null 2>&1 &", null, 5000));
+		Thread.sleep(600);
+		final StringBuilder res = new StringBuilder();
+		assertEquals(0, shell.run("echo $$", appender(res), 5000));
+		assertFalse(res.length() == 0);
+		assertFalse(pid.toString().equals(res.toString()));
+	}
+	public void testScriptDoesNotConsumeNextCommands() throws IOException {
+		final StringBuilder res = new StringBuilder();
+		assertEquals(0, shell.run("sh -c 'cat' </dev/null; echo done", appender(res), 5000));
+		assertEquals("done\n", res.toString());
+	}
+	/**
+	 * Compare the latency of the persistent shell with starting a new shell for each command.
+	 */
+	public void testLatency() throws Exception {
+		assertEquals(0, shell.run("true", null, 5000));
+		long start = System.nanoTime();
+		for (int i=0; i<COMMANDS; i++) {
+			assertEquals(0, shell.run("echo " + i, null, 5000));
+		}
+		final long persistent = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i=0; i<COMMANDS; i++) {
+			assertEquals(0, exec("sh", "-c", "echo " + i));
+		}
+		final long spawned = System.nanoTime() - start;
+		System.out.println("RootShell latency: " + (persistent / COMMANDS / 1000) + "us per command, new shell: " + (spawned / COMMANDS / 1000) + "us per command");
+		assertTrue(persistent < spawned);
+	}
+	private static int exec(String... command) throws IOException, InterruptedException {
+		final Process proc = Runtime.getRuntime().exec(command);
+		final InputStream stdout = proc.getInputStream();
+		while (stdout.read() != -1) {
+		}
+		return proc.waitFor();
+	}
+	private static LineCallback appender(final StringBuilder res) {
+		return new LineCallback() {
+			@Override
+			public void onLine(String line) {
+				res.append(line).append('\n');
+			}
+		};
+	}
+}
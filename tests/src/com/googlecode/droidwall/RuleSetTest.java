@@ -0,0 +1,157 @@
+/**
+ * Tests of the rule set ordering and incremental updates.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the order of the per-application rules, and of their incremental updates.
+ */
+public class RuleSetTest extends TestCase {
+	public void testOwnerRulesInUidOrder() {
+		final RuleSet ruleset = ruleset(new int[] {10005, 10001, 10002, UidSet.SPECIAL_UID_KERNEL}, true, null);
+		assertEquals("10001-10002 10005", owners(ruleset, ruleset.getWifiChain()));
+		assertEquals("10001 10002 10005", owners(ruleset(new int[] {10005, 10001, 10002}, false, null), RuleSet.CHAIN_MAIN + RuleSet.SUFFIX_WIFI));
+	}
+	public void testHotRulesFirst() {
+		final int uids[] = {10001, 10002, 10003, 10005, 10007, 10009};
+		// a range is as hot as its busiest UID
+		assertEquals("10007 10001-10003 10005 10009", owners(ruleset(uids, true, new int[] {10007, 10002, 10008}), "droidwall-wifi"));
+		assertEquals("10007 10002 10001 10003 10005 10009", owners(ruleset(uids, false, new int[] {10007, 10002, 10008}), "droidwall-wifi"));
+	}
+	public void testIncrementalUpdateKeepsOrder() {
+		final Random random = new Random(1);
+		for (int round=0; round<200; round++) {
+			final int hot[] = SyntheticData.uids(1 + random.nextInt(20), random);
+			final RuleSet previous = ruleset(select(random), random.nextBoolean(), hot);
+			final RuleSet ruleset = ruleset(select(random), random.nextBoolean(), hot);
+			if (!ruleset.canUpdate(previous)) continue;
+			final List<RuleSet.Rule> chain = update(new ArrayList<RuleSet.Rule>(previous.getRules()), previous, ruleset);
+			for (final String name : ruleset.getChains()) {
+				assertEquals(rules(ruleset.getRules(), name), rules(chain, name));
+			}
+		}
+	}
+	public void testCustomScriptRequiresRebuild() {
+		final String custom = "$IPTABLES -A droidwall-wifi -d 192.168.0.0/16 -j RETURN";
+		final UidSet before = UidSet.of(new int[] {10001, 10005}, 1);
+		final UidSet after = UidSet.of(new int[] {10001, 10003, 10005}, 1);
+		final RuleSet previous = new RuleSet(RuleSet.CHAIN_MAIN, false, false, custom, before, before, 1014, 1010, false, null, null);
+		final RuleSet ruleset = new RuleSet(RuleSet.CHAIN_MAIN, false, false, custom, after, after, 1014, 1010, false, null, null);
+		assertTrue(ruleset.sameHeader(previous));
+		assertFalse(ruleset.canUpdate(previous));
+		// the rules of a full rebuild come after the rules added by the custom script
+		final RuleSet.Rule customRule = new RuleSet.Rule("droidwall-wifi", "-d 192.168.0.0/16 -j RETURN", false, false);
+		final List<RuleSet.Rule> full = new ArrayList<RuleSet.Rule>(ruleset.getRules());
+		full.add(0, customRule);
+		final List<RuleSet.Rule> applied = new ArrayList<RuleSet.Rule>(previous.getRules());
+		applied.add(0, customRule);
+		// an incremental update would insert 10003 ahead of the custom rule, changing the precedence
+		final List<RuleSet.Rule> incremental = update(applied, previous, ruleset);
+		assertFalse(rules(full, "droidwall-wifi").equals(rules(incremental, "droidwall-wifi")));
+		// without a custom script both are the same
+		final RuleSet plainPrevious = new RuleSet(RuleSet.CHAIN_MAIN, false, false, "", before, before, 1014, 1010, false, null, null);
+		final RuleSet plain = new RuleSet(RuleSet.CHAIN_MAIN, false, false, "", after, after, 1014, 1010, false, null, null);
+		assertTrue(plain.canUpdate(plainPrevious));
+		assertEquals(rules(plain.getRules(), "droidwall-wifi"),
+				rules(update(new ArrayList<RuleSet.Rule>(plainPrevious.getRules()), plainPrevious, plain), "droidwall-wifi"));
+	}
+	public void testInsertedRulesRendering() {
+		final UidSet uids = UidSet.of(new int[] {10001, 10003}, 1);
+		// white-list: the "dhcp" and "wifi" users come first on the WIFI chain
+		final RuleSet ruleset = new RuleSet(RuleSet.CHAIN_MAIN, true, false, "", uids, uids, 1014, 1010, false, new int[] {10003}, null);
+		final List<RuleSet.Rule> inserted = new ArrayList<RuleSet.Rule>();
+		for (final RuleSet.Rule rule : ruleset.getPerAppRules()) {
+			if (rule.spec.indexOf("10001") != -1) inserted.add(rule);
+		}
+		final StringBuilder out = new StringBuilder();
+		new RestoreRuleRenderer().update(out, new ArrayList<RuleSet.Rule>(), inserted, ruleset.positionsOf(inserted));
+		assertEquals("" +
+			"-I droidwall-3g 1 -m owner --uid-owner 10001 -j RETURN\n" +
+			"-I droidwall-wifi 4 -m owner --uid-owner 10001 -j RETURN\n" +
+		"", out.toString());
+	}
+	/**
+	 * @param uids selected UIDs (for both WIFI and 2G/3G)
+	 * @param ranges indicates if the owner match supports UID ranges
+	 * @param hot UIDs whose rules should come first
+	 * @return a black-list rule set
+	 */
+	private static RuleSet ruleset(int uids[], boolean ranges, int hot[]) {
+		final UidSet set = UidSet.of(uids, 1);
+		return new RuleSet(RuleSet.CHAIN_MAIN, false, true, "", set, set, 1014, 1010, ranges, hot, hot);
+	}
+	/**
+	 * Apply an incremental update to the rules of the chains, the same way iptables does.
+	 * @param chain rules currently on the chains (modified)
+	 * @param previous rule set applied last time
+	 * @param ruleset new rule set
+	 * @return the updated rules
+	 */
+	private static List<RuleSet.Rule> update(List<RuleSet.Rule> chain, RuleSet previous, RuleSet ruleset) {
+		final List<RuleSet.Rule> inserted = new ArrayList<RuleSet.Rule>();
+		for (final RuleSet.Rule rule : previous.getPerAppRules()) {
+			if (!ruleset.getPerAppRules().contains(rule)) chain.remove(rule);
+		}
+		for (final RuleSet.Rule rule : ruleset.getPerAppRules()) {
+			if (!previous.getPerAppRules().contains(rule)) inserted.add(rule);
+		}
+		final int positions[] = ruleset.positionsOf(inserted);
+		for (int i=0; i<positions.length; i++) {
+			final RuleSet.Rule rule = inserted.get(i);
+			int index = 0;
+			for (int found=0; found<positions[i]-1; index++) {
+				if (chain.get(index).chain.equals(rule.chain)) found++;
+			}
+			while (index < chain.size() && !chain.get(index).chain.equals(rule.chain)) index++;
+			chain.add(index, rule);
+		}
+		return chain;
+	}
+	private static int[] select(Random random) {
+		final int uids[] = new int[random.nextInt(20)];
+		for (int i=0; i<uids.length; i++) {
+			uids[i] = 10000 + random.nextInt(30);
+		}
+		return uids;
+	}
+	private static List<String> rules(List<RuleSet.Rule> rules, String chain) {
+		final List<String> res = new ArrayList<String>();
+		for (final RuleSet.Rule rule : rules) {
+			if (rule.chain.equals(chain)) res.add(rule.spec);
+		}
+		return res;
+	}
+	private static String owners(RuleSet ruleset, String chain) {
+		final StringBuilder res = new StringBuilder();
+		for (final RuleSet.Rule rule : ruleset.getPerAppRules()) {
+			if (!rule.chain.equals(chain)) continue;
+			if (res.length() > 0) res.append(' ');
+			res.append(rule.spec.substring(rule.spec.indexOf("--uid-owner ") + 12, rule.spec.indexOf(" -j")));
+		}
+		return res.toString();
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ * Synthetic inputs shared by the tests and the benchmarks.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Random;
+
+/**
+ * Synthetic inputs shared by the tests and the benchmarks.
+ */
+final class SyntheticData {
+	private SyntheticData() {
+	}
+	/**
+	 * @param size number of UIDs
+	 * @param random random number generator
+	 * @return distinct application UIDs (and the special kernel UID), unsorted
+	 */
+	static int[] uids(int size, Random random) {
+		final int uids[] = new int[size];
+		uids[0] = UidSet.SPECIAL_UID_KERNEL;
+		int uid = 10000;
+		for (int i=1; i<size; i++) {
+			// mostly consecutive, with some gaps
+			uid += (random.nextInt(4) == 0) ? 2 + random.nextInt(5) : 1;
+			uids[i] = uid;
+		}
+		for (int i=size-1; i>0; i--) {
+			final int j = random.nextInt(i + 1);
+			final int tmp = uids[i];
+			uids[i] = uids[j];
+			uids[j] = tmp;
+		}
+		return uids;
+	}
+	/**
+	 * Build a kernel log with blocked packets (and some unrelated lines), as read from dmesg.
+	 * @param uids UIDs of the blocked applications
+	 * @param lines number of lines
+	 * @param random random number generator
+	 * @return log contents
+	 */
+	static byte[] log(int uids[], int lines, Random random) {
+		final StringBuilder log = new StringBuilder(lines * 200);
+		for (int i=0; i<lines; i++) {
+			log.append("<4>[").append(1000 + i / 100).append('.').append(100000 + i % 100).append("] ");
+			if (i % 10 == 0) {
+				log.append("wlan0: unrelated kernel message\n");
+				continue;
+			}
+			final boolean tcp = random.nextBoolean();
+			log.append("[DROIDWALL] IN= OUT=").append((i & 1) == 0 ? "wlan0" : "rmnet0").append(" SRC=10.0.0.2 DST=")
+				.append(173).append('.').append(194).append('.').append(random.nextInt(64)).append('.').append(random.nextInt(256))
+				.append(" LEN=60 TOS=0x00 PREC=0x00 TTL=64 ID=").append(i).append(" DF PROTO=").append(tcp ? "TCP" : "UDP")
+				.append(" SPT=").append(30000 + random.nextInt(30000)).append(" DPT=").append(tcp ? 443 : 53)
+				.append(tcp ? " WINDOW=14600 RES=0x00 SYN URGP=0" : " LEN=40")
+				.append(" UID=").append(Math.max(0, uids[random.nextInt(uids.length)])).append(" GID=").append(3003).append('\n');
+		}
+		return log.toString().getBytes();
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ * Tests of the Space-Saving top-k counter.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the Space-Saving top-k counter.
+ */
+public class TopKTest extends TestCase {
+	private static final int CAPACITY = 8;
+	private static final int KEYS = 200;
+	private static final int OCCURRENCES = 5000;
+
+	public void testOfferWithinCapacity() {
+		final TopK top = new TopK(CAPACITY);
+		top.offer(1, 3);
+		top.offer(2, 5);
+		top.offer(1, 4);
+		assertEquals(2, top.size());
+		final int order[] = top.sorted();
+		assertEquals(1, top.keyAt(order[0]));
+		assertEquals(7, top.countAt(order[0]));
+		assertEquals(0, top.errorAt(order[0]));
+		assertEquals(2, top.keyAt(order[1]));
+		assertEquals(5, top.countAt(order[1]));
+	}
+	public void testMergeKeyMissingFromFullCounter() {
+		final TopK a = new TopK(2);
+		a.offer(1, 10);
+		a.offer(2, 4);
+		final TopK b = new TopK(2);
+		b.offer(3, 6);
+		b.offer(2, 5);
+		a.add(b);
+		// key 1 may have had up to 5 occurrences on b, and key 3 up to 4 on a
+		assertEquals(2, a.size());
+		final int order[] = a.sorted();
+		assertEquals(1, a.keyAt(order[0]));
+		assertEquals(15, a.countAt(order[0]));
+		assertEquals(5, a.errorAt(order[0]));
+		assertEquals(3, a.keyAt(order[1]));
+		assertEquals(10, a.countAt(order[1]));
+		assertEquals(4, a.errorAt(order[1]));
+	}
+	public void testMergeNotFullCounters() {
+		final TopK a = new TopK(CAPACITY);
+		a.offer(1, 10);
+		final TopK b = new TopK(CAPACITY);
+		b.offer(2, 6);
+		b.offer(1, 1);
+		a.add(b);
+		assertEquals(2, a.size());
+		final int order[] = a.sorted();
+		assertEquals(11, a.countAt(order[0]));
+		assertEquals(0, a.errorAt(order[0]));
+		assertEquals(6, a.countAt(order[1]));
+		assertEquals(0, a.errorAt(order[1]));
+	}
+	public void testMergeFullCountersBounds() {
+		final Random random = new Random(1);
+		for (int run=0; run<50; run++) {
+			final Map<Integer, Integer> truth = new HashMap<Integer, Integer>();
+			final TopK a = stream(random, truth);
+			final TopK b = stream(random, truth);
+			assertEquals(CAPACITY, a.size());
+			assertEquals(CAPACITY, b.size());
+			a.add(b);
+			assertEquals(CAPACITY, a.size());
+			for (int i=0; i<a.size(); i++) {
+				final Integer real = truth.get(a.keyAt(i));
+				final int count = (real == null) ? 0 : real;
+				assertTrue(a.countAt(i) - a.errorAt(i) <= count);
+				assertTrue(count <= a.countAt(i));
+			}
+			// every key above total/capacity is monitored
+			for (final Map.Entry<Integer, Integer> e : truth.entrySet()) {
+				if (e.getValue() > 2 * OCCURRENCES / CAPACITY) {
+					assertTrue("key " + e.getKey() + " not monitored", indexOf(a, e.getKey()) != -1);
+				}
+			}
+		}
+	}
+	public void testScanner() {
+		// an application probing many addresses once, besides its usual destination
+		final int hot = 0x0a000001;
+		final TopK top = new TopK(LogSummary.TOP_DESTINATIONS);
+		final LogSummary summary = new LogSummary();
+		for (int i=0; i<2000; i++) {
+			final int dst = (i % 10 == 0) ? hot : 0x0b000000 + i;
+			top.offer(dst, 1);
+			summary.add(10001, true, dst, 80, 1);
+		}
+		final int order[] = top.sorted();
+		assertEquals(hot, top.keyAt(order[0]));
+		assertEquals(200, top.countAt(order[0]));
+		assertEquals(0, top.errorAt(order[0]));
+		for (int i=1; i<order.length; i++) {
+			// the scanned addresses are only known to have been seen once or more
+			assertTrue(top.countAt(order[i]) - top.errorAt(order[i]) <= 1);
+			assertTrue(top.errorAt(order[i]) > 0);
+		}
+		// the estimated counts are shown as ranges, not hidden
+		final String res = summary.format(new HashMap<Integer, String[]>());
+		assertTrue(res, res.startsWith("App ID 10001 - Blocked 2000 packets (200 packets for 10.0.0.1, 1-"));
+		assertTrue(res, res.contains(", ...)\nPorts: 80 (2000)"));
+	}
+
+	/**
+	 * Count a skewed random stream on a new counter, adding the real counts to truth.
+	 */
+	private static TopK stream(Random random, Map<Integer, Integer> truth) {
+		final TopK top = new TopK(CAPACITY);
+		for (int i=0; i<OCCURRENCES; i++) {
+			// about half of the occurrences go to a few keys
+			final int key = random.nextBoolean() ? random.nextInt(4) : random.nextInt(KEYS);
+			top.offer(key, 1);
+			final Integer count = truth.get(key);
+			truth.put(key, (count == null) ? 1 : count + 1);
+		}
+		return top;
+	}
+	private static int indexOf(TopK top, int key) {
+		for (int i=0; i<top.size(); i++) {
+			if (top.keyAt(i) == key) return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * Tests of the UID list parsing and of the UID sets.
+ *
+ * Copyright (C) 2009-2011  Rodrigo Zechin Rosauro
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Rodrigo Zechin Rosauro
+ * @version 1.0
+ */
+package com.googlecode.droidwall;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the pipe-separated UID lists and of the UID sets built from them.
+ */
+public class UidListTest extends TestCase {
+	public void testParse() {
+		assertTrue(Arrays.equals(new int[] {10001, 10005, -11}, UidList.parse("10001|10005|-11")));
+		assertEquals(0, UidList.parse("").length);
+	}
+	public void testParseSkipsInvalidEntries() {
+		assertTrue(Arrays.equals(new int[] {1, 3}, UidList.parse("1||x|-|3|99999999999|")));
+	}
+	public void testFormatRoundTrip() {
+		final int uids[] = SyntheticData.uids(20000, new Random(1));
+		assertTrue(Arrays.equals(uids, UidList.parse(UidList.format(uids, uids.length))));
+	}
+	public void testSpecialUids() {
+		final UidSet set = UidSet.of(UidList.parse("10001|-11|10001"), 1);
+		assertEquals(2, set.size());
+		assertTrue(set.containsKernel());
+		assertFalse(set.containsAny());
+		assertEquals(1, set.firstUid());
+	}
+	public void testWithout() {
+		final UidSet set = UidSet.of(new int[] {3, 1, 2}, 1);
+		assertSame(set, set.without(4, 2));
+		final UidSet removed = set.without(2, 2);
+		assertTrue(Arrays.equals(new int[] {1, 3}, removed.toArray()));
+		assertEquals(2, removed.getVersion());
+	}
+}